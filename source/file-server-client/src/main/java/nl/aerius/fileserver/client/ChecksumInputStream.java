@@ -0,0 +1,105 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.client;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Input stream computing the SHA-256 checksum of the content while it's read, and optionally verifying it at the end of the stream.
+ */
+class ChecksumInputStream extends FilterInputStream {
+
+  private static final String HASH_ALGORITHM = "SHA-256";
+
+  private final MessageDigest digest = messageDigest();
+  private final String expectedChecksum;
+  private String checksum;
+
+  /**
+   * @param in content to compute the checksum of
+   * @param expectedChecksum SHA-256 checksum of the content as hex string to verify, or null to only compute the checksum
+   */
+  ChecksumInputStream(final InputStream in, final String expectedChecksum) {
+    super(in);
+    this.expectedChecksum = expectedChecksum;
+  }
+
+  /**
+   * @return the SHA-256 checksum of the content as hex string, or null if the content has not been read completely
+   */
+  String getChecksum() {
+    return checksum;
+  }
+
+  @Override
+  public int read() throws IOException {
+    final int b = super.read();
+
+    if (b == -1) {
+      complete();
+    } else {
+      digest.update((byte) b);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    final int read = super.read(b, off, len);
+
+    if (read == -1) {
+      complete();
+    } else {
+      digest.update(b, off, read);
+    }
+    return read;
+  }
+
+  @Override
+  public long skip(final long n) throws IOException {
+    // Skipped content would not be part of the checksum.
+    throw new IOException("Skip not supported");
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  private void complete() throws IOException {
+    if (checksum == null) {
+      checksum = HexFormat.of().formatHex(digest.digest());
+    }
+    if (expectedChecksum != null && !expectedChecksum.equalsIgnoreCase(checksum)) {
+      throw new IOException("Checksum mismatch, expected " + expectedChecksum + " but was " + checksum);
+    }
+  }
+
+  static MessageDigest messageDigest() {
+    try {
+      return MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (final NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+}
@@ -18,63 +18,85 @@ package nl.aerius.fileserver.client;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.time.Duration;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 import java.util.function.Function;
 
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.core.io.InputStreamResource;
 import org.springframework.core.io.Resource;
 import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.http.HttpStatus;
-import org.springframework.http.HttpStatusCode;
-import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.http.client.reactive.ReactorClientHttpConnector;
-import org.springframework.web.reactive.function.BodyInserters;
 import org.springframework.web.reactive.function.client.ClientResponse;
 import org.springframework.web.reactive.function.client.WebClient;
-import org.springframework.web.reactive.function.client.WebClient.RequestBodySpec;
-import org.springframework.web.reactive.function.client.WebClient.RequestHeadersSpec;
-import org.springframework.web.reactive.function.client.WebClientException;
-import org.springframework.web.reactive.function.client.WebClientResponseException;
 import org.springframework.web.server.ResponseStatusException;
 
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
-import reactor.netty.http.client.HttpClient;
 
+/**
+ * Blocking client of the file server. Each method waits for the request to complete, at most the configured timeout of the operation.
+ * Use {@link ReactiveFileServerClient} to make requests without blocking the calling thread.
+ */
 public class FileServerClient {
 
-  private static final Logger LOG = LoggerFactory.getLogger(FileServerClient.class);
-  private static final String COPY_URI_TEMPLATE = "copy/{sourceId}/{destinationId}/{filename}";
-  private static final Duration WEBCLIENT_TIMEOUT = Duration.ofMinutes(1);
-
-  private final WebClient fileServerWebClient;
-  private final WebClient fileServerWebClientWithoutRedirect;
+  // Number of buffers requested ahead while streaming a download, which bounds the memory used by a download.
+  private static final int STREAM_DEMAND = 4;
 
-  private static final String ALL_FILES = "{uuid}";
+  private final ReactiveFileServerClient reactiveClient;
+  // True when the reactive client is created by this client, and therefore disposed by this client.
+  private final boolean ownsReactiveClient;
 
+  /**
+   * Creates the client. Responses are requested compressed (Accept-Encoding gzip) and decompressed transparently.
+   */
   public FileServerClient(final WebClient.Builder webClientBuilder, final FileServerProperties properties) {
-    this.fileServerWebClient = webClientBuilder.baseUrl(properties.getBaseUrl())
-        .clientConnector(new ReactorClientHttpConnector(HttpClient.create().followRedirect(true))).build();
-    this.fileServerWebClientWithoutRedirect = webClientBuilder.baseUrl(properties.getBaseUrl())
-        .clientConnector(new ReactorClientHttpConnector(HttpClient.create().followRedirect(false))).build();
+    this(new ReactiveFileServerClient(webClientBuilder, properties), true);
+  }
+
+  /**
+   * Creates the client blocking on the given reactive client, so both share the same connections.
+   * The reactive client is not disposed with this client, it's disposed by whoever created it.
+   */
+  public FileServerClient(final ReactiveFileServerClient reactiveClient) {
+    this(reactiveClient, false);
+  }
+
+  private FileServerClient(final ReactiveFileServerClient reactiveClient, final boolean ownsReactiveClient) {
+    this.reactiveClient = reactiveClient;
+    this.ownsReactiveClient = ownsReactiveClient;
   }
 
   @PostConstruct
   void fakeCall() {
-    // Webflux/netty seems to have a bug where the body of the first object is retained in memory.
-    // To reduce this memory use, use a normal get method, even though it'll result in nonsense.
-    try {
-      this.fileServerWebClient.get().retrieve().bodyToMono(Void.class).block(Duration.ofSeconds(1));
-    } catch (final WebClientException e) {
-      LOG.debug("Ignoring exception, just avoiding unnecessary memory use", e);
+    reactiveClient.fakeCall();
+  }
+
+  /**
+   * Closes the connections to the file server, when the reactive client is created by this client.
+   * A reactive client passed to this client is left open, as it can still be used by others.
+   */
+  @PreDestroy
+  void dispose() {
+    if (ownsReactiveClient) {
+      reactiveClient.dispose();
     }
   }
 
+  /**
+   * @return the reactive client this client blocks on
+   */
+  public ReactiveFileServerClient reactive() {
+    return reactiveClient;
+  }
+
   /**
    * Retrieve a file from the file server. It uses a response handler to implement different ways to handle the response.
    * It uses a file server that doesn't follow redirect. This allows for an implementation to redirect the file instead of downloading it.
@@ -86,100 +108,146 @@ public class FileServerClient {
    */
   public ResponseEntity<Resource> retrieveFile(final FileServerFile fileServerFile,
       final Function<ClientResponse, Mono<ResponseEntity<Resource>>> responseHandler, final String... pathValues) {
-    return fileServerWebClientWithoutRedirect.get()
-        .uri(fileServerFile.uriTemplate(), uriBuilder -> uriBuilder.build((Object[]) pathValues))
-        .exchangeToMono(responseHandler)
-        .block(WEBCLIENT_TIMEOUT);
+    return reactiveClient.retrieveFile(fileServerFile, responseHandler, pathValues)
+        .block(timeouts().getRetrieve());
   }
 
   /**
    * Take care when implementing MapInputStreamFunction:
    * The inputstream is not automatically closed, so depending on the use case the stream has to be captured in a try-with-resources.
    * If the inputstream is used for a InputStreamResource (to send the result directly to the caller), don't bother closing it.
+   * The complete file is read into memory before the function is called, for large files use
+   * {@link #retrieveFileStreaming(FileServerFile, MapInputStreamFunction, String...)} or {@link #retrieveFile(FileServerFile, Path, String...)}.
    */
   public <T> T retrieveFile(final FileServerFile fileServerFile, final MapInputStreamFunction<T> function, final String... pathValues) {
-    return fileServerWebClient.get()
-        .uri(fileServerFile.uriTemplate(), uriBuilder -> uriBuilder.build((Object[]) pathValues))
-        .retrieve()
-        .toEntity(DataBuffer.class)
-        .map(responseEntity -> handleResponse(responseEntity, function))
-        .onErrorMap(WebClientResponseException.class, FileServerClient::handleError)
-        .block(WEBCLIENT_TIMEOUT);
+    return reactiveClient.retrieveFile(fileServerFile, pathValues)
+        .flatMap(responseEntity -> DataBufferUtils.join(responseEntity.getBody())
+            .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.NOT_FOUND)))
+            .map(body -> handleResponse(responseEntity.getHeaders().getContentDisposition().getFilename(), body, function)))
+        .block(timeouts().getRetrieve());
   }
 
-  private static <T> T handleResponse(final ResponseEntity<DataBuffer> responseEntity, final MapInputStreamFunction<T> function) {
-    try {
-      final DataBuffer body = responseEntity.getBody();
-      if (body == null) {
-        throw new ResponseStatusException(HttpStatus.NOT_FOUND);
-      }
-      return function.apply(responseEntity.getHeaders().getContentDisposition().getFilename(), body.asInputStream(true));
-    } catch (final IOException e) {
+  /**
+   * Retrieve a file from the file server, streaming the content to the function while it's received.
+   * At most a few buffers of the content are in memory at any time, regardless of the size of the file.
+   * The input stream is only valid while the function is called, and closed when the function returns.
+   * When the file server sends a checksum, reading the end of the stream fails if the content doesn't match the checksum.
+   *
+   * @param fileServerFile type of file
+   * @param function function reading the content, called with the filename and the stream with the content
+   * @param pathValues path variables to replace in the url.
+   * @return result of the function
+   */
+  public <T> T retrieveFileStreaming(final FileServerFile fileServerFile, final MapInputStreamFunction<T> function, final String... pathValues) {
+    final ResponseEntity<Flux<DataBuffer>> responseEntity = reactiveClient.retrieveFile(fileServerFile, pathValues).block(timeouts().getRetrieve());
+
+    try (final InputStream content = DataBufferUtils.subscriberInputStream(responseEntity.getBody(), STREAM_DEMAND)) {
+      return function.apply(responseEntity.getHeaders().getContentDisposition().getFilename(), content);
+    } catch (final IOException | UncheckedIOException e) {
       throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, null, e);
     }
   }
 
-  private static WebClientResponseException handleError(final WebClientResponseException e) {
-    if (e.getStatusCode().isSameCodeAs(HttpStatus.NOT_FOUND)) {
-      throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+  /**
+   * Retrieve a file from the file server and write it to the target file, replacing the target if it exists.
+   * The content is written while it's received, so at most a few buffers of the content are in memory at any time.
+   * When the file server sends a checksum and the content doesn't match the checksum the target is deleted.
+   *
+   * @param fileServerFile type of file
+   * @param target file to write the content to
+   * @param pathValues path variables to replace in the url.
+   * @return the filename as sent by the file server
+   */
+  public String retrieveFile(final FileServerFile fileServerFile, final Path target, final String... pathValues) {
+    return reactiveClient.retrieveFile(fileServerFile, target, pathValues)
+        .block(timeouts().getRetrieve());
+  }
+
+  private FileServerProperties.Timeouts timeouts() {
+    return reactiveClient.getTimeouts();
+  }
+
+  private static <T> T handleResponse(final String filename, final DataBuffer body, final MapInputStreamFunction<T> function) {
+    try {
+      return function.apply(filename, body.asInputStream(true));
+    } catch (final IOException e) {
+      throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, null, e);
     }
-    throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR);
   }
 
+  /**
+   * Writes the content of the input stream to the file server. When configured the content is uploaded gzip compressed.
+   * The checksum of the content is computed while it's sent, and verified against the checksum of the stored content returned by the file server.
+   *
+   * @throws IllegalStateException when the file could not be stored, or the stored content doesn't match the content sent
+   */
   public void write(final FileServerFile fileServerFile, final InputStream inputStream, final FileServerExpireTag expire,
       final String... fileParts) {
-    putResource(fileServerFile, new InputStreamResource(inputStream), expire, fileParts)
-        .block(WEBCLIENT_TIMEOUT);
+    reactiveClient.write(fileServerFile, inputStream, expire, fileParts)
+        .block(timeouts().getWrite());
   }
 
-  public void writeJson(final String id, final FileServerFile fileServerFile, final FileServerExpireTag expire, final Object object) {
-    putJson(fileServerFile, object, expire, id)
-        .block(WEBCLIENT_TIMEOUT);
+  /**
+   * Writes the content of the file to the file server. The file is sent with its size as content length, and without copying the content
+   * into the JVM: the content is sent by the operating system directly from the file to the connection (zero-copy).
+   * The checksum of the file is computed while the file is sent, and verified against the checksum of the stored content returned by
+   * the file server. When sending the file checksum is configured, the checksum is computed up front and sent with the file instead,
+   * so the file server rejects the content if it doesn't match, at the cost of reading the file before sending it.
+   * The content is never compressed, as that would require reading the content.
+   *
+   * @throws IllegalStateException when the file could not be stored, or the stored content doesn't match the content sent
+   * @throws UncheckedIOException when the file could not be read
+   */
+  public void write(final FileServerFile fileServerFile, final Path path, final FileServerExpireTag expire, final String... fileParts) {
+    reactiveClient.write(fileServerFile, path, expire, fileParts)
+        .block(timeouts().getWrite());
   }
 
-  private Mono<Void> putJson(final FileServerFile fileServerFile, final Object object, final FileServerExpireTag expire, final String... fileParts) {
-    final String uriTemplate = fileServerFile.uriTemplate();
-    final RequestBodySpec requestWithUri = putWithUri(uriTemplate, expire, fileParts)
-        .contentType(MediaType.APPLICATION_JSON);
-
-    final RequestHeadersSpec<?> requestWithUriAndBody = requestWithUri.bodyValue(object);
-
-    return retrieve(requestWithUriAndBody, uriTemplate);
+  /**
+   * Writes the remaining content of the buffer to the file server, with its size as content length.
+   * The buffer is sent as is, without copying it, so it must not be modified until this method returns. Its position is not changed.
+   * The checksum of the content is sent with the content, so the file server rejects the content if it doesn't match.
+   *
+   * @throws IllegalStateException when the file could not be stored, or the stored content doesn't match the content sent
+   */
+  public void write(final FileServerFile fileServerFile, final ByteBuffer content, final FileServerExpireTag expire, final String... fileParts) {
+    reactiveClient.write(fileServerFile, content, expire, fileParts)
+        .block(timeouts().getWrite());
   }
 
-  private Mono<Void> putResource(final FileServerFile fileServerFile, final Resource resource, final FileServerExpireTag expire,
-      final String... fileParts) {
-    final String uriTemplate = fileServerFile.uriTemplate();
-    final RequestBodySpec requestWithUri = putWithUri(uriTemplate, expire, fileParts)
-        .contentType(MediaType.APPLICATION_OCTET_STREAM);
-
-    final RequestHeadersSpec<?> requestWithUriAndBody = requestWithUri.body(BodyInserters.fromResource(resource));
-
-    return retrieve(requestWithUriAndBody, uriTemplate);
+  /**
+   * Writes all files in parallel, at most the configured write concurrency of files at the same time, and waits for all writes to complete.
+   * Each write may take at most the configured write timeout. A failing write doesn't stop the other writes.
+   *
+   * @param writes files to write
+   * @return result of each write, in the order of the writes
+   */
+  public List<FileServerWrite.Result> writeAll(final Collection<FileServerWrite> writes) {
+    return writeAll(writes, reactiveClient.getWriteConcurrency());
   }
 
-  private RequestBodySpec putWithUri(final String uriTemplate, final FileServerExpireTag expire, final String... fileParts) {
-    return fileServerWebClient.put()
-        .uri(uriTemplate,
-            uriBuilder -> uriBuilder.queryParam(FileServerExpireTag.tagKey(), FileServerExpireTag.safeTagValue(expire)).build((Object[]) fileParts));
+  /**
+   * Writes all files in parallel, at most concurrency files at the same time, and waits for all writes to complete.
+   * Each write may take at most the configured write timeout. A failing write doesn't stop the other writes.
+   *
+   * @param writes files to write
+   * @param concurrency maximum number of files written at the same time
+   * @return result of each write, in the order of the writes
+   */
+  public List<FileServerWrite.Result> writeAll(final Collection<FileServerWrite> writes, final int concurrency) {
+    return reactiveClient.writeAll(writes, concurrency, write -> write.timeout(timeouts().getWrite()))
+        .collectList()
+        .block();
   }
 
-  private static Mono<Void> retrieve(final RequestHeadersSpec<?> requestSpec, final String uriTemplate) {
-    return requestSpec
-        .retrieve()
-        .onStatus(HttpStatusCode::is5xxServerError, clientResponse -> clientResponse.bodyToMono(String.class).map(message -> {
-          LOG.error("Fileserver error while posting to '{}' with message: {}", uriTemplate, message);
-          return new IllegalStateException("Error while posting to fileserver.");
-        }))
-        .onStatus(HttpStatusCode::is4xxClientError, ClientResponse::createError)
-        .bodyToMono(Void.class);
+  public void writeJson(final String id, final FileServerFile fileServerFile, final FileServerExpireTag expire, final Object object) {
+    reactiveClient.writeJson(id, fileServerFile, expire, object)
+        .block(timeouts().getWrite());
   }
 
   public void copy(final String sourceId, final String destinationId, final String filename, final FileServerExpireTag expire) {
-    final RequestBodySpec copyRequest = putWithUri(COPY_URI_TEMPLATE, expire, sourceId, destinationId, filename);
-
-    retrieve(copyRequest, COPY_URI_TEMPLATE)
-        .block(WEBCLIENT_TIMEOUT);
+    reactiveClient.copy(sourceId, destinationId, filename, expire)
+        .block(timeouts().getCopy());
   }
 
   /**
@@ -188,17 +256,8 @@ public class FileServerClient {
    * @param id id to delete the files for.
    */
   public void deleteFilesForId(final String id) {
-    fileServerWebClient.delete()
-        .uri(ALL_FILES, uriBuilder -> uriBuilder.build(id))
-        .retrieve()
-        .onStatus(HttpStatusCode::is5xxServerError, clientResponse -> clientResponse.bodyToMono(String.class).map(message -> {
-          LOG.error("Fileserver server error with message: {}", message);
-          return new IllegalStateException("Error while posting to fileserver.");
-        }))
-        // Ignore not found errors on delete requests
-        .onStatus(status -> status.isSameCodeAs(HttpStatus.NOT_FOUND), clientResponse -> Mono.empty())
-        .bodyToMono(Void.class)
-        .block(WEBCLIENT_TIMEOUT);
+    reactiveClient.deleteFilesForId(id)
+        .block(timeouts().getDelete());
   }
 
   public interface MapInputStreamFunction<T> {
@@ -16,13 +16,45 @@
  */
 package nl.aerius.fileserver.client;
 
+import java.time.Duration;
+
 import org.springframework.boot.context.properties.ConfigurationProperties;
 
 @ConfigurationProperties(prefix = "aerius.fileserver")
 public class FileServerProperties {
 
+  private static final Duration DEFAULT_TIMEOUT = Duration.ofMinutes(1);
+
   private String baseUrl;
 
+  /**
+   * Upload files written with an input stream gzip compressed, to reduce the network traffic.
+   * Requires a file server that accepts compressed uploads.
+   */
+  private boolean compressUploads;
+
+  /**
+   * Send the checksum of a file written from a path with the upload, so the file server doesn't store content that doesn't match it.
+   * This requires reading the file before it's sent. Without it the checksum is computed while the file is sent,
+   * and verified against the checksum returned by the file server after the content is stored.
+   */
+  private boolean sendFileChecksum;
+
+  /**
+   * Maximum number of files of a batch of writes that are written at the same time.
+   */
+  private int writeConcurrency = 8;
+
+  /**
+   * Configuration of the HTTP connections to the file server.
+   */
+  private final Http http = new Http();
+
+  /**
+   * Maximum time the blocking client waits for an operation to complete.
+   */
+  private final Timeouts timeouts = new Timeouts();
+
   public String getBaseUrl() {
     return baseUrl;
   }
@@ -31,4 +63,218 @@ public class FileServerProperties {
     this.baseUrl = baseUrl;
   }
 
+  public boolean isCompressUploads() {
+    return compressUploads;
+  }
+
+  public void setCompressUploads(final boolean compressUploads) {
+    this.compressUploads = compressUploads;
+  }
+
+  public boolean isSendFileChecksum() {
+    return sendFileChecksum;
+  }
+
+  public void setSendFileChecksum(final boolean sendFileChecksum) {
+    this.sendFileChecksum = sendFileChecksum;
+  }
+
+  public int getWriteConcurrency() {
+    return writeConcurrency;
+  }
+
+  public void setWriteConcurrency(final int writeConcurrency) {
+    this.writeConcurrency = writeConcurrency;
+  }
+
+  public Http getHttp() {
+    return http;
+  }
+
+  public Timeouts getTimeouts() {
+    return timeouts;
+  }
+
+  /**
+   * Configuration of the HTTP connections to the file server. All requests share a single connection pool.
+   */
+  public static class Http {
+
+    /**
+     * Maximum number of open connections to the file server. Requests wait for a connection when all connections are in use.
+     */
+    private int maxConnections = 50;
+
+    /**
+     * Maximum number of requests waiting for a connection. Requests fail when more requests are waiting. -1 means no limit.
+     */
+    private int pendingAcquireMaxCount = 1000;
+
+    /**
+     * Maximum time a request waits for a connection.
+     */
+    private Duration pendingAcquireTimeout = Duration.ofSeconds(45);
+
+    /**
+     * Maximum time a connection may be idle in the pool before it's closed. Should be less than the keep alive timeout of the file server.
+     */
+    private Duration maxIdleTime = Duration.ofSeconds(15);
+
+    /**
+     * Interval at which idle connections are closed in the background. 0 means connections are only closed when taken from the pool.
+     */
+    private Duration evictInBackground = Duration.ofSeconds(10);
+
+    /**
+     * Maximum time to wait while establishing a connection.
+     */
+    private Duration connectTimeout = Duration.ofSeconds(5);
+
+    /**
+     * Send TCP keepalive packets on open connections, so broken connections are detected.
+     */
+    private boolean tcpKeepAlive = true;
+
+    /**
+     * Use HTTP/2 without TLS (h2c), multiplexing concurrent requests over the same connections.
+     * Requires a file server with HTTP/2 enabled.
+     */
+    private boolean http2;
+
+    /**
+     * Publish metrics of the connection pool. Requires Micrometer.
+     */
+    private boolean metrics;
+
+    public int getMaxConnections() {
+      return maxConnections;
+    }
+
+    public void setMaxConnections(final int maxConnections) {
+      this.maxConnections = maxConnections;
+    }
+
+    public int getPendingAcquireMaxCount() {
+      return pendingAcquireMaxCount;
+    }
+
+    public void setPendingAcquireMaxCount(final int pendingAcquireMaxCount) {
+      this.pendingAcquireMaxCount = pendingAcquireMaxCount;
+    }
+
+    public Duration getPendingAcquireTimeout() {
+      return pendingAcquireTimeout;
+    }
+
+    public void setPendingAcquireTimeout(final Duration pendingAcquireTimeout) {
+      this.pendingAcquireTimeout = pendingAcquireTimeout;
+    }
+
+    public Duration getMaxIdleTime() {
+      return maxIdleTime;
+    }
+
+    public void setMaxIdleTime(final Duration maxIdleTime) {
+      this.maxIdleTime = maxIdleTime;
+    }
+
+    public Duration getEvictInBackground() {
+      return evictInBackground;
+    }
+
+    public void setEvictInBackground(final Duration evictInBackground) {
+      this.evictInBackground = evictInBackground;
+    }
+
+    public Duration getConnectTimeout() {
+      return connectTimeout;
+    }
+
+    public void setConnectTimeout(final Duration connectTimeout) {
+      this.connectTimeout = connectTimeout;
+    }
+
+    public boolean isTcpKeepAlive() {
+      return tcpKeepAlive;
+    }
+
+    public void setTcpKeepAlive(final boolean tcpKeepAlive) {
+      this.tcpKeepAlive = tcpKeepAlive;
+    }
+
+    public boolean isHttp2() {
+      return http2;
+    }
+
+    public void setHttp2(final boolean http2) {
+      this.http2 = http2;
+    }
+
+    public boolean isMetrics() {
+      return metrics;
+    }
+
+    public void setMetrics(final boolean metrics) {
+      this.metrics = metrics;
+    }
+  }
+
+  /**
+   * Maximum time the blocking client waits for an operation to complete.
+   */
+  public static class Timeouts {
+
+    /**
+     * Maximum time to retrieve a file. For streaming retrieves the time until the response headers are received.
+     */
+    private Duration retrieve = DEFAULT_TIMEOUT;
+
+    /**
+     * Maximum time to write a file. Applies to each single file of a batch of writes.
+     */
+    private Duration write = DEFAULT_TIMEOUT;
+
+    /**
+     * Maximum time to copy a file.
+     */
+    private Duration copy = DEFAULT_TIMEOUT;
+
+    /**
+     * Maximum time to delete the files of an id.
+     */
+    private Duration delete = DEFAULT_TIMEOUT;
+
+    public Duration getRetrieve() {
+      return retrieve;
+    }
+
+    public void setRetrieve(final Duration retrieve) {
+      this.retrieve = retrieve;
+    }
+
+    public Duration getWrite() {
+      return write;
+    }
+
+    public void setWrite(final Duration write) {
+      this.write = write;
+    }
+
+    public Duration getCopy() {
+      return copy;
+    }
+
+    public void setCopy(final Duration copy) {
+      this.copy = copy;
+    }
+
+    public Duration getDelete() {
+      return delete;
+    }
+
+    public void setDelete(final Duration delete) {
+      this.delete = delete;
+    }
+  }
+
 }
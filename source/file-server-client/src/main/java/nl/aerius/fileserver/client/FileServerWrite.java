@@ -0,0 +1,97 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.client;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.function.Function;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * A file to write to the file server as part of a batch of writes, see {@link ReactiveFileServerClient#writeAll}.
+ */
+public final class FileServerWrite {
+
+  private final FileServerFile fileServerFile;
+  private final String[] fileParts;
+  private final Function<ReactiveFileServerClient, Mono<Void>> write;
+
+  private FileServerWrite(final FileServerFile fileServerFile, final String[] fileParts,
+      final Function<ReactiveFileServerClient, Mono<Void>> write) {
+    this.fileServerFile = fileServerFile;
+    this.fileParts = fileParts;
+    this.write = write;
+  }
+
+  /**
+   * Write of the content of the input stream. The input stream is closed when it's read.
+   */
+  public static FileServerWrite of(final FileServerFile fileServerFile, final InputStream inputStream, final FileServerExpireTag expire,
+      final String... fileParts) {
+    return new FileServerWrite(fileServerFile, fileParts, client -> client.write(fileServerFile, inputStream, expire, fileParts));
+  }
+
+  /**
+   * Write of the content of the file.
+   */
+  public static FileServerWrite of(final FileServerFile fileServerFile, final Path path, final FileServerExpireTag expire,
+      final String... fileParts) {
+    return new FileServerWrite(fileServerFile, fileParts, client -> client.write(fileServerFile, path, expire, fileParts));
+  }
+
+  /**
+   * Write of the remaining content of the buffer. The buffer must not be modified until the write completes.
+   */
+  public static FileServerWrite of(final FileServerFile fileServerFile, final ByteBuffer content, final FileServerExpireTag expire,
+      final String... fileParts) {
+    return new FileServerWrite(fileServerFile, fileParts, client -> client.write(fileServerFile, content, expire, fileParts));
+  }
+
+  /**
+   * Write of the object as json.
+   */
+  public static FileServerWrite json(final String id, final FileServerFile fileServerFile, final FileServerExpireTag expire, final Object object) {
+    return new FileServerWrite(fileServerFile, new String[] {id}, client -> client.writeJson(id, fileServerFile, expire, object));
+  }
+
+  public FileServerFile getFileServerFile() {
+    return fileServerFile;
+  }
+
+  public String[] getFileParts() {
+    return fileParts.clone();
+  }
+
+  Mono<Void> write(final ReactiveFileServerClient client) {
+    return write.apply(client);
+  }
+
+  /**
+   * Result of a write in a batch of writes.
+   *
+   * @param write the write
+   * @param error the error the write failed with, or null if the file was written
+   */
+  public record Result(FileServerWrite write, Throwable error) {
+
+    public boolean isSuccess() {
+      return error == null;
+    }
+  }
+}
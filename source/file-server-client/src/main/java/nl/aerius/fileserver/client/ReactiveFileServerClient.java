@@ -0,0 +1,478 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.HexFormat;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.zip.GZIPOutputStream;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+import org.reactivestreams.Publisher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.HttpStatusCode;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.reactive.ClientHttpRequest;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.web.reactive.function.BodyInserter;
+import org.springframework.web.reactive.function.BodyInserters;
+import org.springframework.web.reactive.function.client.ClientResponse;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClient.RequestBodySpec;
+import org.springframework.web.reactive.function.client.WebClient.RequestHeadersSpec;
+import org.springframework.web.reactive.function.client.WebClient.ResponseSpec;
+import org.springframework.web.reactive.function.client.WebClientException;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import org.springframework.web.server.ResponseStatusException;
+
+import io.netty.channel.ChannelOption;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.netty.http.HttpProtocol;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
+
+/**
+ * Non-blocking client of the file server. All methods return immediately, the request is made when the result is subscribed to.
+ * Content read from an input stream or a file, which is blocking, is read on the scheduler for blocking tasks, never on the event loop.
+ * The {@link FileServerClient} is the blocking variant of this client.
+ */
+public class ReactiveFileServerClient {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ReactiveFileServerClient.class);
+  private static final String COPY_URI_TEMPLATE = "copy/{sourceId}/{destinationId}/{filename}";
+  private static final String ALL_FILES = "{uuid}";
+  private static final String GZIP = "gzip";
+  // Name of the connection pool, as used in the metrics of the pool.
+  private static final String CONNECTION_POOL_NAME = "fileserver";
+  // Header with the SHA-256 checksum of the content of a file, as sent by the file server.
+  private static final String CHECKSUM_HEADER = "X-Checksum-SHA256";
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // Compressing reads the input stream, which is blocking, and therefore is done on the scheduler for blocking tasks.
+  private static final Executor COMPRESS_EXECUTOR = task -> Schedulers.boundedElastic().schedule(task);
+
+  private final ConnectionProvider connectionProvider;
+  private final WebClient fileServerWebClient;
+  private final WebClient fileServerWebClientWithoutRedirect;
+  private final boolean compressUploads;
+  private final boolean sendFileChecksum;
+  private final int writeConcurrency;
+  private final FileServerProperties.Timeouts timeouts;
+
+  /**
+   * Creates the client. Responses are requested compressed (Accept-Encoding gzip) and decompressed transparently.
+   * All requests share a single connection pool, configured by the http properties.
+   */
+  public ReactiveFileServerClient(final WebClient.Builder webClientBuilder, final FileServerProperties properties) {
+    this.connectionProvider = connectionProvider(properties.getHttp());
+    final HttpClient httpClient = httpClient(connectionProvider, properties.getHttp());
+
+    this.fileServerWebClient = webClientBuilder.baseUrl(properties.getBaseUrl())
+        .clientConnector(new ReactorClientHttpConnector(httpClient.followRedirect(true))).build();
+    this.fileServerWebClientWithoutRedirect = webClientBuilder.baseUrl(properties.getBaseUrl())
+        .clientConnector(new ReactorClientHttpConnector(httpClient.followRedirect(false))).build();
+    this.compressUploads = properties.isCompressUploads();
+    this.sendFileChecksum = properties.isSendFileChecksum();
+    this.writeConcurrency = properties.getWriteConcurrency();
+    this.timeouts = properties.getTimeouts();
+  }
+
+  private static ConnectionProvider connectionProvider(final FileServerProperties.Http http) {
+    return ConnectionProvider.builder(CONNECTION_POOL_NAME)
+        .maxConnections(http.getMaxConnections())
+        .pendingAcquireMaxCount(http.getPendingAcquireMaxCount())
+        .pendingAcquireTimeout(http.getPendingAcquireTimeout())
+        .maxIdleTime(http.getMaxIdleTime())
+        .evictInBackground(http.getEvictInBackground())
+        .metrics(http.isMetrics())
+        .build();
+  }
+
+  private static HttpClient httpClient(final ConnectionProvider connectionProvider, final FileServerProperties.Http http) {
+    return HttpClient.create(connectionProvider)
+        .compress(true)
+        .protocol(http.isHttp2() ? HttpProtocol.H2C : HttpProtocol.HTTP11)
+        .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) http.getConnectTimeout().toMillis())
+        .option(ChannelOption.SO_KEEPALIVE, http.isTcpKeepAlive());
+  }
+
+  @PostConstruct
+  void fakeCall() {
+    // Webflux/netty seems to have a bug where the body of the first object is retained in memory.
+    // To reduce this memory use, use a normal get method, even though it'll result in nonsense.
+    try {
+      this.fileServerWebClient.get().retrieve().bodyToMono(Void.class).block(Duration.ofSeconds(1));
+    } catch (final WebClientException e) {
+      LOG.debug("Ignoring exception, just avoiding unnecessary memory use", e);
+    }
+  }
+
+  /**
+   * Closes the connections to the file server.
+   */
+  @PreDestroy
+  void dispose() {
+    connectionProvider.dispose();
+  }
+
+  FileServerProperties.Timeouts getTimeouts() {
+    return timeouts;
+  }
+
+  /**
+   * Retrieve a file from the file server. It uses a response handler to implement different ways to handle the response.
+   * It uses a file server that doesn't follow redirect. This allows for an implementation to redirect the file instead of downloading it.
+   *
+   * @param fileServerFile type of file
+   * @param responseHandler handler to implement how to handle the response
+   * @param pathValues path variables to replace in the url.
+   * @return result of the response handler
+   */
+  public <T> Mono<T> retrieveFile(final FileServerFile fileServerFile, final Function<ClientResponse, Mono<T>> responseHandler,
+      final String... pathValues) {
+    return fileServerWebClientWithoutRedirect.get()
+        .uri(fileServerFile.uriTemplate(), uriBuilder -> uriBuilder.build((Object[]) pathValues))
+        .exchangeToMono(responseHandler);
+  }
+
+  /**
+   * Retrieve a file from the file server. The response is emitted when the headers are received, the content is streamed as the body.
+   * The content is only received when the body is subscribed to, and must be consumed or the buffers released.
+   * When the file server sends a checksum, the body ends with a {@link ResponseStatusException} if the content doesn't match the checksum.
+   * A file not found ends with a {@link ResponseStatusException} with status not found, other errors with status internal server error.
+   *
+   * @param fileServerFile type of file
+   * @param pathValues path variables to replace in the url.
+   * @return response with the content as body
+   */
+  public Mono<ResponseEntity<Flux<DataBuffer>>> retrieveFile(final FileServerFile fileServerFile, final String... pathValues) {
+    return fileServerWebClient.get()
+        .uri(fileServerFile.uriTemplate(), uriBuilder -> uriBuilder.build((Object[]) pathValues))
+        .retrieve()
+        .toEntityFlux(DataBuffer.class)
+        .onErrorMap(WebClientResponseException.class, ReactiveFileServerClient::handleError)
+        .map(entity -> new ResponseEntity<>(verifyContent(entity.getBody(), entity.getHeaders().getFirst(CHECKSUM_HEADER)), entity.getHeaders(),
+            entity.getStatusCode()));
+  }
+
+  /**
+   * Retrieve a file from the file server and write it to the target file, replacing the target if it exists.
+   * The content is written while it's received, so at most a few buffers of the content are in memory at any time.
+   * When writing the content fails, for example because the content doesn't match the checksum sent by the file server, the target is deleted.
+   *
+   * @param fileServerFile type of file
+   * @param target file to write the content to
+   * @param pathValues path variables to replace in the url.
+   * @return the filename as sent by the file server
+   */
+  public Mono<String> retrieveFile(final FileServerFile fileServerFile, final Path target, final String... pathValues) {
+    return retrieveFile(fileServerFile, pathValues)
+        .flatMap(entity -> DataBufferUtils.write(entity.getBody(), target)
+            .onErrorResume(e -> Mono.fromCallable(() -> Files.deleteIfExists(target))
+                .subscribeOn(Schedulers.boundedElastic())
+                .then(Mono.error(e)))
+            .onErrorMap(IOException.class, e -> new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, null, e))
+            .then(Mono.justOrEmpty(entity.getHeaders().getContentDisposition().getFilename())));
+  }
+
+  /**
+   * Ends the content with an error when the content doesn't match the checksum. Without checksum the content is returned as is.
+   */
+  private static Flux<DataBuffer> verifyContent(final Flux<DataBuffer> content, final String checksum) {
+    if (checksum == null) {
+      return content;
+    }
+    return Flux.defer(() -> {
+      final MessageDigest digest = ChecksumInputStream.messageDigest();
+
+      return content.doOnNext(buffer -> update(digest, buffer))
+          .concatWith(Mono.defer(() -> checksum.equalsIgnoreCase(HexFormat.of().formatHex(digest.digest())) ? Mono.empty()
+              : Mono.error(new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Checksum mismatch of content retrieved"))));
+    });
+  }
+
+  private static void update(final MessageDigest digest, final DataBuffer buffer) {
+    try (final DataBuffer.ByteBufferIterator iterator = buffer.readableByteBuffers()) {
+      iterator.forEachRemaining(digest::update);
+    }
+  }
+
+  private static WebClientResponseException handleError(final WebClientResponseException e) {
+    if (e.getStatusCode().isSameCodeAs(HttpStatus.NOT_FOUND)) {
+      throw new ResponseStatusException(HttpStatus.NOT_FOUND);
+    }
+    throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR);
+  }
+
+  /**
+   * Writes the content of the input stream to the file server. When configured the content is uploaded gzip compressed.
+   * The input stream is read on the scheduler for blocking tasks, and closed when it's read.
+   * The checksum of the content is computed while it's sent, and verified against the checksum of the stored content returned by the file server.
+   * Ends with an {@link IllegalStateException} when the file could not be stored, or the stored content doesn't match the content sent.
+   */
+  public Mono<Void> write(final FileServerFile fileServerFile, final InputStream inputStream, final FileServerExpireTag expire,
+      final String... fileParts) {
+    return Mono.defer(() -> {
+      final ChecksumInputStream content = new ChecksumInputStream(inputStream, null);
+      final Publisher<DataBuffer> body = compressUploads
+          ? DataBufferUtils.outputStreamPublisher(out -> compress(content, out), DefaultDataBufferFactory.sharedInstance, COMPRESS_EXECUTOR)
+          : DataBufferUtils.readInputStream(() -> content, DefaultDataBufferFactory.sharedInstance, BUFFER_SIZE)
+              .subscribeOn(Schedulers.boundedElastic());
+
+      return putBody(fileServerFile, BodyInserters.fromDataBuffers(body),
+          requestHeaders -> {
+            if (compressUploads) {
+              requestHeaders.set(HttpHeaders.CONTENT_ENCODING, GZIP);
+            }
+          }, expire, fileParts)
+          .doOnNext(headers -> verifyChecksum(headers, content.getChecksum(), fileServerFile.uriTemplate()))
+          .then();
+    });
+  }
+
+  /**
+   * Writes the content to the file server. The content is sent as it's emitted, with backpressure, and is not compressed.
+   * The checksum of the content is computed while it's sent, and verified against the checksum of the stored content returned by the file server.
+   * Ends with an {@link IllegalStateException} when the file could not be stored, or the stored content doesn't match the content sent.
+   */
+  public Mono<Void> write(final FileServerFile fileServerFile, final Publisher<DataBuffer> content, final FileServerExpireTag expire,
+      final String... fileParts) {
+    return Mono.defer(() -> {
+      final MessageDigest digest = ChecksumInputStream.messageDigest();
+
+      return putBody(fileServerFile, BodyInserters.fromDataBuffers(Flux.from(content).doOnNext(buffer -> update(digest, buffer))),
+          requestHeaders -> { }, expire, fileParts)
+          .doOnNext(headers -> verifyChecksum(headers, HexFormat.of().formatHex(digest.digest()), fileServerFile.uriTemplate()))
+          .then();
+    });
+  }
+
+  /**
+   * Writes the content of the file to the file server. The file is sent with its size as content length, and without copying the content
+   * into the JVM: the content is sent by the operating system directly from the file to the connection (zero-copy).
+   * The checksum of the file is computed on the scheduler for blocking tasks, while the file is sent, and verified against the checksum
+   * of the stored content returned by the file server. When sending the file checksum is configured, the checksum is computed up front
+   * and sent with the file instead, so the file server rejects the content if it doesn't match, at the cost of reading the file before sending it.
+   * The content is never compressed, as that would require reading the content.
+   * Ends with an {@link IllegalStateException} when the file could not be stored, or the stored content doesn't match the content sent,
+   * and with an {@link UncheckedIOException} when the file could not be read.
+   */
+  public Mono<Void> write(final FileServerFile fileServerFile, final Path path, final FileServerExpireTag expire, final String... fileParts) {
+    final Mono<String> fileChecksum = Mono.fromCallable(() -> checksum(path)).subscribeOn(Schedulers.boundedElastic());
+
+    if (sendFileChecksum) {
+      return fileChecksum
+          .flatMap(checksum -> putBody(fileServerFile, BodyInserters.fromResource(new FileSystemResource(path)),
+              requestHeaders -> requestHeaders.set(CHECKSUM_HEADER, checksum), expire, fileParts)
+              .doOnNext(headers -> verifyChecksum(headers, checksum, fileServerFile.uriTemplate())))
+          .then();
+    }
+    return Mono.zip(putBody(fileServerFile, BodyInserters.fromResource(new FileSystemResource(path)), requestHeaders -> { }, expire, fileParts),
+        fileChecksum)
+        .doOnNext(sent -> verifyChecksum(sent.getT1(), sent.getT2(), fileServerFile.uriTemplate()))
+        .then();
+  }
+
+  /**
+   * Writes the remaining content of the buffer to the file server, with its size as content length.
+   * The buffer is sent as is, without copying it, so it must not be modified until the write completes. Its position is not changed.
+   * The checksum of the content is sent with the content, so the file server rejects the content if it doesn't match.
+   * Ends with an {@link IllegalStateException} when the file could not be stored, or the stored content doesn't match the content sent.
+   */
+  public Mono<Void> write(final FileServerFile fileServerFile, final ByteBuffer content, final FileServerExpireTag expire,
+      final String... fileParts) {
+    return Mono.defer(() -> {
+      final MessageDigest digest = ChecksumInputStream.messageDigest();
+
+      digest.update(content.duplicate());
+      final String checksum = HexFormat.of().formatHex(digest.digest());
+      final long contentLength = content.remaining();
+
+      return putBody(fileServerFile,
+          BodyInserters.fromDataBuffers(Mono.fromSupplier(() -> DefaultDataBufferFactory.sharedInstance.wrap(content.duplicate()))),
+          requestHeaders -> {
+            requestHeaders.setContentLength(contentLength);
+            requestHeaders.set(CHECKSUM_HEADER, checksum);
+          }, expire, fileParts)
+          .doOnNext(headers -> verifyChecksum(headers, checksum, fileServerFile.uriTemplate()))
+          .then();
+    });
+  }
+
+  private static String checksum(final Path path) {
+    try (final ChecksumInputStream in = new ChecksumInputStream(Files.newInputStream(path), null)) {
+      in.transferTo(OutputStream.nullOutputStream());
+      return in.getChecksum();
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  /**
+   * Verifies the checksum returned by the file server, if returned, matches the checksum of the content sent.
+   */
+  private static void verifyChecksum(final HttpHeaders headers, final String checksum, final String uriTemplate) {
+    final String storedChecksum = headers.getFirst(CHECKSUM_HEADER);
+
+    if (storedChecksum != null && !storedChecksum.equalsIgnoreCase(checksum)) {
+      LOG.error("Fileserver stored content with checksum {} for '{}', while content with checksum {} was sent", storedChecksum, uriTemplate,
+          checksum);
+      throw new IllegalStateException("Checksum of the content stored on the fileserver doesn't match the content sent.");
+    }
+  }
+
+  /**
+   * Writes all files, at most the configured write concurrency of files at the same time.
+   * A failing write doesn't stop the other writes, the results are emitted in the order of the writes.
+   *
+   * @param writes files to write
+   * @return result of each write
+   */
+  public Flux<FileServerWrite.Result> writeAll(final Collection<FileServerWrite> writes) {
+    return writeAll(writes, writeConcurrency);
+  }
+
+  /**
+   * Writes all files, at most concurrency files at the same time.
+   * A failing write doesn't stop the other writes, the results are emitted in the order of the writes.
+   *
+   * @param writes files to write
+   * @param concurrency maximum number of files written at the same time
+   * @return result of each write
+   */
+  public Flux<FileServerWrite.Result> writeAll(final Collection<FileServerWrite> writes, final int concurrency) {
+    return writeAll(writes, concurrency, UnaryOperator.identity());
+  }
+
+  /**
+   * Writes all files, applying the operator to each single write, for example to add a timeout per write.
+   */
+  Flux<FileServerWrite.Result> writeAll(final Collection<FileServerWrite> writes, final int concurrency, final UnaryOperator<Mono<Void>> operator) {
+    return Flux.fromIterable(writes)
+        .flatMapSequential(write -> operator.apply(write.write(this))
+            .then(Mono.fromSupplier(() -> new FileServerWrite.Result(write, null)))
+            .onErrorResume(e -> Mono.just(new FileServerWrite.Result(write, e))), concurrency);
+  }
+
+  int getWriteConcurrency() {
+    return writeConcurrency;
+  }
+
+  public Mono<Void> writeJson(final String id, final FileServerFile fileServerFile, final FileServerExpireTag expire, final Object object) {
+    final String uriTemplate = fileServerFile.uriTemplate();
+    final RequestBodySpec requestWithUri = putWithUri(uriTemplate, expire, id)
+        .contentType(MediaType.APPLICATION_JSON);
+
+    final RequestHeadersSpec<?> requestWithUriAndBody = requestWithUri.bodyValue(object);
+
+    return retrieve(requestWithUriAndBody, uriTemplate);
+  }
+
+  private Mono<HttpHeaders> putBody(final FileServerFile fileServerFile, final BodyInserter<?, ? super ClientHttpRequest> body,
+      final Consumer<HttpHeaders> requestHeaders, final FileServerExpireTag expire, final String... fileParts) {
+    final String uriTemplate = fileServerFile.uriTemplate();
+    final RequestBodySpec requestWithUri = putWithUri(uriTemplate, expire, fileParts)
+        .contentType(MediaType.APPLICATION_OCTET_STREAM)
+        .headers(requestHeaders);
+
+    final RequestHeadersSpec<?> requestWithUriAndBody = requestWithUri.body(body);
+
+    return retrieveHeaders(requestWithUriAndBody, uriTemplate);
+  }
+
+  private static void compress(final InputStream inputStream, final OutputStream out) {
+    try (inputStream; final OutputStream gzip = new GZIPOutputStream(out, BUFFER_SIZE)) {
+      inputStream.transferTo(gzip);
+    } catch (final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private RequestBodySpec putWithUri(final String uriTemplate, final FileServerExpireTag expire, final String... fileParts) {
+    return fileServerWebClient.put()
+        .uri(uriTemplate,
+            uriBuilder -> uriBuilder.queryParam(FileServerExpireTag.tagKey(), FileServerExpireTag.safeTagValue(expire)).build((Object[]) fileParts));
+  }
+
+  private static Mono<Void> retrieve(final RequestHeadersSpec<?> requestSpec, final String uriTemplate) {
+    return retrieveSpec(requestSpec, uriTemplate)
+        .bodyToMono(Void.class);
+  }
+
+  private static Mono<HttpHeaders> retrieveHeaders(final RequestHeadersSpec<?> requestSpec, final String uriTemplate) {
+    return retrieveSpec(requestSpec, uriTemplate)
+        .toBodilessEntity()
+        .map(ResponseEntity::getHeaders);
+  }
+
+  private static ResponseSpec retrieveSpec(final RequestHeadersSpec<?> requestSpec, final String uriTemplate) {
+    return requestSpec
+        .retrieve()
+        .onStatus(HttpStatusCode::is5xxServerError, clientResponse -> clientResponse.bodyToMono(String.class).map(message -> {
+          LOG.error("Fileserver error while posting to '{}' with message: {}", uriTemplate, message);
+          return new IllegalStateException("Error while posting to fileserver.");
+        }))
+        .onStatus(HttpStatusCode::is4xxClientError, ClientResponse::createError);
+  }
+
+  public Mono<Void> copy(final String sourceId, final String destinationId, final String filename, final FileServerExpireTag expire) {
+    final RequestBodySpec copyRequest = putWithUri(COPY_URI_TEMPLATE, expire, sourceId, destinationId, filename);
+
+    return retrieve(copyRequest, COPY_URI_TEMPLATE);
+  }
+
+  /**
+   * Delete all files on the file server registered under the given id.
+   *
+   * @param id id to delete the files for.
+   */
+  public Mono<Void> deleteFilesForId(final String id) {
+    return fileServerWebClient.delete()
+        .uri(ALL_FILES, uriBuilder -> uriBuilder.build(id))
+        .retrieve()
+        .onStatus(HttpStatusCode::is5xxServerError, clientResponse -> clientResponse.bodyToMono(String.class).map(message -> {
+          LOG.error("Fileserver server error with message: {}", message);
+          return new IllegalStateException("Error while posting to fileserver.");
+        }))
+        // Ignore not found errors on delete requests
+        .onStatus(status -> status.isSameCodeAs(HttpStatus.NOT_FOUND), clientResponse -> Mono.empty())
+        .bodyToMono(Void.class);
+  }
+}
@@ -19,18 +19,35 @@ package nl.aerius.fileserver.client;
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.doReturn;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.springframework.core.io.ByteArrayResource;
@@ -53,9 +70,15 @@ class FileServerClientTest {
 
   private static final String UUID_CODE = "123";
   private static final String FILE_CONTENTS = "test";
+  // SHA-256 checksum of FILE_CONTENTS.
+  private static final String FILE_CONTENTS_CHECKSUM = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+  private static final String CHECKSUM_HEADER = "X-Checksum-SHA256";
   private MockWebServer mockWebServer;
 
   @Mock private FileServerProperties properties;
+  private final FileServerProperties.Timeouts timeouts = new FileServerProperties.Timeouts();
+
+  @TempDir Path tempDir;
 
   private FileServerClient fileServerClient;
 
@@ -64,11 +87,14 @@ class FileServerClientTest {
     mockWebServer = new MockWebServer();
     mockWebServer.start();
     doReturn(String.format("http://localhost:%s", mockWebServer.getPort())).when(properties).getBaseUrl();
+    doReturn(new FileServerProperties.Http()).when(properties).getHttp();
+    doReturn(timeouts).when(properties).getTimeouts();
     fileServerClient = new FileServerClient(WebClient.builder(), properties);
   }
 
   @AfterEach
   void destroy() throws IOException {
+    fileServerClient.dispose();
     mockWebServer.shutdown();
   }
 
@@ -88,6 +114,84 @@ class FileServerClientTest {
         "FileContents from fileService should be available in the result stream handler.");
   }
 
+  @Test
+  void testRetrieveFileCompressed() throws Exception {
+    final String expectedFileName = "fileServiceResponse.json";
+
+    try (final Buffer buffer = new Buffer()) {
+      mockWebServer.enqueue(new MockResponse()
+          .setResponseCode(HttpStatus.OK.value())
+          .addHeader(HttpHeaders.CONTENT_ENCODING, "gzip")
+          .addHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + expectedFileName + "\"")
+          .setBody(buffer.write(gzip(FILE_CONTENTS.getBytes(StandardCharsets.UTF_8)))));
+    }
+    final byte[] result = fileServerClient.retrieveFile(ExampleFileServerFile.VALIDATION, (fileName, inputStream) -> inputStream.readAllBytes(),
+        UUID_CODE);
+    final RecordedRequest recordedRequest = mockWebServer.takeRequest();
+
+    assertTrue(recordedRequest.getHeader(HttpHeaders.ACCEPT_ENCODING).contains("gzip"), "Client should accept compressed responses.");
+    assertArrayEquals(FILE_CONTENTS.getBytes(StandardCharsets.UTF_8), result, "Compressed response should be decompressed.");
+  }
+
+  @Test
+  void testRetrieveFileChecksumMismatch() {
+    try (final Buffer buffer = new Buffer()) {
+      mockWebServer.enqueue(new MockResponse()
+          .setResponseCode(HttpStatus.OK.value())
+          .addHeader(CHECKSUM_HEADER, "0".repeat(64))
+          .addHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"test.json\"")
+          .setBody(buffer.write(FILE_CONTENTS.getBytes(StandardCharsets.UTF_8))));
+    }
+    final ResponseStatusException exception = assertThrows(ResponseStatusException.class,
+        () -> fileServerClient.retrieveFile(ExampleFileServerFile.VALIDATION, (fileName, inputStream) -> inputStream.readAllBytes(), UUID_CODE),
+        "Reading content that doesn't match the checksum sent by the fileService should fail.");
+
+    assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, exception.getStatusCode(), "A checksum mismatch should be an internal error.");
+  }
+
+  @Test
+  void testRetrieveFileStreaming() throws InterruptedException {
+    final String expectedFileName = "fileServiceResponse.json";
+    final byte[] contents = largeContents();
+
+    mockFileServiceResponse(expectedFileName, contents, HttpStatus.OK.value());
+    final FilenameAwareByteArrayResource result = fileServerClient.retrieveFileStreaming(ExampleFileServerFile.VALIDATION,
+        (fileName, inputStream) -> new FilenameAwareByteArrayResource(inputStream.readAllBytes(), fileName), UUID_CODE);
+
+    assertRecordedRequest(HttpMethod.GET, UUID_CODE);
+    assertEquals(expectedFileName, result.getFilename(), "Filename from fileservice should be available in the result stream handler.");
+    assertArrayEquals(contents, result.getByteArray(), "FileContents from fileService should be streamed to the result stream handler.");
+  }
+
+  @Test
+  void testRetrieveFileToPath() throws IOException, InterruptedException {
+    final String expectedFileName = "fileServiceResponse.json";
+    final byte[] contents = largeContents();
+    final Path target = tempDir.resolve("download.json");
+
+    mockFileServiceResponse(expectedFileName, contents, HttpStatus.OK.value());
+    assertEquals(expectedFileName, fileServerClient.retrieveFile(ExampleFileServerFile.VALIDATION, target, UUID_CODE),
+        "Filename from fileservice should be returned.");
+    assertRecordedRequest(HttpMethod.GET, UUID_CODE);
+    assertArrayEquals(contents, Files.readAllBytes(target), "FileContents from fileService should be written to the target.");
+  }
+
+  @Test
+  void testRetrieveFileToPathChecksumMismatch() {
+    final Path target = tempDir.resolve("download.json");
+
+    try (final Buffer buffer = new Buffer()) {
+      mockWebServer.enqueue(new MockResponse()
+          .setResponseCode(HttpStatus.OK.value())
+          .addHeader(CHECKSUM_HEADER, "0".repeat(64))
+          .addHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"test.json\"")
+          .setBody(buffer.write(FILE_CONTENTS.getBytes(StandardCharsets.UTF_8))));
+    }
+    assertThrows(ResponseStatusException.class, () -> fileServerClient.retrieveFile(ExampleFileServerFile.VALIDATION, target, UUID_CODE),
+        "Retrieving content that doesn't match the checksum sent by the fileService should fail.");
+    assertFalse(Files.exists(target), "Content that doesn't match the checksum should not be kept.");
+  }
+
   @Test
   void testRetrieveFileServiceNotFoundError() throws InterruptedException {
     mockFileServiceResponse("", new byte[0], HttpStatus.NOT_FOUND.value());
@@ -137,6 +241,144 @@ class FileServerClientTest {
     assertRecordedRequest(HttpMethod.PUT, UUID_CODE);
   }
 
+  @Test
+  void testWriteCompressed() throws Exception {
+    doReturn(true).when(properties).isCompressUploads();
+    fileServerClient = new FileServerClient(WebClient.builder(), properties);
+    mockFileServiceResponse(HttpStatus.OK.value());
+
+    fileServerClient.write(ExampleFileServerFile.VALIDATION, new ByteArrayInputStream(FILE_CONTENTS.getBytes(StandardCharsets.UTF_8)),
+        FileServerExpireTag.NEVER, UUID_CODE);
+    final RecordedRequest recordedRequest = mockWebServer.takeRequest();
+
+    assertEquals("gzip", recordedRequest.getHeader(HttpHeaders.CONTENT_ENCODING), "Upload should be sent compressed.");
+    try (final InputStream in = new GZIPInputStream(recordedRequest.getBody().inputStream())) {
+      assertArrayEquals(FILE_CONTENTS.getBytes(StandardCharsets.UTF_8), in.readAllBytes(), "Compressed upload should contain the content.");
+    }
+  }
+
+  @Test
+  void testWriteChecksum() {
+    mockWebServer.enqueue(new MockResponse().setResponseCode(HttpStatus.OK.value()).addHeader(CHECKSUM_HEADER, FILE_CONTENTS_CHECKSUM));
+    assertDoesNotThrow(() -> fileServerClient.write(ExampleFileServerFile.VALIDATION,
+        new ByteArrayInputStream(FILE_CONTENTS.getBytes(StandardCharsets.UTF_8)), FileServerExpireTag.NEVER, UUID_CODE),
+        "Write should succeed when the stored content matches the content sent.");
+
+    mockWebServer.enqueue(new MockResponse().setResponseCode(HttpStatus.OK.value()).addHeader(CHECKSUM_HEADER, "0".repeat(64)));
+    assertThrows(IllegalStateException.class, () -> fileServerClient.write(ExampleFileServerFile.VALIDATION,
+        new ByteArrayInputStream(FILE_CONTENTS.getBytes(StandardCharsets.UTF_8)), FileServerExpireTag.NEVER, UUID_CODE),
+        "Write should fail when the stored content doesn't match the content sent.");
+  }
+
+  @Test
+  void testWritePath() throws IOException, InterruptedException {
+    final byte[] contents = largeContents();
+    final Path source = tempDir.resolve("upload.json");
+
+    Files.write(source, contents);
+    mockWebServer.enqueue(new MockResponse().setResponseCode(HttpStatus.OK.value()).addHeader(CHECKSUM_HEADER, checksum(contents)));
+    fileServerClient.write(ExampleFileServerFile.VALIDATION, source, FileServerExpireTag.NEVER, UUID_CODE);
+    final RecordedRequest recordedRequest = mockWebServer.takeRequest();
+
+    assertEquals(String.valueOf(contents.length), recordedRequest.getHeader(HttpHeaders.CONTENT_LENGTH),
+        "Upload from a file should be sent with the file size as content length.");
+    assertNull(recordedRequest.getHeader(CHECKSUM_HEADER), "Upload from a file should not be sent with its checksum by default.");
+    assertArrayEquals(contents, recordedRequest.getBody().readByteArray(), "Upload from a file should contain the file content.");
+  }
+
+  @Test
+  void testWritePathChecksumMismatch() throws IOException {
+    final Path source = tempDir.resolve("upload.json");
+
+    Files.writeString(source, FILE_CONTENTS);
+    mockWebServer.enqueue(new MockResponse().setResponseCode(HttpStatus.OK.value()).addHeader(CHECKSUM_HEADER, "0".repeat(64)));
+    assertThrows(IllegalStateException.class, () -> fileServerClient.write(ExampleFileServerFile.VALIDATION, source, FileServerExpireTag.NEVER,
+        UUID_CODE), "Write should fail when the stored content doesn't match the file sent.");
+  }
+
+  @Test
+  void testWritePathSendChecksum() throws IOException, InterruptedException {
+    final byte[] contents = largeContents();
+    final Path source = tempDir.resolve("upload.json");
+
+    doReturn(true).when(properties).isSendFileChecksum();
+    fileServerClient.dispose();
+    fileServerClient = new FileServerClient(WebClient.builder(), properties);
+    Files.write(source, contents);
+    mockFileServiceResponse(HttpStatus.OK.value());
+    fileServerClient.write(ExampleFileServerFile.VALIDATION, source, FileServerExpireTag.NEVER, UUID_CODE);
+    final RecordedRequest recordedRequest = mockWebServer.takeRequest();
+
+    assertEquals(checksum(contents), recordedRequest.getHeader(CHECKSUM_HEADER), "Upload from a file should be sent with its checksum.");
+    assertArrayEquals(contents, recordedRequest.getBody().readByteArray(), "Upload from a file should contain the file content.");
+  }
+
+  @Test
+  void testDisposeKeepsSharedReactiveClient() {
+    final ReactiveFileServerClient reactiveClient = new ReactiveFileServerClient(WebClient.builder(), properties);
+
+    try {
+      new FileServerClient(reactiveClient).dispose();
+      mockFileServiceResponse(HttpStatus.OK.value());
+      assertDoesNotThrow(() -> reactiveClient.writeJson(UUID_CODE, ExampleFileServerFile.VALIDATION, FileServerExpireTag.NEVER, "test")
+          .block(), "Reactive client passed to a disposed client should still be usable.");
+    } finally {
+      reactiveClient.dispose();
+    }
+  }
+
+  @Test
+  void testWriteByteBuffer() throws InterruptedException {
+    final byte[] contents = FILE_CONTENTS.getBytes(StandardCharsets.UTF_8);
+    final ByteBuffer buffer = ByteBuffer.wrap(contents);
+
+    mockWebServer.enqueue(new MockResponse().setResponseCode(HttpStatus.OK.value()).addHeader(CHECKSUM_HEADER, FILE_CONTENTS_CHECKSUM));
+    fileServerClient.write(ExampleFileServerFile.VALIDATION, buffer, FileServerExpireTag.NEVER, UUID_CODE);
+    final RecordedRequest recordedRequest = mockWebServer.takeRequest();
+
+    assertEquals(String.valueOf(contents.length), recordedRequest.getHeader(HttpHeaders.CONTENT_LENGTH),
+        "Upload from a buffer should be sent with the remaining size as content length.");
+    assertEquals(FILE_CONTENTS_CHECKSUM, recordedRequest.getHeader(CHECKSUM_HEADER), "Upload from a buffer should be sent with its checksum.");
+    assertArrayEquals(contents, recordedRequest.getBody().readByteArray(), "Upload from a buffer should contain the buffer content.");
+    assertEquals(0, buffer.position(), "Upload from a buffer should not change the position of the buffer.");
+  }
+
+  @Test
+  void testWriteAll() {
+    mockFileServiceResponse(HttpStatus.OK.value());
+    mockWebServer.enqueue(new MockResponse().setResponseCode(HttpStatus.INTERNAL_SERVER_ERROR.value()).setBody("error"));
+    mockFileServiceResponse(HttpStatus.OK.value());
+    final List<FileServerWrite> writes = List.of(
+        FileServerWrite.json("1", ExampleFileServerFile.VALIDATION, FileServerExpireTag.NEVER, "test"),
+        FileServerWrite.of(ExampleFileServerFile.VALIDATION, new ByteArrayInputStream(FILE_CONTENTS.getBytes(StandardCharsets.UTF_8)),
+            FileServerExpireTag.NEVER, "2"),
+        FileServerWrite.of(ExampleFileServerFile.VALIDATION, ByteBuffer.wrap(FILE_CONTENTS.getBytes(StandardCharsets.UTF_8)),
+            FileServerExpireTag.NEVER, "3"));
+
+    // Concurrency of 1 to get the responses in the order of the writes.
+    final List<FileServerWrite.Result> results = fileServerClient.writeAll(writes, 1);
+
+    assertEquals(writes.size(), results.size(), "There should be a result for each write.");
+    for (int i = 0; i < writes.size(); i++) {
+      assertEquals(writes.get(i), results.get(i).write(), "Results should be in the order of the writes.");
+    }
+    assertTrue(results.get(0).isSuccess(), "First write should succeed.");
+    assertFalse(results.get(1).isSuccess(), "Second write should fail on the fileService error.");
+    assertTrue(results.get(1).error() instanceof IllegalStateException, "Failed write should have the error it failed with.");
+    assertTrue(results.get(2).isSuccess(), "A failed write should not stop the other writes.");
+  }
+
+  @Test
+  void testWriteTimeout() {
+    timeouts.setWrite(Duration.ofMillis(200));
+    fileServerClient = new FileServerClient(WebClient.builder(), properties);
+    mockWebServer.enqueue(new MockResponse().setResponseCode(HttpStatus.OK.value()).setHeadersDelay(2, TimeUnit.SECONDS));
+
+    assertThrows(IllegalStateException.class,
+        () -> fileServerClient.writeJson(UUID_CODE, ExampleFileServerFile.VALIDATION, FileServerExpireTag.NEVER, "test"),
+        "Write should fail when it takes longer than the configured write timeout.");
+  }
+
   @Test
   void testCopy() throws InterruptedException {
     mockFileServiceResponse(HttpStatus.OK.value());
@@ -187,6 +429,29 @@ class FileServerClientTest {
     }
   }
 
+  /**
+   * Returns contents larger than the buffers used to stream a download.
+   */
+  private static byte[] largeContents() {
+    final byte[] contents = new byte[1_000_000];
+
+    new Random(1).nextBytes(contents);
+    return contents;
+  }
+
+  private static String checksum(final byte[] content) {
+    return HexFormat.of().formatHex(ChecksumInputStream.messageDigest().digest(content));
+  }
+
+  private static byte[] gzip(final byte[] content) throws IOException {
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+    try (final OutputStream out = new GZIPOutputStream(compressed)) {
+      out.write(content);
+    }
+    return compressed.toByteArray();
+  }
+
   static class FilenameAwareByteArrayResource extends ByteArrayResource {
     private final String filename;
 
@@ -0,0 +1,212 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.client;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.Mockito.doReturn;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
+import org.springframework.core.io.buffer.DefaultDataBufferFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.server.ResponseStatusException;
+
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Test class for {@link ReactiveFileServerClient}.
+ */
+@ExtendWith(MockitoExtension.class)
+class ReactiveFileServerClientTest {
+
+  private static final String UUID_CODE = "123";
+  private static final byte[] FILE_CONTENTS = "test".getBytes(StandardCharsets.UTF_8);
+  // SHA-256 checksum of FILE_CONTENTS.
+  private static final String FILE_CONTENTS_CHECKSUM = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+  private static final String CHECKSUM_HEADER = "X-Checksum-SHA256";
+  private MockWebServer mockWebServer;
+
+  @Mock private FileServerProperties properties;
+  private final FileServerProperties.Http http = new FileServerProperties.Http();
+
+  private ReactiveFileServerClient client;
+
+  @BeforeEach
+  void init() throws IOException {
+    mockWebServer = new MockWebServer();
+    mockWebServer.start();
+    doReturn(String.format("http://localhost:%s", mockWebServer.getPort())).when(properties).getBaseUrl();
+    doReturn(http).when(properties).getHttp();
+    doReturn(new FileServerProperties.Timeouts()).when(properties).getTimeouts();
+    client = new ReactiveFileServerClient(WebClient.builder(), properties);
+  }
+
+  @AfterEach
+  void destroy() throws IOException {
+    client.dispose();
+    mockWebServer.shutdown();
+  }
+
+  @Test
+  void testWriteIsLazy() throws InterruptedException {
+    mockWebServer.enqueue(new MockResponse().setResponseCode(HttpStatus.OK.value()));
+    final Mono<Void> write = client.write(ExampleFileServerFile.VALIDATION, new ByteArrayInputStream(FILE_CONTENTS), FileServerExpireTag.NEVER,
+        UUID_CODE);
+
+    assertEquals(0, mockWebServer.getRequestCount(), "No request should be made before the write is subscribed to.");
+    write.block();
+    final RecordedRequest recordedRequest = mockWebServer.takeRequest();
+
+    assertArrayEquals(FILE_CONTENTS, recordedRequest.getBody().readByteArray(), "Upload should contain the content of the input stream.");
+  }
+
+  @Test
+  void testWritePublisher() throws InterruptedException {
+    mockWebServer.enqueue(new MockResponse().setResponseCode(HttpStatus.OK.value()).addHeader(CHECKSUM_HEADER, FILE_CONTENTS_CHECKSUM));
+    final Flux<DataBuffer> content = Flux.just(FILE_CONTENTS).map(DefaultDataBufferFactory.sharedInstance::wrap);
+
+    client.write(ExampleFileServerFile.VALIDATION, content, FileServerExpireTag.NEVER, UUID_CODE).block();
+    final RecordedRequest recordedRequest = mockWebServer.takeRequest();
+
+    assertArrayEquals(FILE_CONTENTS, recordedRequest.getBody().readByteArray(), "Upload should contain the content of the publisher.");
+  }
+
+  @Test
+  void testWritePublisherChecksumMismatch() {
+    mockWebServer.enqueue(new MockResponse().setResponseCode(HttpStatus.OK.value()).addHeader(CHECKSUM_HEADER, "0".repeat(64)));
+    final Flux<DataBuffer> content = Flux.just(FILE_CONTENTS).map(DefaultDataBufferFactory.sharedInstance::wrap);
+    final Mono<Void> write = client.write(ExampleFileServerFile.VALIDATION, content, FileServerExpireTag.NEVER, UUID_CODE);
+
+    assertThrows(IllegalStateException.class, write::block, "Write should fail when the stored content doesn't match the content sent.");
+  }
+
+  @Test
+  void testRetrieveFile() {
+    mockFileServiceResponse(FILE_CONTENTS_CHECKSUM);
+
+    final byte[] result = client.retrieveFile(ExampleFileServerFile.VALIDATION, UUID_CODE)
+        .flatMap(entity -> DataBufferUtils.join(entity.getBody()))
+        .map(ReactiveFileServerClientTest::toBytes)
+        .block();
+
+    assertArrayEquals(FILE_CONTENTS, result, "Retrieved content should be the content sent by the fileService.");
+  }
+
+  @Test
+  void testRetrieveFileChecksumMismatch() {
+    mockFileServiceResponse("0".repeat(64));
+    final Mono<DataBuffer> retrieve = client.retrieveFile(ExampleFileServerFile.VALIDATION, UUID_CODE)
+        .flatMap(entity -> DataBufferUtils.join(entity.getBody()));
+
+    final ResponseStatusException exception = assertThrows(ResponseStatusException.class, retrieve::block,
+        "Content that doesn't match the checksum sent by the fileService should end with an error.");
+    assertEquals(HttpStatus.INTERNAL_SERVER_ERROR, exception.getStatusCode(), "A checksum mismatch should be an internal error.");
+  }
+
+  @Test
+  void testConcurrentWrites() {
+    final int writes = 10;
+
+    for (int i = 0; i < writes; i++) {
+      mockWebServer.enqueue(new MockResponse().setResponseCode(HttpStatus.OK.value()));
+    }
+    Flux.range(0, writes)
+        .flatMap(i -> client.writeJson(String.valueOf(i), ExampleFileServerFile.VALIDATION, FileServerExpireTag.NEVER, "test"))
+        .blockLast();
+
+    assertEquals(writes, mockWebServer.getRequestCount(), "All writes should be made.");
+  }
+
+  @Test
+  void testWriteAll() {
+    doReturn(4).when(properties).getWriteConcurrency();
+    client = new ReactiveFileServerClient(WebClient.builder(), properties);
+    final int writes = 10;
+
+    for (int i = 0; i < writes; i++) {
+      mockWebServer.enqueue(new MockResponse().setResponseCode(HttpStatus.OK.value()));
+    }
+    final List<FileServerWrite> batch = IntStream.range(0, writes)
+        .mapToObj(i -> FileServerWrite.json(String.valueOf(i), ExampleFileServerFile.VALIDATION, FileServerExpireTag.NEVER, "test"))
+        .toList();
+    final List<FileServerWrite.Result> results = client.writeAll(batch).collectList().block();
+
+    assertEquals(writes, mockWebServer.getRequestCount(), "All writes should be made.");
+    assertEquals(batch, results.stream().map(FileServerWrite.Result::write).toList(), "Results should be in the order of the writes.");
+    assertTrue(results.stream().allMatch(FileServerWrite.Result::isSuccess), "All writes should succeed.");
+  }
+
+  @Test
+  void testHttp2() throws IOException {
+    // Restart the fileService only accepting HTTP/2 without TLS.
+    mockWebServer.shutdown();
+    mockWebServer = new MockWebServer();
+    mockWebServer.setProtocols(List.of(Protocol.H2_PRIOR_KNOWLEDGE));
+    mockWebServer.start();
+    mockWebServer.enqueue(new MockResponse().setResponseCode(HttpStatus.OK.value()));
+    doReturn(String.format("http://localhost:%s", mockWebServer.getPort())).when(properties).getBaseUrl();
+    http.setHttp2(true);
+    client.dispose();
+    client = new ReactiveFileServerClient(WebClient.builder(), properties);
+
+    assertDoesNotThrow(() -> client.writeJson(UUID_CODE, ExampleFileServerFile.VALIDATION, FileServerExpireTag.NEVER, "test").block(),
+        "Write should be made over HTTP/2 to a fileService only accepting HTTP/2.");
+    assertEquals(1, mockWebServer.getRequestCount(), "The fileService should have received the write.");
+  }
+
+  private void mockFileServiceResponse(final String checksum) {
+    try (final Buffer buffer = new Buffer()) {
+      mockWebServer.enqueue(new MockResponse()
+          .setResponseCode(HttpStatus.OK.value())
+          .addHeader(CHECKSUM_HEADER, checksum)
+          .addHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"test.json\"")
+          .setBody(buffer.write(FILE_CONTENTS)));
+    }
+  }
+
+  private static byte[] toBytes(final DataBuffer buffer) {
+    final byte[] bytes = new byte[buffer.readableByteCount()];
+
+    buffer.read(bytes);
+    DataBufferUtils.release(buffer);
+    return bytes;
+  }
+}
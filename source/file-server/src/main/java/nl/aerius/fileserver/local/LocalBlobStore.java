@@ -0,0 +1,259 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.local;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import nl.aerius.fileserver.storage.ChecksumInputStream;
+
+/**
+ * Content-addressed store of file contents, so identical files are stored only once.
+ *
+ * The content of a file is stored as blob named after the SHA-256 hash of the content, computed while the content streams in.
+ * Content stored encoded, for example compressed, is stored in a blob with the encoding appended to the name,
+ * so a file is never linked to a blob with the same content but another encoding.
+ * A stored file ({@code uuid/filename}) is a hard link to its blob, so files are read as any other file.
+ * The number of links of a blob is its reference count: a blob with a single link is no longer referenced by any file
+ * and is removed by a collect pass, which runs in the background after files are deleted.
+ * A collect pass only checks the blobs of the deleted files. All blobs are only checked at startup, to remove blobs left unreferenced
+ * by files deleted just before a restart, and when the blob of a deleted file is not known.
+ */
+class LocalBlobStore {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LocalBlobStore.class);
+
+  static final String BLOBS_DIRECTORY = ".blobs";
+  private static final String TEMP_DIRECTORY = ".tmp";
+  private static final String NLINK_ATTRIBUTE = "unix:nlink";
+  // Length of the hash prefix used as sub directory, to limit the number of blobs in a single directory.
+  private static final int PREFIX_LENGTH = 2;
+
+  private final LocalFileWriter writer;
+  private final Path blobsDirectory;
+  private final Path tempDirectory;
+  private final ExecutorService collectExecutor;
+  private final AtomicBoolean collectPending = new AtomicBoolean();
+  private final AtomicBoolean collectAllRequested = new AtomicBoolean();
+  // Names of the blobs to check in the next collect pass.
+  private final Set<String> collectCandidates = ConcurrentHashMap.newKeySet();
+
+  LocalBlobStore(final Path location, final LocalFileWriter writer) throws IOException {
+    if (!FileSystems.getDefault().supportedFileAttributeViews().contains("unix")) {
+      throw new IllegalStateException("Deduplicating storage requires a file system with hard links and link counts.");
+    }
+    this.writer = writer;
+    blobsDirectory = location.resolve(BLOBS_DIRECTORY);
+    tempDirectory = blobsDirectory.resolve(TEMP_DIRECTORY);
+    Files.createDirectories(tempDirectory);
+    // Remove leftovers of uploads interrupted by a restart.
+    try (final Stream<Path> temps = Files.list(tempDirectory)) {
+      for (final Path temp : (Iterable<Path>) temps::iterator) {
+        Files.deleteIfExists(temp);
+      }
+    }
+    final CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("local-blob-collect-");
+
+    threadFactory.setDaemon(true);
+    collectExecutor = Executors.newSingleThreadExecutor(threadFactory);
+    scheduleCollectAll();
+  }
+
+  void shutdown() {
+    collectExecutor.shutdown();
+  }
+
+  /**
+   * Stores the content and creates a file at the given path linked to the blob with the content.
+   * If a blob with the same content already exists, the new content is discarded and the file is linked to the existing blob.
+   * The file is created under a new (temporary) name, the caller (atomically) moves it into place.
+   * The file links to the content, so only the directory it's moved to needs to be synced for the file to be durable, not the blob directory.
+   *
+   * @param in content to store, computing the checksum the blob is named after
+   * @param link path of the file to create, which must not exist
+   * @param encoder function returning a stream with the encoded content to store, for example compressed
+   * @param encoding name of the encoding of the encoder, or null when the content is stored as is
+   * @return the SHA-256 checksum of the content, which is also the name of the blob
+   * @throws IOException in case the content could not be read or stored
+   */
+  String store(final ChecksumInputStream in, final Path link, final UnaryOperator<InputStream> encoder, final String encoding) throws IOException {
+    final Path temp = tempDirectory.resolve(UUID.randomUUID() + ".tmp");
+
+    try {
+      final String hash = writer.write(in, temp, encoder);
+      final Path blob = blobPath(blobName(hash, encoding));
+
+      if (!linkExisting(link, blob)) {
+        // Link the file before moving the content into the blobs, so a collect pass never sees the new blob unreferenced.
+        Files.createLink(link, temp);
+        Files.createDirectories(blob.getParent());
+        Files.move(temp, blob, StandardCopyOption.ATOMIC_MOVE);
+      }
+      return hash;
+    } finally {
+      Files.deleteIfExists(temp);
+    }
+  }
+
+  private static boolean linkExisting(final Path link, final Path blob) throws IOException {
+    try {
+      Files.createLink(link, blob);
+      return true;
+    } catch (final NoSuchFileException e) {
+      // No blob with the same content, or it was just collected.
+      return false;
+    }
+  }
+
+  /**
+   * Returns the name of the blob of content with the given hash, stored with the given encoding.
+   *
+   * @param hash SHA-256 checksum of the content
+   * @param encoding name of the encoding the content is stored with, or null when the content is stored as is
+   * @return name of the blob
+   */
+  static String blobName(final String hash, final String encoding) {
+    return encoding == null ? hash : hash + "." + encoding;
+  }
+
+  /**
+   * Schedules a collect pass in the background checking the given blobs, which may no longer be referenced after files were deleted.
+   *
+   * @param blobNames names of the blobs to check
+   */
+  void scheduleCollect(final Collection<String> blobNames) {
+    collectCandidates.addAll(blobNames);
+    scheduleCollectPass();
+  }
+
+  /**
+   * Schedules a collect pass in the background checking all blobs.
+   */
+  void scheduleCollectAll() {
+    collectAllRequested.set(true);
+    scheduleCollectPass();
+  }
+
+  /**
+   * Schedules a collect pass in the background, unless one is already waiting to run.
+   */
+  private void scheduleCollectPass() {
+    if (collectPending.compareAndSet(false, true)) {
+      collectExecutor.execute(() -> {
+        collectPending.set(false);
+        try {
+          if (collectAllRequested.getAndSet(false)) {
+            // Checking all blobs covers the candidates as well.
+            collectCandidates.clear();
+            collect();
+          } else {
+            collect(takeCollectCandidates());
+          }
+        } catch (final IOException | UncheckedIOException e) {
+          LOG.warn("Failed to remove unreferenced blobs", e);
+        }
+      });
+    }
+  }
+
+  private List<String> takeCollectCandidates() {
+    final List<String> blobNames = new ArrayList<>();
+
+    for (final String blobName : collectCandidates) {
+      if (collectCandidates.remove(blobName)) {
+        blobNames.add(blobName);
+      }
+    }
+    return blobNames;
+  }
+
+  /**
+   * Removes all blobs that are no longer referenced by a stored file.
+   *
+   * @return number of removed blobs
+   * @throws IOException in case the blobs could not be listed
+   */
+  int collect() throws IOException {
+    int removed = 0;
+
+    try (final Stream<Path> blobs = Files.find(blobsDirectory, 2, (path, attributes) -> attributes.isRegularFile())) {
+      for (final Path blob : (Iterable<Path>) blobs::iterator) {
+        if (!blob.getParent().equals(tempDirectory) && isUnreferenced(blob)) {
+          Files.deleteIfExists(blob);
+          removed++;
+        }
+      }
+    }
+    LOG.debug("Removed {} unreferenced blobs", removed);
+    return removed;
+  }
+
+  /**
+   * Removes the given blobs when they are no longer referenced by a stored file.
+   *
+   * @param blobNames names of the blobs to check
+   * @return number of removed blobs
+   * @throws IOException in case a blob could not be checked or removed
+   */
+  int collect(final Collection<String> blobNames) throws IOException {
+    int removed = 0;
+
+    for (final String blobName : blobNames) {
+      final Path blob = blobPath(blobName);
+
+      if (isUnreferenced(blob)) {
+        Files.deleteIfExists(blob);
+        removed++;
+      }
+    }
+    LOG.debug("Removed {} of {} checked blobs", removed, blobNames.size());
+    return removed;
+  }
+
+  private static boolean isUnreferenced(final Path blob) throws IOException {
+    try {
+      return (Integer) Files.getAttribute(blob, NLINK_ATTRIBUTE) == 1;
+    } catch (final NoSuchFileException e) {
+      return false;
+    }
+  }
+
+  Path blobPath(final String name) {
+    return blobsDirectory.resolve(name.substring(0, PREFIX_LENGTH)).resolve(name);
+  }
+}
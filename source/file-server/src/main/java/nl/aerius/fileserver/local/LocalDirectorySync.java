@@ -0,0 +1,109 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.local;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Forces changes to directory entries (created, renamed and linked files) to disk, with group commit.
+ *
+ * A directory fsync persists all changes made in the directory before it started. Therefore concurrent requests to sync the same directory
+ * are combined: while a sync runs, new requests wait and are all covered by the next single sync.
+ * This keeps throughput of concurrent uploads up, as they don't each need their own fsync of the (shared) directory.
+ * Locks are used instead of synchronized, so waiting virtual threads don't pin their carrier thread.
+ */
+class LocalDirectorySync {
+
+  private final Map<Path, Group> groups = new ConcurrentHashMap<>();
+
+  /**
+   * Sync state of a single directory.
+   */
+  private static class Group {
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+    // Number of sync requests received, and the number of requests covered by completed syncs.
+    private long requestedCount;
+    private long syncedCount;
+    private boolean syncing;
+  }
+
+  /**
+   * Forces all changes made in the directory before this call to disk.
+   *
+   * @param directory directory to sync
+   * @throws IOException in case the directory could not be synced
+   */
+  void sync(final Path directory) throws IOException {
+    final Group group = groups.computeIfAbsent(directory, k -> new Group());
+
+    group.lock.lock();
+    try {
+      final long ticket = ++group.requestedCount;
+
+      while (group.syncedCount < ticket) {
+        if (group.syncing) {
+          group.synced.awaitUninterruptibly();
+        } else {
+          syncGroup(directory, group);
+        }
+      }
+      if (!group.syncing && group.syncedCount == group.requestedCount) {
+        // No one is waiting for this directory, so the state can be removed. A new request will create a new group.
+        groups.remove(directory, group);
+      }
+    } finally {
+      group.lock.unlock();
+    }
+  }
+
+  /**
+   * Syncs the directory for all requests received until now. Called with the lock held, which is released while syncing.
+   */
+  private static void syncGroup(final Path directory, final Group group) throws IOException {
+    final long coveredCount = group.requestedCount;
+    boolean success = false;
+
+    group.syncing = true;
+    group.lock.unlock();
+    try {
+      force(directory);
+      success = true;
+    } finally {
+      group.lock.lock();
+      group.syncing = false;
+      if (success) {
+        group.syncedCount = coveredCount;
+      }
+      // On failure a waiting request takes over and tries again, with its own error reported if it fails as well.
+      group.synced.signalAll();
+    }
+  }
+
+  static void force(final Path directory) throws IOException {
+    try (final FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+      channel.force(true);
+    }
+  }
+}
@@ -17,21 +17,24 @@
 package nl.aerius.fileserver.local;
 
 import java.io.IOException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Profile;
-import org.springframework.core.io.FileUrlResource;
-import org.springframework.core.io.Resource;
-import org.springframework.http.ContentDisposition;
-import org.springframework.http.HttpHeaders;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.HttpStatus;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RestController;
 
 import nl.aerius.fileserver.storage.FileController;
+import nl.aerius.fileserver.storage.StorageCompression;
 import nl.aerius.fileserver.storage.StorageService;
 import nl.aerius.fileserver.util.FilenameUtil;
 
@@ -39,44 +42,71 @@ import nl.aerius.fileserver.util.FilenameUtil;
  * Controller to handle the HTTP requests to the file server.
  */
 @RestController
+@EnableConfigurationProperties(LocalStorageProperties.class)
 @Profile("local")
 class LocalFileController extends FileController {
 
   private static final Logger LOG = LoggerFactory.getLogger(LocalFileController.class);
 
+  private final StorageCompression compression;
+
   @Autowired
-  public LocalFileController(final StorageService storageService) {
+  public LocalFileController(final StorageService storageService, final LocalStorageProperties properties) {
     super(storageService);
+    compression = new StorageCompression(properties.getCompression());
     LOG.info("Starting file controller with Local File Storage");
   }
 
   /**
-   * Retrieve the file belonging to the given uuid and filename
+   * Retrieve the file belonging to the given uuid and filename.
+   * Supports conditional requests with If-None-Match or If-Modified-Since, and range requests.
+   * The ETag is based on the checksum of the content when known, which is also returned in the checksum header.
+   * Files stored compressed, or configured to be compressed on the fly, are sent compressed to clients accepting the gzip content encoding.
    *
    * @param uuid uuid of file to get
    * @param filename filename of the file
-   * @return returns the file or not found status if not present
+   * @param request HTTP request
+   * @param response HTTP response the file is written to, or a not found status if not present
    */
   @GetMapping(FILE_PATH)
-  public ResponseEntity<Resource> getFile(final @PathVariable String uuid, final @PathVariable String filename) {
+  public void getFile(final @PathVariable String uuid, final @PathVariable String filename, final HttpServletRequest request,
+      final HttpServletResponse response) {
+    final Path file;
+
     try {
       FilenameUtil.validateParameters(uuid, filename);
       LOG.debug("Get file {}/{}", uuid, filename);
-      final String file = storageService.getFile(uuid, filename);
-
-      LOG.debug("Returning file: {}", file);
-      final FileUrlResource resource = new FileUrlResource(file);
-      final HttpHeaders headers = new HttpHeaders();
-      final ContentDisposition contentDisposition = ContentDisposition.attachment().filename(filename).build();
-
-      headers.setContentDisposition(contentDisposition);
-      return ResponseEntity.ok().headers(headers).body(resource);
+      file = Path.of(storageService.getFile(uuid, filename));
     } catch (final IOException e) {
       LOG.trace("IOException when trying to get a file", e);
+      response.setStatus(HttpStatus.NOT_FOUND.value());
+      return;
     } catch (final RuntimeException e) {
       LOG.warn("RuntimeException when trying to get a file", e);
+      response.setStatus(HttpStatus.NOT_FOUND.value());
+      return;
+    }
+    try {
+      LOG.debug("Returning file: {}", file);
+      LocalFileSender.send(file, filename, storageService.getChecksum(uuid, filename), isStoredCompressed(uuid, filename, file),
+          compression.isResponseCompressed(filename), request, response);
+    } catch (final NoSuchFileException e) {
+      LOG.trace("File deleted while trying to get a file", e);
+      response.setStatus(HttpStatus.NOT_FOUND.value());
+    } catch (final IOException e) {
+      // Most likely the client closed the connection, nothing more to report to the client.
+      LOG.trace("IOException when trying to send a file", e);
     }
-    return ResponseEntity.notFound().build();
   }
 
+  /**
+   * Returns if the file is stored compressed. This depends on how the file was stored, not on the current compression configuration.
+   * When the encoding of the file was not recorded, a file that may have been stored compressed is checked for the gzip header.
+   */
+  private boolean isStoredCompressed(final String uuid, final String filename, final Path file) throws IOException {
+    final String contentEncoding = storageService.getContentEncoding(uuid, filename);
+
+    return contentEncoding == null ? compression.mayBeCompressed(filename) && LocalFileSender.isGzip(file)
+        : StorageCompression.GZIP.equals(contentEncoding);
+  }
 }
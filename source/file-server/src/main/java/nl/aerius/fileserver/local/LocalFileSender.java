@@ -0,0 +1,307 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.local;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import nl.aerius.fileserver.storage.FileController;
+import nl.aerius.fileserver.storage.StorageCompression;
+
+/**
+ * Writes a locally stored file to the HTTP response.
+ *
+ * Supports conditional requests (ETag and Last-Modified, answered with 304 Not Modified) and single range requests (answered with 206 Partial
+ * Content), so clients can revalidate and resume downloads. When the servlet container supports it the file is sent with sendfile, meaning
+ * the content is copied by the kernel directly from the file to the socket without passing through user-space buffers. Otherwise the file is
+ * transferred with {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+ *
+ * Files are replaced while they're being sent when stored again. Therefore the file is opened before the response headers are determined,
+ * and the content is sent from that open file, so it matches the Content-Length, ETag and Content-Range sent. With sendfile the container
+ * opens the file by its path after the request has been handled. Sendfile is therefore only used when the file at the path is still the
+ * file the headers were determined from, checked just before handing it to the container. Otherwise it's sent from the open file.
+ *
+ * A file stored compressed is sent as is with the gzip content encoding when the client accepts it, and decompressed otherwise.
+ * Ranges of a compressed file are ranges of the compressed content, therefore range requests are not supported when the file is decompressed.
+ * A file not stored compressed can be compressed on the fly for clients accepting it, in which case range requests are not supported either.
+ */
+final class LocalFileSender {
+
+  // Tomcat request attributes to let the connector send a file with sendfile after the request has been handled.
+  private static final String SENDFILE_SUPPORTED_ATTRIBUTE = "org.apache.tomcat.sendfile.support";
+  private static final String SENDFILE_FILENAME_ATTRIBUTE = "org.apache.tomcat.sendfile.filename";
+  private static final String SENDFILE_START_ATTRIBUTE = "org.apache.tomcat.sendfile.start";
+  private static final String SENDFILE_END_ATTRIBUTE = "org.apache.tomcat.sendfile.end";
+
+  private static final String BYTES = "bytes";
+
+  // First bytes of gzip compressed content.
+  private static final int GZIP_MAGIC_1 = 0x1f;
+  private static final int GZIP_MAGIC_2 = 0x8b;
+  private static final int COMPRESS_BUFFER_SIZE = 64 * 1024;
+
+  private LocalFileSender() {
+    // Util class
+  }
+
+  /**
+   * Writes the file, or the requested range of the file, to the response.
+   *
+   * @param file path to the file to send
+   * @param filename name of the file as set in the content disposition
+   * @param checksum SHA-256 checksum of the content, or null if not known
+   * @param compressed true if the file is stored compressed
+   * @param compressResponse true if the file, when not stored compressed, should be compressed for clients accepting gzip
+   * @param request HTTP request
+   * @param response HTTP response
+   * @throws IOException in case the file could not be read or the response could not be written
+   */
+  static void send(final Path file, final String filename, final String checksum, final boolean compressed, final boolean compressResponse,
+      final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+    try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      send(file, channel, filename, checksum, compressed, compressResponse, request, response);
+    }
+  }
+
+  private static void send(final Path file, final FileChannel channel, final String filename, final String checksum, final boolean compressed,
+      final boolean compressResponse, final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+    final BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+    // The size of the open file, which is the content sent, also when the file was replaced since it was opened.
+    final long length = channel.size();
+    final long lastModified = attributes.lastModifiedTime().toMillis();
+    // Whether the response depends on the Accept-Encoding of the request.
+    final boolean negotiated = compressed || compressResponse;
+    final boolean encoded = negotiated && acceptsGzip(request);
+    // The compressed and decompressed content are different representations of the file, and therefore must have different ETags.
+    final String eTag = eTag(checksum, length, lastModified, encoded ? StorageCompression.GZIP : null);
+
+    if (negotiated) {
+      response.setHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+    }
+    // Sets the ETag and Last-Modified headers, and the 304 or 412 status if the conditional request headers require it.
+    if (new ServletWebRequest(request, response).checkNotModified(eTag, lastModified)) {
+      return;
+    }
+    if (checksum != null) {
+      response.setHeader(FileController.CHECKSUM_HEADER, checksum);
+    }
+    response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment().filename(filename).build().toString());
+    response.setContentType(MediaTypeFactory.getMediaType(filename).orElse(MediaType.APPLICATION_OCTET_STREAM).toString());
+    if (compressed && !encoded) {
+      sendDecompressed(channel, request, response);
+      return;
+    }
+    if (encoded) {
+      response.setHeader(HttpHeaders.CONTENT_ENCODING, StorageCompression.GZIP);
+      if (!compressed) {
+        sendCompressed(channel, request, response);
+        return;
+      }
+    }
+    response.setHeader(HttpHeaders.ACCEPT_RANGES, BYTES);
+    long start = 0;
+    long end = length - 1;
+    final String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+
+    if (rangeHeader != null && isRangeApplicable(request, eTag, lastModified)) {
+      try {
+        final List<HttpRange> ranges = HttpRange.parseRanges(rangeHeader);
+
+        // Multiple ranges are not supported. In that case the range header is ignored and the complete file is sent, as allowed by RFC 9110.
+        if (ranges.size() == 1) {
+          start = ranges.get(0).getRangeStart(length);
+          end = ranges.get(0).getRangeEnd(length);
+          response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+          response.setHeader(HttpHeaders.CONTENT_RANGE, BYTES + " " + start + "-" + end + "/" + length);
+        }
+      } catch (final IllegalArgumentException e) {
+        response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+        response.setHeader(HttpHeaders.CONTENT_RANGE, BYTES + " */" + length);
+        return;
+      }
+    }
+    final long count = end - start + 1;
+
+    response.setContentLengthLong(count);
+    if (HttpMethod.HEAD.matches(request.getMethod()) || count == 0) {
+      return;
+    }
+    if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORTED_ATTRIBUTE)) && isUnchanged(file, attributes, length)) {
+      request.setAttribute(SENDFILE_FILENAME_ATTRIBUTE, file.toAbsolutePath().toString());
+      request.setAttribute(SENDFILE_START_ATTRIBUTE, start);
+      // End is exclusive.
+      request.setAttribute(SENDFILE_END_ATTRIBUTE, end + 1);
+    } else {
+      transfer(file, channel, start, count, Channels.newChannel(response.getOutputStream()));
+    }
+  }
+
+  /**
+   * Checks if the file at the path is still the file that was opened, so the container sends the same content when it opens the path.
+   * The file is compared by its file key (inode) when the file system provides it, and always by size and last modified time.
+   */
+  private static boolean isUnchanged(final Path file, final BasicFileAttributes opened, final long openedLength) throws IOException {
+    final BasicFileAttributes current = Files.readAttributes(file, BasicFileAttributes.class);
+
+    return current.size() == openedLength
+        && opened.size() == openedLength
+        && current.lastModifiedTime().equals(opened.lastModifiedTime())
+        && Objects.equals(current.fileKey(), opened.fileKey());
+  }
+
+  /**
+   * Writes the decompressed content of the file to the response. The length of the decompressed content is not known up front.
+   */
+  private static void sendDecompressed(final FileChannel channel, final HttpServletRequest request, final HttpServletResponse response)
+      throws IOException {
+    if (HttpMethod.HEAD.matches(request.getMethod())) {
+      return;
+    }
+    try (final InputStream in = new GZIPInputStream(Channels.newInputStream(channel.position(0)))) {
+      in.transferTo(response.getOutputStream());
+    }
+  }
+
+  /**
+   * Writes the content of the file compressed to the response. The length of the compressed content is not known up front.
+   */
+  private static void sendCompressed(final FileChannel channel, final HttpServletRequest request, final HttpServletResponse response)
+      throws IOException {
+    if (HttpMethod.HEAD.matches(request.getMethod())) {
+      return;
+    }
+    try (final OutputStream out = new GZIPOutputStream(response.getOutputStream(), COMPRESS_BUFFER_SIZE)) {
+      Channels.newInputStream(channel.position(0)).transferTo(out);
+    }
+  }
+
+  /**
+   * Returns a strong ETag based on the checksum of the content, so files with the same content have the same ETag.
+   * When the checksum is not known, the ETag is based on the size and last modified time of the file.
+   * Files are never modified in place, but always replaced, so a change of content always changes the last modified time.
+   * The ETag of the file sent with a content encoding differs from the ETag of the file sent as is.
+   */
+  static String eTag(final String checksum, final long length, final long lastModified, final String contentEncoding) {
+    final String tag = checksum == null ? Long.toHexString(length) + "-" + Long.toHexString(lastModified) : checksum;
+
+    return "\"" + tag + (contentEncoding == null ? "" : "-" + contentEncoding) + "\"";
+  }
+
+  /**
+   * Checks if the file starts with the gzip header.
+   */
+  static boolean isGzip(final Path file) throws IOException {
+    try (final InputStream in = Files.newInputStream(file)) {
+      return in.read() == GZIP_MAGIC_1 && in.read() == GZIP_MAGIC_2;
+    }
+  }
+
+  /**
+   * Checks if the client accepts the gzip content encoding, either explicitly or with *, and not with a quality of 0.
+   */
+  private static boolean acceptsGzip(final HttpServletRequest request) {
+    final Enumeration<String> headers = request.getHeaders(HttpHeaders.ACCEPT_ENCODING);
+
+    while (headers != null && headers.hasMoreElements()) {
+      for (final String coding : headers.nextElement().split(",")) {
+        final String[] parameters = coding.split(";");
+        final String name = parameters[0].trim();
+
+        if ((StorageCompression.GZIP.equalsIgnoreCase(name) || "*".equals(name)) && !isZeroQuality(parameters)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private static boolean isZeroQuality(final String[] parameters) {
+    for (int i = 1; i < parameters.length; i++) {
+      final String parameter = parameters[i].trim();
+
+      if (parameter.startsWith("q=")) {
+        try {
+          return Double.parseDouble(parameter.substring(2)) == 0;
+        } catch (final NumberFormatException e) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Checks the If-Range header. A range request is only applicable if the If-Range header is absent or matches the current file.
+   */
+  private static boolean isRangeApplicable(final HttpServletRequest request, final String eTag, final long lastModified) {
+    final String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+
+    if (ifRange == null) {
+      return true;
+    } else if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+      return ifRange.equals(eTag);
+    } else {
+      try {
+        // HTTP dates have a precision of seconds.
+        return request.getDateHeader(HttpHeaders.IF_RANGE) / 1000 == lastModified / 1000;
+      } catch (final IllegalArgumentException e) {
+        return false;
+      }
+    }
+  }
+
+  private static void transfer(final Path file, final FileChannel channel, final long start, final long count, final WritableByteChannel target)
+      throws IOException {
+    long position = start;
+    final long end = start + count;
+
+    while (position < end) {
+      final long transferred = channel.transferTo(position, end - position, target);
+
+      if (transferred <= 0) {
+        // File was truncated while sending.
+        throw new IOException("Unexpected end of file " + file);
+      }
+      position += transferred;
+    }
+  }
+}
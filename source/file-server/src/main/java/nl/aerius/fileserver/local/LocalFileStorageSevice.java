@@ -20,11 +20,27 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.DirectoryNotEmptyException;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.UUID;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.UnaryOperator;
+
+import jakarta.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -33,6 +49,10 @@ import org.springframework.boot.context.properties.EnableConfigurationProperties
 import org.springframework.context.annotation.Profile;
 import org.springframework.stereotype.Service;
 
+import nl.aerius.fileserver.local.LocalMetadataIndex.Expiry;
+import nl.aerius.fileserver.local.LocalMetadataIndex.FileMetadata;
+import nl.aerius.fileserver.storage.ChecksumInputStream;
+import nl.aerius.fileserver.storage.StorageCompression;
 import nl.aerius.fileserver.storage.StorageService;
 
 /**
@@ -44,56 +64,187 @@ import nl.aerius.fileserver.storage.StorageService;
 class LocalFileStorageSevice implements StorageService {
 
   private static final Logger LOG = LoggerFactory.getLogger(LocalFileStorageSevice.class);
+  // Number of locks changes of files are spread over.
+  private static final int FILE_LOCKS = 64;
 
   private final File localStorageDirectory;
   private final boolean preventCleanup;
+  private final boolean linkCopies;
+  private final LocalFileWriter writer;
+  private final LocalBlobStore blobStore;
+  private final StorageCompression compression;
+  private final LocalStorageLayout layout;
+  private final Map<String, Duration> expiry;
+  private final LocalMetadataIndex index;
+  // Locks to make changing a file and updating its metadata in the index a single step. Files are spread over the locks by name.
+  private final ReentrantLock[] fileLocks = new ReentrantLock[FILE_LOCKS];
 
   @Autowired
   public LocalFileStorageSevice(final LocalStorageProperties properties) throws IOException {
+    for (int i = 0; i < fileLocks.length; i++) {
+      fileLocks[i] = new ReentrantLock();
+    }
     preventCleanup = properties.isPreventCleanup();
+    linkCopies = properties.isLinkCopies();
     localStorageDirectory = properties.getLocation() == null ? null : new File(properties.getLocation());
     if (localStorageDirectory != null && !localStorageDirectory.exists()) {
       Files.createDirectory(localStorageDirectory.toPath());
     }
+    writer = new LocalFileWriter(properties.getDurability(), Math.toIntExact(properties.getWriteBufferSize().toBytes()),
+        properties.getWriteBufferPoolSize());
+    blobStore = properties.isDeduplicate() ? new LocalBlobStore(localStorageDirectory.toPath(), writer) : null;
+    compression = new StorageCompression(properties.getCompression());
+    expiry = Map.copyOf(properties.getExpiry());
+    index = new LocalMetadataIndex(localStorageDirectory.toPath(), properties.getDurability());
+    layout = new LocalStorageLayout(localStorageDirectory.getAbsoluteFile().toPath(), properties.getShardLevels());
+    if (layout.isSharded() && properties.isMigrateLayout()) {
+      Thread.ofPlatform().name("local-layout-migration").daemon().start(this::migrateLayout);
+    }
     LOG.info("Storing files at: {}", localStorageDirectory);
   }
 
-  @Override
-  public void putFile(final String uuid, final String filename, final long size, final String expires, final InputStream in) throws IOException {
-    final Path uuidPath = uuidDirectory(uuid);
+  private void migrateLayout() {
+    try {
+      layout.migrateAll();
+    } catch (final IOException e) {
+      LOG.error("Migrating to the sharded layout failed, it will be continued on the next start", e);
+    }
+  }
 
-    if (!Files.exists(uuidPath)) {
-      Files.createDirectory(uuidPath);
+  @PreDestroy
+  void shutdown() throws IOException {
+    index.close();
+    if (blobStore != null) {
+      blobStore.shutdown();
     }
-    final Path file = filePath(uuidPath, filename);
+  }
+
+  @Override
+  public void putFile(final String uuid, final String filename, final long size, final String expires, final ChecksumInputStream in)
+      throws IOException {
+    final Path uuidPath = createUuidDirectory(uuid);
+    final UnaryOperator<InputStream> encoder = compression.encoder(filename);
+    final String contentEncoding = compression.contentEncoding(filename);
     // Write to a temporary file in the same directory and then atomically move it into place. A plain
     // Files.copy(REPLACE_EXISTING) deletes the target before recreating it, which exposes a window where a
     // concurrent read sees the file missing or partially written and fails with a 500. ATOMIC_MOVE (a rename)
     // ensures readers always observe either the complete old file or the complete new one.
-    final Path tempFile = Files.createTempFile(uuidPath, filename + ".", ".tmp");
+    final Path tempFile = uuidPath.resolve(filename + "." + UUID.randomUUID() + ".tmp");
+
     try {
-      Files.copy(in, tempFile, StandardCopyOption.REPLACE_EXISTING);
-      Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      final String checksum = blobStore == null ? writer.write(in, tempFile, encoder)
+          : blobStore.store(in, tempFile, encoder, blobEncoding(contentEncoding));
+
+      moveIntoPlace(uuid, filename, tempFile, filePath(uuidPath, filename),
+          new FileMetadata(Files.size(tempFile), checksum, Instant.now(), expiresAt(expires), contentEncoding));
+      writer.syncDirectory(uuidPath);
     } finally {
       Files.deleteIfExists(tempFile);
     }
   }
 
+  /**
+   * Atomically moves the new file into place and puts its metadata in the index, as a single step for other changes of the same file.
+   * Otherwise a concurrent store of the same file could replace the file between the move and the index update,
+   * leaving the index with the metadata of the replaced file.
+   */
+  private void moveIntoPlace(final String uuid, final String filename, final Path source, final Path target, final FileMetadata metadata)
+      throws IOException {
+    final ReentrantLock lock = fileLock(uuid, filename);
+
+    lock.lock();
+    try {
+      Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      index.put(uuid, filename, metadata);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private ReentrantLock fileLock(final String uuid, final String filename) {
+    return fileLocks[Math.floorMod(Objects.hash(uuid, filename), fileLocks.length)];
+  }
+
   @Override
   public String getFile(final String uuid, final String filename) throws FileNotFoundException {
     return existingFilePath(uuid, filename).toAbsolutePath().toString();
   }
 
+  @Override
+  public String getChecksum(final String uuid, final String filename) {
+    final FileMetadata metadata = index.get(uuid, filename);
+
+    return metadata == null ? null : metadata.checksum();
+  }
+
+  @Override
+  public String getContentEncoding(final String uuid, final String filename) {
+    final FileMetadata metadata = index.get(uuid, filename);
+
+    return metadata == null ? null : metadata.contentEncoding();
+  }
+
+  /**
+   * Copies the file. Stored files are never modified in place, but always replaced by a new file (see {@link #putFile}).
+   * Therefore a hard link to the source file is a safe copy, which takes no time and no extra disk space.
+   * When a hard link can't be created, for example because the file system doesn't support it, the content is copied.
+   * Either way the copy is created under a temporary name and atomically moved into place, so the destination never appears half-written.
+   * With deduplication the source is a link to a blob, so the copy is always a link to keep the content stored only once.
+   */
   @Override
   public void copyFile(final String sourceUuid, final String destinationUuid, final String filename, final String expires) throws IOException {
-    final Path sourceFilePath = existingFilePath(sourceUuid, filename);
-    final Path uuidPath = uuidDirectory(destinationUuid);
+    final FileMetadata sourceMetadata = fileMetadata(sourceUuid, filename);
+    final Path sourceFilePath = filePath(uuidDirectory(sourceUuid), filename);
+    final Path uuidPath = createUuidDirectory(destinationUuid);
+    final Path destinationFilePath = filePath(uuidPath, filename);
+    // A link can only be created with a name that doesn't exist yet, therefore the temporary file itself is not created here.
+    final Path tempFile = uuidPath.resolve(filename + "." + UUID.randomUUID() + ".tmp");
 
-    if (!Files.exists(uuidPath)) {
-      Files.createDirectory(uuidPath);
+    try {
+      if (!(linkCopies || blobStore != null) || !createLink(tempFile, sourceFilePath)) {
+        Files.copy(sourceFilePath, tempFile);
+        writer.force(tempFile);
+      }
+      moveIntoPlace(destinationUuid, filename, tempFile, destinationFilePath, new FileMetadata(sourceMetadata.size(), sourceMetadata.checksum(),
+          Instant.now(), expiresAt(expires), sourceMetadata.contentEncoding()));
+      writer.syncDirectory(uuidPath);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  /**
+   * Returns the time a file stored with the given expires value expires.
+   * The expires value is either a name with a configured expiry duration (like the expires tag in Amazon S3), or a RFC 1123 date.
+   *
+   * @param expires expires value
+   * @return expiry time, or null if the file doesn't expire
+   */
+  private Instant expiresAt(final String expires) {
+    if (expires == null) {
+      return null;
+    }
+    final Duration duration = expiry.get(expires);
+
+    if (duration != null) {
+      return Instant.now().plus(duration);
+    }
+    try {
+      return Instant.from(DateTimeFormatter.RFC_1123_DATE_TIME.parse(expires));
+    } catch (final DateTimeParseException e) {
+      LOG.debug("Unknown expires value '{}', the file won't expire", expires);
+      return null;
+    }
+  }
+
+  private static boolean createLink(final Path link, final Path existing) {
+    try {
+      Files.createLink(link, existing);
+      return true;
+    } catch (final IOException | UnsupportedOperationException e) {
+      LOG.debug("Could not create a link to {}, copying the file instead", existing, e);
+      return false;
     }
-    final Path destinationFilePath = filePath(uuidPath, filename);
-    Files.copy(sourceFilePath, destinationFilePath, StandardCopyOption.REPLACE_EXISTING);
   }
 
   @Override
@@ -102,13 +253,69 @@ class LocalFileStorageSevice implements StorageService {
       return;
     }
     final Path uuidPath = uuidDirectory(uuid);
+    final ReentrantLock lock = fileLock(uuid, filename);
+    final FileMetadata metadata;
+
+    lock.lock();
+    try {
+      // Get the metadata before the file is deleted, to know the blob to collect.
+      metadata = index.get(uuid, filename);
+      Files.delete(filePath(uuidPath, filename));
+      index.remove(uuid, filename);
+    } finally {
+      lock.unlock();
+    }
+    deleted(uuid, uuidPath, Collections.singletonList(metadata));
+  }
+
+  /**
+   * Deletes the file if it still expires at the given time. A file stored again after it was found expired has a new expiry time,
+   * and is kept. The expiry is checked while holding the lock of the file, so the check and the delete are a single step.
+   *
+   * @param uuid uuid of the file
+   * @param filename name of the file
+   * @param expiresAt time the file was found to expire at
+   * @return true if the file was deleted
+   * @throws IOException in case the file could not be deleted
+   */
+  boolean deleteIfExpired(final String uuid, final String filename, final Instant expiresAt) throws IOException {
+    final Path uuidPath = uuidDirectory(uuid);
+    final ReentrantLock lock = fileLock(uuid, filename);
+    final FileMetadata metadata;
+    final boolean deleted;
 
-    Files.delete(filePath(uuidPath, filename));
-    final String[] files = uuidPath.toFile().list();
+    lock.lock();
+    try {
+      metadata = index.get(uuid, filename);
+      if (metadata == null || !expiresAt.equals(metadata.expiresAt())) {
+        return false;
+      }
+      // A file no longer on the file system is only removed from the index.
+      deleted = Files.deleteIfExists(filePath(uuidPath, filename));
+      index.remove(uuid, filename);
+    } finally {
+      lock.unlock();
+    }
+    deleted(uuid, uuidPath, List.of(metadata));
+    return deleted;
+  }
 
-    if (files == null || files.length == 0) {
-      Files.delete(uuidPath);
+  /**
+   * Cleans up after files are deleted: deletes the uuid directory when it has no files left, and collects the blobs no longer used.
+   *
+   * @param deletedFiles metadata of the deleted files, null for a file not in the index
+   */
+  private void deleted(final String uuid, final Path uuidPath, final Collection<FileMetadata> deletedFiles) throws IOException {
+    if (!index.hasFiles(uuid)) {
+      try {
+        Files.delete(uuidPath);
+      } catch (final DirectoryNotEmptyException e) {
+        // Contains files not in the index yet, or a file is being stored.
+      } catch (final NoSuchFileException e) {
+        // Already deleted by a concurrent delete.
+      }
     }
+    collectBlobs(deletedFiles);
   }
 
   @Override
@@ -120,31 +327,144 @@ class LocalFileStorageSevice implements StorageService {
 
     if (Files.exists(uuidPath)) {
       final File uuidFile = uuidPath.toFile();
+      // Get the metadata before the files are deleted, to know the blobs to collect.
+      final Map<String, FileMetadata> indexed = index.files(uuid);
+      final List<FileMetadata> deletedFiles = new ArrayList<>();
 
       for (final String file : uuidFile.list()) {
         Files.delete(new File(uuidFile, file).toPath());
+        deletedFiles.add(indexed.get(file));
       }
       Files.delete(uuidPath);
+      index.removeAll(uuid);
+      collectBlobs(deletedFiles);
     } else {
       throw new NoSuchFileException("Key not found");
     }
   }
 
+  /**
+   * Deletes files that have expired.
+   *
+   * @param now time to check expiry against
+   * @param max maximum number of files to delete
+   * @return number of deleted files
+   */
+  int deleteExpiredFiles(final Instant now, final int max) {
+    if (preventCleanup) {
+      return 0;
+    }
+    int deleted = 0;
+
+    for (final Expiry expired : index.expired(now, max)) {
+      try {
+        if (deleteIfExpired(expired.uuid(), expired.filename(), expired.expiresAt())) {
+          deleted++;
+        }
+      } catch (final IOException e) {
+        LOG.warn("Could not delete expired file {}/{}", expired.uuid(), expired.filename(), e);
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * Collects the blobs of the deleted files that are no longer used by other files.
+   *
+   * @param deletedFiles metadata of the deleted files, null for a file not in the index
+   */
+  private void collectBlobs(final Collection<FileMetadata> deletedFiles) {
+    if (blobStore == null) {
+      return;
+    }
+    final List<String> blobNames = new ArrayList<>();
+
+    for (final FileMetadata metadata : deletedFiles) {
+      if (metadata == null || metadata.checksum() == null) {
+        // The blob of a file of which the checksum is not known can't be found, so all blobs are checked.
+        blobStore.scheduleCollectAll();
+        return;
+      }
+      blobNames.add(LocalBlobStore.blobName(metadata.checksum(), blobEncoding(metadata.contentEncoding())));
+    }
+    blobStore.scheduleCollect(blobNames);
+  }
+
+  /**
+   * @return the encoding in the name of the blob of a file stored with the given content encoding, null for content stored as is
+   */
+  private static String blobEncoding(final String contentEncoding) {
+    return StorageCompression.IDENTITY.equals(contentEncoding) ? null : contentEncoding;
+  }
+
   private Path existingFilePath(final String uuid, final String filename) throws FileNotFoundException {
-    final Path uuidPath = uuidDirectory(uuid);
+    fileMetadata(uuid, filename);
+    return filePath(uuidDirectory(uuid), filename);
+  }
 
-    if (Files.exists(uuidPath)) {
-      final Path file = filePath(uuidPath, filename);
+  /**
+   * Returns the metadata of an existing file from the index.
+   * When the file is not in the index, for example because the index was lost, the file is looked up and added to the index.
+   */
+  private FileMetadata fileMetadata(final String uuid, final String filename) throws FileNotFoundException {
+    final FileMetadata indexed = index.get(uuid, filename);
+
+    return indexed == null ? indexFileMetadata(uuid, filename) : indexed;
+  }
+
+  /**
+   * Looks up the metadata of a file not in the index and adds it to the index.
+   * Holds the lock of the file, so a concurrent change of the file can't be overwritten in the index with outdated metadata.
+   */
+  private FileMetadata indexFileMetadata(final String uuid, final String filename) throws FileNotFoundException {
+    final ReentrantLock lock = fileLock(uuid, filename);
 
-      if (Files.exists(file)) {
-        return file;
+    lock.lock();
+    try {
+      final FileMetadata indexed = index.get(uuid, filename);
+
+      if (indexed != null) {
+        return indexed;
+      }
+      final BasicFileAttributes attributes;
+
+      try {
+        attributes = Files.readAttributes(filePath(uuidDirectory(uuid), filename), BasicFileAttributes.class);
+      } catch (final IOException e) {
+        throw new FileNotFoundException("file '" + uuid + "/" + filename + "' not found");
       }
+      final FileMetadata metadata = new FileMetadata(attributes.size(), null, attributes.lastModifiedTime().toInstant(), null, null);
+
+      try {
+        index.put(uuid, filename, metadata);
+      } catch (final IOException e) {
+        LOG.warn("Could not add {}/{} to the metadata index", uuid, filename, e);
+      }
+      return metadata;
+    } finally {
+      lock.unlock();
     }
-    throw new FileNotFoundException("file '" + uuid + "/" + filename + "' not found");
   }
 
   private Path uuidDirectory(final String uuid) {
-    return Paths.get(localStorageDirectory.getAbsolutePath(), uuid);
+    return layout.existingUuidDirectory(uuid);
+  }
+
+  /**
+   * Returns the directory of the uuid to store files in, creating it when it doesn't exist.
+   * A directory still in the flat layout is first migrated to the configured layout, so all files of a uuid are in one directory.
+   */
+  private Path createUuidDirectory(final String uuid) throws IOException {
+    final Path uuidPath = layout.migrate(uuid);
+
+    if (!Files.isDirectory(uuidPath)) {
+      Files.createDirectories(uuidPath);
+      // Make the entries of the new directories durable, up to the storage directory.
+      for (Path directory = uuidPath.getParent(); directory.startsWith(layout.getRoot()); directory = directory.getParent()) {
+        writer.syncDirectory(directory);
+      }
+    }
+    return uuidPath;
   }
 
   private static Path filePath(final Path uuidPath, final String filename) {
@@ -0,0 +1,184 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.local;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+import nl.aerius.fileserver.local.LocalStorageProperties.Durability;
+import nl.aerius.fileserver.storage.ChecksumInputStream;
+
+/**
+ * Writes the content of files, and forces written data and directory changes to disk as required by the configured durability.
+ *
+ * Content is collected in a large direct buffer and written to the file when the buffer is full, so a large file takes few write calls.
+ * A direct buffer is written by the operating system without an extra copy; a heap buffer would first be copied to a temporary direct buffer.
+ * Direct buffers are expensive to allocate, therefore they are pooled. At most {@code poolSize} direct buffers are allocated, so the direct
+ * memory used is bounded. When all are in use the content is written from a small heap buffer instead of waiting for a direct buffer:
+ * that takes more write calls, but doesn't make an upload wait on other uploads, or fail with an OutOfMemoryError for direct memory.
+ */
+class LocalFileWriter {
+
+  // Size of the chunks read from the input stream, which is read into a heap array as the content is checksummed and encoded by streams.
+  private static final int READ_CHUNK_SIZE = 64 * 1024;
+
+  private final Durability durability;
+  private final int bufferSize;
+  private final int poolSize;
+  private final BlockingQueue<WriteBuffer> bufferPool;
+  private final AtomicInteger allocatedBuffers = new AtomicInteger();
+  private final LocalDirectorySync directorySync = new LocalDirectorySync();
+
+  /**
+   * Buffers used to write a file.
+   */
+  private record WriteBuffer(byte[] chunk, ByteBuffer buffer) {
+  }
+
+  /**
+   * @param durability durability of written files
+   * @param bufferSize size of the buffer content is collected in before it's written to the file
+   * @param poolSize maximum number of direct buffers allocated
+   */
+  LocalFileWriter(final Durability durability, final int bufferSize, final int poolSize) {
+    if (bufferSize <= 0) {
+      throw new IllegalArgumentException("Write buffer size must be positive, but is " + bufferSize);
+    }
+    this.durability = durability;
+    this.bufferSize = bufferSize;
+    this.poolSize = poolSize;
+    bufferPool = new ArrayBlockingQueue<>(poolSize);
+  }
+
+  /**
+   * Writes the content to the file, replacing the content if the file exists.
+   *
+   * @param in content to write
+   * @param file file to write to
+   * @return the SHA-256 checksum of the content, as computed by the stream while it was written
+   * @throws IOException in case the content could not be read or written
+   */
+  String write(final ChecksumInputStream in, final Path file) throws IOException {
+    return write(in, file, UnaryOperator.identity());
+  }
+
+  /**
+   * Writes the content to the file encoded, for example compressed, replacing the content if the file exists.
+   *
+   * @param in content to write
+   * @param file file to write to
+   * @param encoder function returning a stream with the encoded content of the given stream
+   * @return the SHA-256 checksum of the content before encoding, as computed by the stream while it was written
+   * @throws IOException in case the content could not be read or written
+   */
+  String write(final ChecksumInputStream in, final Path file, final UnaryOperator<InputStream> encoder) throws IOException {
+    final WriteBuffer writeBuffer = acquireBuffer();
+
+    try (final InputStream content = encoder.apply(in);
+        final FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+            StandardOpenOption.TRUNCATE_EXISTING)) {
+      final byte[] chunk = writeBuffer.chunk();
+      final ByteBuffer buffer = writeBuffer.buffer().clear();
+      int read;
+
+      while ((read = content.read(chunk, 0, Math.min(chunk.length, buffer.remaining()))) != -1) {
+        buffer.put(chunk, 0, read);
+        if (!buffer.hasRemaining()) {
+          writeFully(channel, buffer);
+        }
+      }
+      writeFully(channel, buffer);
+      if (durability != Durability.NONE) {
+        channel.force(false);
+      }
+      if (in.getChecksum() == null) {
+        throw new IOException("Content of " + file + " was not read completely");
+      }
+      return in.getChecksum();
+    } finally {
+      releaseBuffer(writeBuffer);
+    }
+  }
+
+  /**
+   * Returns a pooled direct buffer, allocating one while fewer than the pool size are allocated.
+   * Otherwise returns a heap buffer of the read chunk size, which is not pooled.
+   */
+  private WriteBuffer acquireBuffer() {
+    final WriteBuffer pooled = bufferPool.poll();
+
+    if (pooled != null) {
+      return pooled;
+    }
+    final int chunkSize = Math.min(READ_CHUNK_SIZE, bufferSize);
+
+    if (allocatedBuffers.incrementAndGet() <= poolSize) {
+      return new WriteBuffer(new byte[chunkSize], ByteBuffer.allocateDirect(bufferSize));
+    }
+    allocatedBuffers.decrementAndGet();
+    return new WriteBuffer(new byte[chunkSize], ByteBuffer.allocate(chunkSize));
+  }
+
+  private void releaseBuffer(final WriteBuffer writeBuffer) {
+    if (writeBuffer.buffer().isDirect()) {
+      // Always fits, as no more direct buffers are allocated than the pool can hold.
+      bufferPool.offer(writeBuffer);
+    }
+  }
+
+  private static void writeFully(final FileChannel channel, final ByteBuffer buffer) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+
+  /**
+   * Forces the content of a file written by other means to disk, if required by the durability.
+   *
+   * @param file file to force
+   * @throws IOException in case the file could not be forced
+   */
+  void force(final Path file) throws IOException {
+    if (durability != Durability.NONE) {
+      try (final FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+        channel.force(false);
+      }
+    }
+  }
+
+  /**
+   * Forces the changes of entries in the directory, like files moved into it, to disk, if required by the durability.
+   *
+   * @param directory directory to sync
+   * @throws IOException in case the directory could not be synced
+   */
+  void syncDirectory(final Path directory) throws IOException {
+    if (durability == Durability.DIRECTORY) {
+      directorySync.sync(directory);
+    }
+  }
+}
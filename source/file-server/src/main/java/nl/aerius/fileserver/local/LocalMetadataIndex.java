@@ -0,0 +1,626 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.local;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.aerius.fileserver.local.LocalStorageProperties.Durability;
+
+/**
+ * Index of the metadata of stored files: size, checksum, creation time and expiry time.
+ * Lookups are answered from memory, so checking if a file exists or finding expired files doesn't need to access the file system.
+ *
+ * The index is kept in memory and persisted as an append-only log in the {@code .index} directory of the storage location.
+ * Each change is appended as record with a checksum. At startup the log is replayed and rewritten with only the current entries,
+ * and while running the log is rewritten when it contains many more records than entries.
+ * A record partially written when the file server stopped is detected by its checksum, and it and anything after it is ignored.
+ * Only a single file server can use the index: at startup an exclusive lock is taken on a lock file in the index directory,
+ * and the file server fails to start when another file server holds it. The log itself is replaced when it's rewritten,
+ * so the lock is taken on a separate file that is never replaced.
+ * With durability FILE or DIRECTORY each change is forced to disk before it returns, with concurrent changes combined in a single force.
+ * With durability NONE the log is not forced, and the latest changes can be lost on a system crash.
+ * Therefore the index is not authoritative: a file not in the index is looked up on the file system and added to the index when found.
+ *
+ * Lookups don't lock. Changes are appended to the log and then applied in memory while holding a lock,
+ * to keep the log in the same order as the changes in memory. Forcing the log and rewriting it are done without holding the lock.
+ * Locks are used instead of synchronized, so waiting virtual threads don't pin their carrier thread.
+ */
+class LocalMetadataIndex implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LocalMetadataIndex.class);
+
+  static final String INDEX_DIRECTORY = ".index";
+  private static final String LOG_FILE = "metadata.log";
+  private static final String LOCK_FILE = "metadata.lock";
+  private static final int MAGIC = 0x4145524D;
+  private static final int VERSION = 3;
+  // Version without the content encoding of files, which is read as not known.
+  private static final int VERSION_WITHOUT_ENCODING = 2;
+  private static final int HEADER_LENGTH = Integer.BYTES * 2;
+  // Magic and version at the start of the log.
+  private static final int LOG_HEADER_LENGTH = Integer.BYTES * 2;
+  // The log is rewritten when it has more than this number of records and more than twice as many records as entries.
+  private static final long MIN_COMPACT_RECORDS = 100_000;
+
+  private static final byte PUT = 1;
+  private static final byte DELETE = 2;
+  private static final byte DELETE_UUID = 3;
+
+  private final Path indexDirectory;
+  private final Path logFile;
+  private final Durability durability;
+  private final Map<String, Map<String, FileMetadata>> files = new ConcurrentHashMap<>();
+  private final TreeSet<Expiry> expiryOrder = new TreeSet<>(Comparator.comparing(Expiry::expiresAt)
+      .thenComparing(Expiry::uuid).thenComparing(Expiry::filename));
+  private final ReentrantLock lock = new ReentrantLock();
+  private final Condition forced = lock.newCondition();
+  private final FileChannel lockChannel;
+  private FileChannel log;
+  private long entries;
+  // Number of records in the current log.
+  private long records;
+  // Number of records appended since the start, and the number of those records forced to disk.
+  private long appendedCount;
+  private long forcedCount;
+  private boolean forcing;
+  private boolean compacting;
+
+  /**
+   * Metadata of a stored file.
+   *
+   * @param size size of the file in bytes
+   * @param checksum SHA-256 checksum of the content as hex string, or null if not known
+   * @param createdAt time the file was stored
+   * @param expiresAt time the file expires, or null if the file doesn't expire
+   * @param contentEncoding content encoding the file is stored with, identity when stored as is, or null if not known
+   */
+  record FileMetadata(long size, String checksum, Instant createdAt, Instant expiresAt, String contentEncoding) {
+  }
+
+  /**
+   * Expiry time of a file.
+   */
+  record Expiry(Instant expiresAt, String uuid, String filename) {
+  }
+
+  LocalMetadataIndex(final Path location, final Durability durability) throws IOException {
+    this.durability = durability;
+    indexDirectory = location.resolve(INDEX_DIRECTORY);
+    Files.createDirectories(indexDirectory);
+    logFile = indexDirectory.resolve(LOG_FILE);
+    lockChannel = lockIndex(indexDirectory.resolve(LOCK_FILE));
+    try {
+      if (Files.exists(logFile)) {
+        replay();
+      }
+      replaceLog(writeLog(files), 0, entries);
+    } catch (final IOException | RuntimeException e) {
+      lockChannel.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    lock.lock();
+    try {
+      awaitNotForcing();
+      log.close();
+    } finally {
+      lock.unlock();
+      // Closing the channel releases the lock on the index.
+      lockChannel.close();
+    }
+  }
+
+  /**
+   * Takes an exclusive lock on the lock file, so no other file server can use the index at the same time.
+   *
+   * @param lockFile lock file
+   * @return channel holding the lock, closing it releases the lock
+   * @throws IOException when the lock is held by another file server, or could not be taken
+   */
+  private static FileChannel lockIndex(final Path lockFile) throws IOException {
+    final FileChannel channel = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    FileLock fileLock;
+
+    try {
+      fileLock = channel.tryLock();
+    } catch (final OverlappingFileLockException e) {
+      // Held by another index in this process.
+      fileLock = null;
+    } catch (final IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+    if (fileLock == null) {
+      channel.close();
+      throw new IOException("Metadata index " + lockFile.getParent() + " is in use by another file server");
+    }
+    return channel;
+  }
+
+  /**
+   * @param uuid uuid of the file
+   * @param filename name of the file
+   * @return the metadata of the file, or null if the file is not in the index
+   */
+  FileMetadata get(final String uuid, final String filename) {
+    final Map<String, FileMetadata> uuidFiles = files.get(uuid);
+
+    return uuidFiles == null ? null : uuidFiles.get(filename);
+  }
+
+  /**
+   * @param uuid uuid
+   * @return the metadata of the files of the uuid by filename, empty if the uuid has no files in the index
+   */
+  Map<String, FileMetadata> files(final String uuid) {
+    final Map<String, FileMetadata> uuidFiles = files.get(uuid);
+
+    return uuidFiles == null ? Map.of() : Map.copyOf(uuidFiles);
+  }
+
+  /**
+   * @param uuid uuid
+   * @return true if the index contains files of the uuid
+   */
+  boolean hasFiles(final String uuid) {
+    return files.containsKey(uuid);
+  }
+
+  /**
+   * Adds or replaces the metadata of a file.
+   *
+   * @param uuid uuid of the file
+   * @param filename name of the file
+   * @param metadata metadata of the file
+   * @throws IOException in case the change could not be written
+   */
+  void put(final String uuid, final String filename, final FileMetadata metadata) throws IOException {
+    final byte[] record = record(PUT, uuid, filename, metadata);
+    final long ticket;
+
+    lock.lock();
+    try {
+      ticket = append(record);
+      applyPut(uuid, filename, metadata);
+    } finally {
+      lock.unlock();
+    }
+    changed(ticket);
+  }
+
+  /**
+   * Removes the file from the index.
+   *
+   * @param uuid uuid of the file
+   * @param filename name of the file
+   * @throws IOException in case the change could not be written
+   */
+  void remove(final String uuid, final String filename) throws IOException {
+    final byte[] record = record(DELETE, uuid, filename, null);
+    final long ticket;
+
+    lock.lock();
+    try {
+      if (get(uuid, filename) == null) {
+        return;
+      }
+      ticket = append(record);
+      applyDelete(uuid, filename);
+    } finally {
+      lock.unlock();
+    }
+    changed(ticket);
+  }
+
+  /**
+   * Removes all files of the uuid from the index.
+   *
+   * @param uuid uuid of the files
+   * @throws IOException in case the change could not be written
+   */
+  void removeAll(final String uuid) throws IOException {
+    final byte[] record = record(DELETE_UUID, uuid, "", null);
+    final long ticket;
+
+    lock.lock();
+    try {
+      if (!hasFiles(uuid)) {
+        return;
+      }
+      ticket = append(record);
+      applyDeleteUuid(uuid);
+    } finally {
+      lock.unlock();
+    }
+    changed(ticket);
+  }
+
+  /**
+   * Returns the files expired at the given time, the earliest expired first.
+   *
+   * @param now time to check expiry against
+   * @param max maximum number of files to return
+   * @return expired files
+   */
+  List<Expiry> expired(final Instant now, final int max) {
+    final List<Expiry> expired = new ArrayList<>();
+
+    lock.lock();
+    try {
+      for (final Iterator<Expiry> iterator = expiryOrder.iterator(); iterator.hasNext() && expired.size() < max;) {
+        final Expiry expiry = iterator.next();
+
+        if (expiry.expiresAt().isAfter(now)) {
+          break;
+        }
+        expired.add(expiry);
+      }
+    } finally {
+      lock.unlock();
+    }
+    return expired;
+  }
+
+  private void applyPut(final String uuid, final String filename, final FileMetadata metadata) {
+    final FileMetadata previous = files.computeIfAbsent(uuid, k -> new ConcurrentHashMap<>()).put(filename, metadata);
+
+    if (previous == null) {
+      entries++;
+    } else if (previous.expiresAt() != null) {
+      expiryOrder.remove(new Expiry(previous.expiresAt(), uuid, filename));
+    }
+    if (metadata.expiresAt() != null) {
+      expiryOrder.add(new Expiry(metadata.expiresAt(), uuid, filename));
+    }
+  }
+
+  private boolean applyDelete(final String uuid, final String filename) {
+    final Map<String, FileMetadata> uuidFiles = files.get(uuid);
+    final FileMetadata previous = uuidFiles == null ? null : uuidFiles.remove(filename);
+
+    if (previous == null) {
+      return false;
+    }
+    removed(uuid, filename, previous);
+    if (uuidFiles.isEmpty()) {
+      files.remove(uuid);
+    }
+    return true;
+  }
+
+  private boolean applyDeleteUuid(final String uuid) {
+    final Map<String, FileMetadata> uuidFiles = files.remove(uuid);
+
+    if (uuidFiles == null) {
+      return false;
+    }
+    uuidFiles.forEach((filename, metadata) -> removed(uuid, filename, metadata));
+    return true;
+  }
+
+  private void removed(final String uuid, final String filename, final FileMetadata metadata) {
+    entries--;
+    if (metadata.expiresAt() != null) {
+      expiryOrder.remove(new Expiry(metadata.expiresAt(), uuid, filename));
+    }
+  }
+
+  /**
+   * Appends the record to the log. Called with the lock held.
+   *
+   * @return the ticket of the record, to wait for it to be forced to disk
+   */
+  private long append(final byte[] record) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.wrap(record);
+
+    while (buffer.hasRemaining()) {
+      log.write(buffer);
+    }
+    records++;
+    return ++appendedCount;
+  }
+
+  /**
+   * Completes a change: forces the log to disk as required by the durability and rewrites the log when needed.
+   */
+  private void changed(final long ticket) throws IOException {
+    if (durability != Durability.NONE) {
+      awaitForced(ticket);
+    }
+    compactIfNeeded();
+  }
+
+  /**
+   * Waits until the record with the given ticket is forced to disk.
+   * Concurrent changes are combined: while the log is forced, new changes wait and are all covered by the next single force.
+   */
+  private void awaitForced(final long ticket) throws IOException {
+    lock.lock();
+    try {
+      while (forcedCount < ticket) {
+        if (forcing) {
+          forced.awaitUninterruptibly();
+        } else {
+          forceLog();
+        }
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Forces all records appended until now to disk. Called with the lock held, which is released while forcing.
+   */
+  private void forceLog() throws IOException {
+    final long coveredCount = appendedCount;
+    final FileChannel channel = log;
+    boolean success = false;
+
+    forcing = true;
+    lock.unlock();
+    try {
+      channel.force(false);
+      success = true;
+    } finally {
+      lock.lock();
+      forcing = false;
+      if (success) {
+        forcedCount = Math.max(forcedCount, coveredCount);
+      }
+      // On failure a waiting change takes over and tries again, with its own error reported if it fails as well.
+      forced.signalAll();
+    }
+  }
+
+  private void awaitNotForcing() {
+    while (forcing) {
+      forced.awaitUninterruptibly();
+    }
+  }
+
+  private static byte[] record(final byte operation, final String uuid, final String filename, final FileMetadata metadata)
+      throws IOException {
+    final ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream();
+
+    try (final DataOutputStream payload = new DataOutputStream(payloadBytes)) {
+      payload.writeByte(operation);
+      payload.writeUTF(uuid);
+      payload.writeUTF(filename);
+      if (metadata != null) {
+        payload.writeLong(metadata.size());
+        payload.writeUTF(metadata.checksum() == null ? "" : metadata.checksum());
+        payload.writeLong(metadata.createdAt().toEpochMilli());
+        payload.writeLong(metadata.expiresAt() == null ? 0 : metadata.expiresAt().toEpochMilli());
+        payload.writeUTF(metadata.contentEncoding() == null ? "" : metadata.contentEncoding());
+      }
+    }
+    final byte[] bytes = payloadBytes.toByteArray();
+    final CRC32 crc = new CRC32();
+
+    crc.update(bytes);
+    return ByteBuffer.allocate(HEADER_LENGTH + bytes.length).putInt(bytes.length).putInt((int) crc.getValue()).put(bytes).array();
+  }
+
+  private void replay() throws IOException {
+    final long logSize = Files.size(logFile);
+    int replayed = 0;
+    long replayedBytes = LOG_HEADER_LENGTH;
+
+    try (final DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile)))) {
+      final int version = in.readInt() == MAGIC ? in.readInt() : -1;
+
+      if (version != VERSION && version != VERSION_WITHOUT_ENCODING) {
+        LOG.warn("Ignoring metadata index {} of {} bytes, it is not a metadata index of a supported version", logFile, logSize);
+        return;
+      }
+      for (int recordLength = replayRecord(in, version); recordLength >= 0; recordLength = replayRecord(in, version)) {
+        replayed++;
+        replayedBytes += recordLength;
+      }
+    } catch (final EOFException e) {
+      LOG.warn("Ignoring metadata index {} of {} bytes, it is empty", logFile, logSize);
+      return;
+    }
+    LOG.info("Read {} records from the metadata index", replayed);
+    if (replayedBytes < logSize) {
+      LOG.warn("Ignored the last {} bytes of metadata index {}, after {} records", logSize - replayedBytes, logFile, replayed);
+    }
+  }
+
+  /**
+   * Reads a record and applies it.
+   *
+   * @return the length of the record in bytes, or -1 at the end of the log or when the record is incomplete or corrupt
+   */
+  private int replayRecord(final DataInputStream in, final int version) throws IOException {
+    final byte[] bytes;
+    final int crc;
+
+    try {
+      final int length = in.readInt();
+
+      crc = in.readInt();
+      bytes = in.readNBytes(length);
+      if (bytes.length < length) {
+        throw new EOFException();
+      }
+    } catch (final EOFException e) {
+      return -1;
+    }
+    final CRC32 actualCrc = new CRC32();
+
+    actualCrc.update(bytes);
+    if ((int) actualCrc.getValue() != crc) {
+      LOG.warn("Ignoring the remainder of metadata index {}, it contains a corrupt record", logFile);
+      return -1;
+    }
+    try (final DataInputStream payload = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      final byte operation = payload.readByte();
+      final String uuid = payload.readUTF();
+      final String filename = payload.readUTF();
+
+      switch (operation) {
+      case PUT -> applyPut(uuid, filename, readMetadata(payload, version));
+      case DELETE -> applyDelete(uuid, filename);
+      case DELETE_UUID -> applyDeleteUuid(uuid);
+      default -> throw new IOException("Unknown operation " + operation + " in metadata index " + logFile);
+      }
+    }
+    return HEADER_LENGTH + bytes.length;
+  }
+
+  private static FileMetadata readMetadata(final DataInputStream payload, final int version) throws IOException {
+    final long size = payload.readLong();
+    final String checksum = payload.readUTF();
+    final long createdAt = payload.readLong();
+    final long expiresAt = payload.readLong();
+    final String contentEncoding = version == VERSION_WITHOUT_ENCODING ? "" : payload.readUTF();
+
+    return new FileMetadata(size, checksum.isEmpty() ? null : checksum, Instant.ofEpochMilli(createdAt),
+        expiresAt == 0 ? null : Instant.ofEpochMilli(expiresAt), contentEncoding.isEmpty() ? null : contentEncoding);
+  }
+
+  /**
+   * Rewrites the log with only the current entries when it contains many more records than entries.
+   * The entries are copied while holding the lock, and written to a new log without holding it.
+   * Records appended meanwhile are copied to the new log when it replaces the current log.
+   */
+  private void compactIfNeeded() throws IOException {
+    final Map<String, Map<String, FileMetadata>> snapshot = new HashMap<>();
+    final long snapshotPosition;
+    final long snapshotRecords;
+
+    lock.lock();
+    try {
+      if (compacting || records <= MIN_COMPACT_RECORDS || records <= entries * 2) {
+        return;
+      }
+      compacting = true;
+      files.forEach((uuid, uuidFiles) -> snapshot.put(uuid, new HashMap<>(uuidFiles)));
+      snapshotPosition = log.size();
+      snapshotRecords = records;
+    } finally {
+      lock.unlock();
+    }
+    try {
+      final Path tempFile = writeLog(snapshot);
+
+      lock.lock();
+      try {
+        replaceLog(tempFile, snapshotPosition, snapshot.values().stream().mapToLong(Map::size).sum() + records - snapshotRecords);
+      } finally {
+        lock.unlock();
+      }
+    } finally {
+      lock.lock();
+      compacting = false;
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Writes a new log with the given entries to a temporary file.
+   *
+   * @return the temporary file
+   */
+  private Path writeLog(final Map<String, Map<String, FileMetadata>> snapshot) throws IOException {
+    final Path tempFile = logFile.resolveSibling(LOG_FILE + ".tmp");
+
+    try (final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      for (final Map.Entry<String, Map<String, FileMetadata>> uuidFiles : snapshot.entrySet()) {
+        for (final Map.Entry<String, FileMetadata> file : uuidFiles.getValue().entrySet()) {
+          out.write(record(PUT, uuidFiles.getKey(), file.getKey(), file.getValue()));
+        }
+      }
+    }
+    return tempFile;
+  }
+
+  /**
+   * Atomically replaces the log with the new log, and continues appending to the new log.
+   * Records appended to the current log after the given position are first copied to the new log.
+   * Called with the lock held, or from the constructor.
+   *
+   * @param tempFile new log
+   * @param tailPosition position in the current log of the first record not in the new log
+   * @param newRecords number of records in the new log after copying
+   */
+  private void replaceLog(final Path tempFile, final long tailPosition, final long newRecords) throws IOException {
+    // The current log can't be closed while it's being forced.
+    awaitNotForcing();
+    try (final FileChannel temp = FileChannel.open(tempFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+      if (log != null) {
+        final long size = log.size();
+
+        for (long position = tailPosition; position < size;) {
+          position += log.transferTo(position, size - position, temp);
+        }
+      }
+      if (durability != Durability.NONE) {
+        temp.force(false);
+      }
+    }
+    if (log != null) {
+      log.close();
+    }
+    Files.move(tempFile, logFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    if (durability == Durability.DIRECTORY) {
+      LocalDirectorySync.force(indexDirectory);
+    }
+    log = FileChannel.open(logFile, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    records = newRecords;
+    // All records appended until now are in the new log, which has been forced to disk if required.
+    forcedCount = appendedCount;
+  }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.local;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.annotation.SchedulingConfigurer;
+import org.springframework.scheduling.config.ScheduledTaskRegistrar;
+import org.springframework.stereotype.Component;
+
+/**
+ * Deletes expired files in the background.
+ * Expired files are looked up in the metadata index, so no directory scans are needed.
+ * Each run deletes at most a configured number of files, which limits the rate files are deleted at.
+ * Runs are scheduled with the configured interval between the end of a run and the start of the next run.
+ */
+@Component
+@EnableScheduling
+@Profile("local")
+@ConditionalOnProperty(prefix = "aerius.file.storage.janitor", name = "enabled", havingValue = "true")
+class LocalStorageJanitor implements SchedulingConfigurer {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LocalStorageJanitor.class);
+
+  private final LocalFileStorageSevice storageService;
+  private final Duration interval;
+  private final int maxDeletesPerRun;
+
+  LocalStorageJanitor(final LocalFileStorageSevice storageService, final LocalStorageProperties properties) {
+    this.storageService = storageService;
+    this.interval = properties.getJanitor().getInterval();
+    this.maxDeletesPerRun = properties.getJanitor().getMaxDeletesPerRun();
+  }
+
+  @Override
+  public void configureTasks(final ScheduledTaskRegistrar taskRegistrar) {
+    taskRegistrar.addFixedDelayTask(this::deleteExpiredFiles, interval);
+  }
+
+  void deleteExpiredFiles() {
+    final int deleted = storageService.deleteExpiredFiles(Instant.now(), maxDeletesPerRun);
+
+    if (deleted > 0) {
+      LOG.info("Deleted {} expired files", deleted);
+    }
+  }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.local;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HexFormat;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Layout of the uuid directories in the local storage directory.
+ *
+ * With 0 shard levels all uuid directories are directly in the storage directory (the flat layout).
+ * With shard levels the uuid directories are spread over sub directories named after 2 hex characters of a hash of the uuid,
+ * one level of sub directories per shard level, e.g. {@code 3f/a0/<uuid>} with 2 levels.
+ * This keeps the number of entries per directory small, which keeps lookups fast with a large number of uuids.
+ *
+ * Uuid directories still in the flat layout are read until they are migrated to the sharded layout.
+ * A directory is migrated when files are added to it, or when all directories are migrated with {@link #migrateAll()}.
+ * Once no directories in the flat layout are left, because there were none at startup or all have been migrated,
+ * directories are no longer looked up in the flat layout. Therefore the storage directory should not be shared with a file server
+ * using the flat layout.
+ */
+class LocalStorageLayout {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LocalStorageLayout.class);
+
+  static final int MAX_SHARD_LEVELS = 4;
+  private static final int SHARD_LENGTH = 2;
+
+  private final Path root;
+  private final int shardLevels;
+  // True when no uuid directories in the flat layout are left, so lookups don't need to check the flat layout.
+  private volatile boolean flatLayoutMigrated;
+
+  LocalStorageLayout(final Path root, final int shardLevels) {
+    if (shardLevels < 0 || shardLevels > MAX_SHARD_LEVELS) {
+      throw new IllegalArgumentException("Number of shard levels must be between 0 and " + MAX_SHARD_LEVELS + ", but is " + shardLevels);
+    }
+    this.root = root;
+    this.shardLevels = shardLevels;
+    flatLayoutMigrated = isSharded() && !hasFlatUuidDirectories();
+  }
+
+  private boolean hasFlatUuidDirectories() {
+    try (final DirectoryStream<Path> directories = Files.newDirectoryStream(root, this::isFlatUuidDirectory)) {
+      return directories.iterator().hasNext();
+    } catch (final NoSuchFileException e) {
+      return false;
+    } catch (final IOException e) {
+      LOG.warn("Could not check for directories in the flat layout in {}, they will be looked up", root, e);
+      return true;
+    }
+  }
+
+  Path getRoot() {
+    return root;
+  }
+
+  boolean isSharded() {
+    return shardLevels > 0;
+  }
+
+  /**
+   * @param uuid uuid
+   * @return the directory of the uuid in the configured layout
+   */
+  Path uuidDirectory(final String uuid) {
+    Path directory = root;
+
+    if (isSharded()) {
+      final String hash = shardHash(uuid);
+
+      for (int i = 0; i < shardLevels; i++) {
+        directory = directory.resolve(hash.substring(i * SHARD_LENGTH, (i + 1) * SHARD_LENGTH));
+      }
+    }
+    return directory.resolve(uuid);
+  }
+
+  /**
+   * Returns the directory the files of the uuid are in, which is the directory in the flat layout when not migrated yet.
+   *
+   * @param uuid uuid
+   * @return the directory of the uuid, the directory in the configured layout when the uuid has no files
+   */
+  Path existingUuidDirectory(final String uuid) {
+    final Path directory = uuidDirectory(uuid);
+
+    if (!isSharded() || flatLayoutMigrated || Files.exists(directory)) {
+      return directory;
+    }
+    final Path flatDirectory = root.resolve(uuid);
+
+    // When the flat directory doesn't exist, it doesn't exist or has been migrated just now; either way the sharded directory is right.
+    return Files.exists(flatDirectory) ? flatDirectory : directory;
+  }
+
+  /**
+   * Moves the directory of the uuid from the flat layout to the configured layout, if it's still in the flat layout.
+   *
+   * @param uuid uuid
+   * @return the directory of the uuid in the configured layout
+   * @throws IOException in case the directory could not be moved
+   */
+  Path migrate(final String uuid) throws IOException {
+    final Path directory = uuidDirectory(uuid);
+
+    if (isSharded() && !flatLayoutMigrated) {
+      final Path flatDirectory = root.resolve(uuid);
+
+      if (Files.exists(flatDirectory)) {
+        Files.createDirectories(directory.getParent());
+        move(flatDirectory, directory);
+      }
+    }
+    return directory;
+  }
+
+  private static void move(final Path source, final Path target) throws IOException {
+    try {
+      Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+    } catch (final NoSuchFileException e) {
+      // Already migrated by a concurrent request.
+    } catch (final FileAlreadyExistsException | DirectoryNotEmptyException e) {
+      // Files were added in the configured layout while the flat directory existed; keep the newest, being the ones in the configured layout.
+      try (final DirectoryStream<Path> files = Files.newDirectoryStream(source)) {
+        for (final Path file : files) {
+          final Path targetFile = target.resolve(file.getFileName());
+
+          if (Files.exists(targetFile)) {
+            Files.deleteIfExists(file);
+          } else {
+            Files.move(file, targetFile, StandardCopyOption.ATOMIC_MOVE);
+          }
+        }
+      }
+      Files.deleteIfExists(source);
+    }
+  }
+
+  /**
+   * Migrates all uuid directories in the flat layout to the configured layout.
+   * Files can be stored and read while the migration is running.
+   *
+   * @return number of migrated uuid directories
+   * @throws IOException in case the storage directory could not be read or a directory could not be moved
+   */
+  int migrateAll() throws IOException {
+    int migrated = 0;
+
+    if (isSharded()) {
+      try (final DirectoryStream<Path> directories = Files.newDirectoryStream(root, this::isFlatUuidDirectory)) {
+        for (final Path directory : directories) {
+          migrate(directory.getFileName().toString());
+          migrated++;
+        }
+      }
+      flatLayoutMigrated = true;
+    }
+    LOG.info("Migrated {} directories to the sharded layout", migrated);
+    return migrated;
+  }
+
+  private boolean isFlatUuidDirectory(final Path path) {
+    final String name = path.getFileName().toString();
+
+    // Skip hidden directories, like the blob store, and the shard directories.
+    return !name.startsWith(".") && !isShardName(name) && Files.isDirectory(path);
+  }
+
+  private static boolean isShardName(final String name) {
+    return name.length() == SHARD_LENGTH && name.chars().allMatch(c -> Character.digit(c, 16) != -1);
+  }
+
+  private static String shardHash(final String uuid) {
+    final CRC32 crc = new CRC32();
+
+    crc.update(uuid.getBytes(StandardCharsets.UTF_8));
+    return HexFormat.of().toHexDigits((int) crc.getValue());
+  }
+}
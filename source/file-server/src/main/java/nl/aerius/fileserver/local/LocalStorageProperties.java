@@ -16,11 +16,22 @@
  */
 package nl.aerius.fileserver.local;
 
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotNull;
 
+import org.hibernate.validator.constraints.time.DurationMin;
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
 import org.springframework.validation.annotation.Validated;
 
+import nl.aerius.fileserver.storage.CompressionProperties;
+
 /**
  * Local storage configuration.
  */
@@ -34,6 +45,56 @@ class LocalStorageProperties {
 
   private boolean preventCleanup;
 
+  /**
+   * Copy files by creating a hard link instead of copying the content, when the file system supports it.
+   */
+  private boolean linkCopies = true;
+
+  /**
+   * Store the content of identical files only once, by storing files as hard links to content-addressed blobs.
+   */
+  private boolean deduplicate;
+
+  /**
+   * Number of levels of sub directories the uuid directories are spread over. 0 puts all uuid directories directly in the location.
+   */
+  private @Min(0) @Max(LocalStorageLayout.MAX_SHARD_LEVELS) int shardLevels;
+
+  /**
+   * Migrate all uuid directories in the flat layout to the sharded layout in the background at startup.
+   */
+  private boolean migrateLayout;
+
+  /**
+   * Guarantee stored files survive a system crash: NONE, FILE or DIRECTORY.
+   */
+  private @NotNull Durability durability = Durability.NONE;
+
+  /**
+   * Size of the buffer the content of an upload is collected in before it's written to disk.
+   */
+  private @NotNull DataSize writeBufferSize = DataSize.ofMegabytes(1);
+
+  /**
+   * Maximum number of (direct) write buffers. Uploads beyond that number write their content from a small heap buffer.
+   */
+  private @Min(1) int writeBufferPoolSize = 16;
+
+  /**
+   * Configuration of compressing stored files.
+   */
+  private final @Valid CompressionProperties compression = new CompressionProperties();
+
+  /**
+   * Time after which a file expires, per expires value passed when storing the file. For example short=7d.
+   */
+  private final Map<String, Duration> expiry = new HashMap<>();
+
+  /**
+   * Configuration of the background deletion of expired files.
+   */
+  private final @Valid Janitor janitor = new Janitor();
+
   public String getLocation() {
     return location;
   }
@@ -49,4 +110,135 @@ class LocalStorageProperties {
   public void setPreventCleanup(final boolean preventCleanup) {
     this.preventCleanup = preventCleanup;
   }
+
+  public boolean isLinkCopies() {
+    return linkCopies;
+  }
+
+  public void setLinkCopies(final boolean linkCopies) {
+    this.linkCopies = linkCopies;
+  }
+
+  public boolean isDeduplicate() {
+    return deduplicate;
+  }
+
+  public void setDeduplicate(final boolean deduplicate) {
+    this.deduplicate = deduplicate;
+  }
+
+  public int getShardLevels() {
+    return shardLevels;
+  }
+
+  public void setShardLevels(final int shardLevels) {
+    this.shardLevels = shardLevels;
+  }
+
+  public boolean isMigrateLayout() {
+    return migrateLayout;
+  }
+
+  public void setMigrateLayout(final boolean migrateLayout) {
+    this.migrateLayout = migrateLayout;
+  }
+
+  public Durability getDurability() {
+    return durability;
+  }
+
+  public void setDurability(final Durability durability) {
+    this.durability = durability;
+  }
+
+  public DataSize getWriteBufferSize() {
+    return writeBufferSize;
+  }
+
+  public void setWriteBufferSize(final DataSize writeBufferSize) {
+    this.writeBufferSize = writeBufferSize;
+  }
+
+  public int getWriteBufferPoolSize() {
+    return writeBufferPoolSize;
+  }
+
+  public void setWriteBufferPoolSize(final int writeBufferPoolSize) {
+    this.writeBufferPoolSize = writeBufferPoolSize;
+  }
+
+  public CompressionProperties getCompression() {
+    return compression;
+  }
+
+  public Map<String, Duration> getExpiry() {
+    return expiry;
+  }
+
+  public Janitor getJanitor() {
+    return janitor;
+  }
+
+  /**
+   * Level of guarantee that stored files survive a system crash.
+   */
+  enum Durability {
+    /**
+     * Leave writing to disk to the operating system. After a crash a stored file can be missing, empty or incomplete.
+     */
+    NONE,
+    /**
+     * Force the content of a file to disk before it's moved into place. After a crash a stored file is either complete or missing.
+     */
+    FILE,
+    /**
+     * Also force the directory entry of the file to disk before the store returns. After a crash a stored file is complete.
+     */
+    DIRECTORY;
+  }
+
+  /**
+   * Configuration of the background deletion of expired files.
+   */
+  static class Janitor {
+
+    /**
+     * Delete expired files in the background.
+     */
+    private boolean enabled;
+
+    /**
+     * Time between the end of a run and the start of the next run.
+     */
+    private @NotNull @DurationMin(seconds = 1) Duration interval = Duration.ofMinutes(1);
+
+    /**
+     * Maximum number of files deleted per run, to limit the load of deleting many files that expire at the same time.
+     */
+    private @Min(1) int maxDeletesPerRun = 1_000;
+
+    public boolean isEnabled() {
+      return enabled;
+    }
+
+    public void setEnabled(final boolean enabled) {
+      this.enabled = enabled;
+    }
+
+    public Duration getInterval() {
+      return interval;
+    }
+
+    public void setInterval(final Duration interval) {
+      this.interval = interval;
+    }
+
+    public int getMaxDeletesPerRun() {
+      return maxDeletesPerRun;
+    }
+
+    public void setMaxDeletesPerRun(final int maxDeletesPerRun) {
+      this.maxDeletesPerRun = maxDeletesPerRun;
+    }
+  }
 }
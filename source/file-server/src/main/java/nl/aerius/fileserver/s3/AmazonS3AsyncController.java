@@ -0,0 +1,64 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.s3;
+
+import java.net.URI;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Profile;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+
+import nl.aerius.fileserver.storage.AsyncFileController;
+import nl.aerius.fileserver.storage.AsyncStorageService;
+
+/**
+ * Implements the controller for using Amazon S3 with the asynchronous client.
+ */
+@Controller
+@Profile("s3")
+@ConditionalOnProperty(prefix = "aerius.file.storage.s3", name = "async", havingValue = "true")
+public class AmazonS3AsyncController extends AsyncFileController {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AmazonS3AsyncController.class);
+
+  public AmazonS3AsyncController(final AsyncStorageService storageService) {
+    super(storageService);
+    LOG.info("Starting asynchronous file controller with Amazon S3 File Storage");
+  }
+
+  /**
+   * Instead of returning the content of the file this redirects to a Amazon S3 url.
+   *
+   * @param uuid uuid of the file
+   * @param filename file name
+   * @return redirect to a temporal URL to the file on Amazon S3
+   */
+  @GetMapping(FILE_PATH)
+  public CompletableFuture<ResponseEntity<Void>> getFile(final @PathVariable String uuid, final @PathVariable String filename) {
+    LOG.debug("Get file {}/{}", uuid, filename);
+    return storageService.getFile(uuid, filename)
+        .thenApply(url -> ResponseEntity.status(HttpStatus.FOUND).location(URI.create(url)).<Void>build())
+        .exceptionally(e -> ResponseEntity.notFound().build());
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.s3;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Function;
+
+import jakarta.annotation.PreDestroy;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Service;
+
+import nl.aerius.fileserver.s3.S3ObjectMetadataCache.S3ObjectMetadata;
+import nl.aerius.fileserver.storage.AsyncStorageService;
+import nl.aerius.fileserver.storage.ChecksumInputStream;
+import nl.aerius.fileserver.storage.StorageCompression;
+
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectAttributesRequest;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ObjectAttributes;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+
+/**
+ * Service that wraps around the asynchronous Amazon S3 client api. Stores files in the same layout as {@link AmazonS3StorageService}.
+ *
+ * Requests to Amazon S3 are non-blocking, so many uploads, copies and deletes can be in flight without a thread waiting on each of them.
+ * Only reading the content of an upload from the servlet input stream is blocking, which is done on a bounded pool of transfer threads.
+ * A transfer thread is occupied for the whole upload, so at most transferThreads uploads are read at the same time.
+ * At most transferQueueSize more uploads wait for a transfer thread, further uploads are rejected.
+ * Splitting large uploads and copies into parts is left to the client.
+ */
+@Service
+@EnableConfigurationProperties(AmazonS3StorageProperties.class)
+@Profile("s3")
+@ConditionalOnProperty(prefix = "aerius.file.storage.s3", name = "async", havingValue = "true")
+public class AmazonS3AsyncStorageService implements AsyncStorageService {
+
+  private final S3AsyncClient s3AsyncClient;
+  private final S3Presigner presigner;
+  private final String bucketName;
+  private final ExecutorService transferExecutor;
+  private final Semaphore uploadPermits;
+  private final S3ObjectMetadataCache metadataCache;
+  private final S3PresignedUrlCache presignedUrlCache;
+  private final StorageCompression compression;
+
+  public AmazonS3AsyncStorageService(final S3AsyncClient s3AsyncClient, final S3Presigner presigner, final AmazonS3StorageProperties properties,
+      final S3ObjectMetadataCache metadataCache, final S3PresignedUrlCache presignedUrlCache) {
+    bucketName = properties.getBucketName();
+    this.s3AsyncClient = s3AsyncClient;
+    this.presigner = presigner;
+    this.metadataCache = metadataCache;
+    this.presignedUrlCache = presignedUrlCache;
+    compression = new StorageCompression(properties.getCompression());
+    final CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("s3-async-transfer-");
+
+    threadFactory.setDaemon(true);
+    transferExecutor = Executors.newFixedThreadPool(properties.getTransferThreads(), threadFactory);
+    // Bounds the uploads queued in the transfer executor, as each upload reads its content in a single task.
+    uploadPermits = new Semaphore(properties.getTransferThreads() + properties.getTransferQueueSize());
+  }
+
+  @PreDestroy
+  void shutdown() {
+    transferExecutor.shutdown();
+  }
+
+  /**
+   * Stores the file. Files stored compressed are stored with the gzip content encoding, with the size of the compressed content unknown.
+   * The checksum sent by the client is stored as user metadata. Content stored as is is also checksummed by Amazon S3.
+   * Completes exceptionally with a {@link RejectedExecutionException} when too many uploads are already in progress.
+   */
+  @Override
+  public CompletableFuture<Void> putFile(final String uuid, final String filename, final long size, final String expires,
+      final ChecksumInputStream in) {
+    if (!uploadPermits.tryAcquire()) {
+      return CompletableFuture.failedFuture(new RejectedExecutionException("Too many uploads in progress"));
+    }
+    final String key = S3Util.key(uuid, filename);
+    final boolean compressed = compression.isCompressed(filename);
+    final PutObjectRequest request = PutObjectRequest.builder()
+        .bucket(bucketName)
+        .key(key)
+        .tagging(S3Util.expiresTagging(expires))
+        .contentEncoding(compressed ? StorageCompression.GZIP : null)
+        .metadata(S3Util.checksumMetadata(S3Util.knownChecksum(in)))
+        .checksumAlgorithm(compressed ? null : ChecksumAlgorithm.SHA256)
+        .build();
+    final InputStream content = compressed ? compression.compress(in) : in;
+    final AsyncRequestBody body = AsyncRequestBody.fromInputStream(content, compressed || size < 0 ? null : size, transferExecutor);
+
+    return mapS3Exception(s3AsyncClient.putObject(request, body), IOException::new)
+        .whenComplete((response, e) -> {
+          closeQuietly(content, compressed);
+          uploadPermits.release();
+        })
+        .thenAccept(response -> metadataCache.put(key, new S3ObjectMetadata(response.eTag(), null)));
+  }
+
+  /**
+   * Closes the compressing stream, to release the memory of the compressor. The stream of the request itself is closed by the controller.
+   */
+  private static void closeQuietly(final InputStream content, final boolean compressed) {
+    if (compressed) {
+      try {
+        content.close();
+      } catch (final IOException e) {
+        // Nothing to report, the upload itself has completed or failed.
+      }
+    }
+  }
+
+  @Override
+  public CompletableFuture<String> getFile(final String uuid, final String filename) {
+    final String key = S3Util.key(uuid, filename);
+
+    return mapS3Exception(checkFileExists(key), e -> new FileNotFoundException(e.getMessage()))
+        .thenApply(metadata -> presignedUrlCache.get(key, k -> presign(k, filename)));
+  }
+
+  private String presign(final String key, final String filename) {
+    return S3Util.presign(presigner, bucketName, presignedUrlCache.getSignatureDuration(), key, filename);
+  }
+
+  /**
+   * Check if file exists. Objects recently stored or checked are looked up in the metadata cache,
+   * otherwise Amazon S3 is queried for the entity tag attribute.
+   * The future completes exceptionally with a NoSuchKeyException if the key doesn't exist.
+   * @param key key to check
+   */
+  private CompletableFuture<S3ObjectMetadata> checkFileExists(final String key) {
+    final S3ObjectMetadata cached = metadataCache.getIfPresent(key);
+
+    if (cached != null) {
+      return CompletableFuture.completedFuture(cached);
+    }
+    final GetObjectAttributesRequest request = GetObjectAttributesRequest.builder()
+        .bucket(bucketName)
+        .key(key)
+        .objectAttributes(ObjectAttributes.E_TAG)
+        .build();
+    // Only cached when no object was invalidated (deleted) while loading.
+    final long generation = metadataCache.generation();
+
+    return s3AsyncClient.getObjectAttributes(request).thenApply(response -> {
+      final S3ObjectMetadata metadata = new S3ObjectMetadata(response.eTag(), null);
+
+      metadataCache.putLoaded(key, metadata, generation);
+      return metadata;
+    });
+  }
+
+  @Override
+  public CompletableFuture<Void> copyFile(final String sourceUuid, final String destinationUuid, final String filename, final String expires) {
+    final String destinationKey = S3Util.key(destinationUuid, filename);
+    final CopyObjectRequest request = CopyObjectRequest.builder()
+        .sourceBucket(bucketName)
+        .sourceKey(S3Util.key(sourceUuid, filename))
+        .destinationBucket(bucketName)
+        .destinationKey(destinationKey)
+        .tagging(S3Util.expiresTagging(expires))
+        .build();
+
+    return mapS3Exception(s3AsyncClient.copyObject(request), IOException::new)
+        .thenAccept(response -> metadataCache.put(destinationKey, new S3ObjectMetadata(response.copyObjectResult().eTag(), null)));
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteFile(final String uuid, final String filename) {
+    final String key = S3Util.key(uuid, filename);
+
+    // Invalidate after the delete, so a concurrent get can't cache the object again while it's being deleted.
+    return deleteObjects(List.of(S3Util.toDeleteObject(key)))
+        .whenComplete((v, e) -> metadataCache.invalidate(key));
+  }
+
+  @Override
+  public CompletableFuture<Void> deleteFiles(final String uuid) {
+    final String prefix = S3Util.uuidWithPrefix(uuid);
+
+    return deletePage(prefix, null)
+        .whenComplete((v, e) -> metadataCache.invalidatePrefix(prefix));
+  }
+
+  /**
+   * Lists a page of objects with the given prefix and deletes them in a single request, while the next page is listed.
+   *
+   * @param prefix prefix of the objects to delete
+   * @param continuationToken token of the page to list, or null for the first page
+   * @return future completing when the objects of this and all following pages are deleted
+   */
+  private CompletableFuture<Void> deletePage(final String prefix, final String continuationToken) {
+    final ListObjectsV2Request request = ListObjectsV2Request.builder()
+        .bucket(bucketName)
+        .prefix(prefix)
+        .maxKeys(S3Util.MAX_DELETE_KEYS)
+        .continuationToken(continuationToken)
+        .build();
+
+    return mapS3Exception(s3AsyncClient.listObjectsV2(request), IOException::new).thenCompose(page -> {
+      final CompletableFuture<Void> delete = page.contents().isEmpty()
+          ? CompletableFuture.completedFuture(null)
+          : deleteObjects(page.contents().stream().map(S3Object::key).map(S3Util::toDeleteObject).toList());
+      final CompletableFuture<Void> next = Boolean.TRUE.equals(page.isTruncated())
+          ? deletePage(prefix, page.nextContinuationToken())
+          : CompletableFuture.completedFuture(null);
+
+      return CompletableFuture.allOf(delete, next);
+    });
+  }
+
+  private CompletableFuture<Void> deleteObjects(final List<ObjectIdentifier> toDelete) {
+    final DeleteObjectsRequest request = DeleteObjectsRequest.builder()
+        .bucket(bucketName)
+        // Quiet mode, only report the objects that could not be deleted.
+        .delete(d -> d.objects(toDelete).quiet(true))
+        .build();
+
+    return mapS3Exception(s3AsyncClient.deleteObjects(request), IOException::new).thenAccept(response -> {
+      try {
+        S3Util.checkDeleteErrors(response);
+      } catch (final IOException e) {
+        throw new CompletionException(e);
+      }
+    });
+  }
+
+  /**
+   * Completes the returned future exceptionally with the mapped exception when the given future fails with an {@link S3Exception},
+   * to match the exceptions thrown by {@link AmazonS3StorageService}.
+   */
+  private static <T> CompletableFuture<T> mapS3Exception(final CompletableFuture<T> future, final Function<S3Exception, Exception> mapper) {
+    return future.exceptionallyCompose(e -> {
+      final Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+
+      return CompletableFuture.failedFuture(cause instanceof final S3Exception s3e ? mapper.apply(s3e) : cause);
+    });
+  }
+}
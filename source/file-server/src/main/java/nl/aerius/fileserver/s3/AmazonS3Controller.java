@@ -23,6 +23,7 @@ import jakarta.servlet.http.HttpServletResponse;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Profile;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Controller;
@@ -37,6 +38,7 @@ import nl.aerius.fileserver.storage.StorageService;
  */
 @Controller
 @Profile("s3")
+@ConditionalOnProperty(prefix = "aerius.file.storage.s3", name = "async", havingValue = "false", matchIfMissing = true)
 public class AmazonS3Controller extends FileController {
 
   private static final Logger LOG = LoggerFactory.getLogger(AmazonS3Controller.class);
@@ -48,6 +50,7 @@ public class AmazonS3Controller extends FileController {
 
   /**
    * Instead of returning the content of the file this redirects to a Amazon S3 url.
+   * The checksum stored with the file, if any, is returned in the checksum header.
    *
    * @param uuid uuid of the file
    * @param filename file name
@@ -58,7 +61,13 @@ public class AmazonS3Controller extends FileController {
       final HttpServletResponse response) {
     try {
       LOG.debug("Get file {}/{}", uuid, filename);
-      return "redirect:" + storageService.getFile(uuid, filename);
+      final String url = storageService.getFile(uuid, filename);
+      final String checksum = storageService.getChecksum(uuid, filename);
+
+      if (checksum != null) {
+        response.setHeader(CHECKSUM_HEADER, checksum);
+      }
+      return "redirect:" + url;
     } catch (final FileNotFoundException | RuntimeException e) {
       response.setStatus(HttpStatus.NOT_FOUND.value());
       return null;
@@ -16,20 +16,124 @@
  */
 package nl.aerius.fileserver.s3;
 
+import java.time.Duration;
+
+import jakarta.validation.Valid;
+import jakarta.validation.constraints.Min;
 import jakarta.validation.constraints.NotNull;
 
 import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
 import org.springframework.validation.annotation.Validated;
 
+import nl.aerius.fileserver.storage.CompressionProperties;
+
 /**
- * Amazon S3 properties. Specific to configure the bucket name.
+ * Amazon S3 properties. Specific to configure the bucket name and how files are transferred.
  */
 @ConfigurationProperties("aerius.file.storage.s3")
 @Validated
 class AmazonS3StorageProperties {
 
+  /**
+   * Minimum part size of a multipart upload as required by Amazon S3.
+   */
+  static final DataSize MIN_PART_SIZE = DataSize.ofMegabytes(5);
+
+  /**
+   * Maximum size of an object that can be copied with a single copy request as allowed by Amazon S3.
+   */
+  static final DataSize MAX_COPY_SIZE = DataSize.ofGigabytes(5);
+
   private @NotNull String bucketName;
 
+  /**
+   * Use the asynchronous Amazon S3 client, so requests don't keep a servlet thread busy while waiting on Amazon S3.
+   */
+  private boolean async;
+
+  /**
+   * Size of the parts a multipart upload is split into. Must be at least 5MB.
+   */
+  private @NotNull DataSize partSize = DataSize.ofMegabytes(8);
+
+  /**
+   * Files with a known size up to this size are uploaded with a single put request, larger files or files with unknown size as multipart upload.
+   */
+  private @NotNull DataSize multipartThreshold = DataSize.ofMegabytes(16);
+
+  /**
+   * Maximum number of parts of a single multipart upload in memory (being read or uploaded) at the same time.
+   */
+  private @Min(1) int uploadConcurrency = 4;
+
+  /**
+   * Number of threads transferring data to Amazon S3.
+   */
+  private @Min(1) int transferThreads = 16;
+
+  /**
+   * Maximum number of part buffers in memory over all multipart uploads, being filled from the client or uploaded.
+   * Limits the heap used by uploads to partBuffers * partSize.
+   */
+  private @Min(1) int partBuffers = 32;
+
+  /**
+   * Maximum time an upload waits for a part buffer when all are in use. After this time the upload is rejected with 503 Service Unavailable.
+   */
+  private @NotNull Duration partBufferTimeout = Duration.ofSeconds(30);
+
+  /**
+   * Maximum number of uploads of the asynchronous client waiting for a transfer thread.
+   * Uploads beyond transferThreads plus this number are rejected with 503 Service Unavailable.
+   */
+  private @Min(0) int transferQueueSize = 200;
+
+  /**
+   * Objects larger than this size are copied as multipart copy, copying parts in parallel. At most 5GB.
+   */
+  private @NotNull DataSize copyThreshold = DataSize.ofMegabytes(128);
+
+  /**
+   * Size of the parts a multipart copy is split into. Must be at least 5MB.
+   */
+  private @NotNull DataSize copyPartSize = DataSize.ofMegabytes(64);
+
+  /**
+   * Maximum number of parts of a single multipart copy being copied at the same time.
+   */
+  private @Min(1) int copyConcurrency = 8;
+
+  /**
+   * Maximum number of objects in the cache of objects known to exist. 0 disables the cache.
+   */
+  private @Min(0) long metadataCacheSize = 10_000;
+
+  /**
+   * Time an object is kept in the cache of objects known to exist.
+   */
+  private @NotNull Duration metadataCacheTtl = Duration.ofMinutes(5);
+
+  /**
+   * Time a presigned url to retrieve a file is valid.
+   */
+  private @NotNull Duration signatureDuration = Duration.ofHours(1);
+
+  /**
+   * Maximum number of presigned urls in the cache. 0 disables the cache.
+   */
+  private @Min(0) long presignedUrlCacheSize = 10_000;
+
+  /**
+   * Configuration of compressing stored files.
+   */
+  private final @Valid CompressionProperties compression = new CompressionProperties();
+
+  /**
+   * Configuration of the HTTP client used to connect to Amazon S3.
+   */
+  private final @Valid Http http = new Http();
+
   public String getBucketName() {
     return bucketName;
   }
@@ -37,4 +141,270 @@ class AmazonS3StorageProperties {
   public void setBucketName(final String bucketName) {
     this.bucketName = bucketName;
   }
+
+  public boolean isAsync() {
+    return async;
+  }
+
+  public void setAsync(final boolean async) {
+    this.async = async;
+  }
+
+  public DataSize getPartSize() {
+    return partSize;
+  }
+
+  public void setPartSize(final DataSize partSize) {
+    this.partSize = partSize;
+  }
+
+  public DataSize getMultipartThreshold() {
+    return multipartThreshold;
+  }
+
+  public void setMultipartThreshold(final DataSize multipartThreshold) {
+    this.multipartThreshold = multipartThreshold;
+  }
+
+  public int getUploadConcurrency() {
+    return uploadConcurrency;
+  }
+
+  public void setUploadConcurrency(final int uploadConcurrency) {
+    this.uploadConcurrency = uploadConcurrency;
+  }
+
+  public int getTransferThreads() {
+    return transferThreads;
+  }
+
+  public void setTransferThreads(final int transferThreads) {
+    this.transferThreads = transferThreads;
+  }
+
+  public int getPartBuffers() {
+    return partBuffers;
+  }
+
+  public void setPartBuffers(final int partBuffers) {
+    this.partBuffers = partBuffers;
+  }
+
+  public Duration getPartBufferTimeout() {
+    return partBufferTimeout;
+  }
+
+  public void setPartBufferTimeout(final Duration partBufferTimeout) {
+    this.partBufferTimeout = partBufferTimeout;
+  }
+
+  public int getTransferQueueSize() {
+    return transferQueueSize;
+  }
+
+  public void setTransferQueueSize(final int transferQueueSize) {
+    this.transferQueueSize = transferQueueSize;
+  }
+
+  public DataSize getCopyThreshold() {
+    return copyThreshold;
+  }
+
+  public void setCopyThreshold(final DataSize copyThreshold) {
+    this.copyThreshold = copyThreshold;
+  }
+
+  public DataSize getCopyPartSize() {
+    return copyPartSize;
+  }
+
+  public void setCopyPartSize(final DataSize copyPartSize) {
+    this.copyPartSize = copyPartSize;
+  }
+
+  public int getCopyConcurrency() {
+    return copyConcurrency;
+  }
+
+  public void setCopyConcurrency(final int copyConcurrency) {
+    this.copyConcurrency = copyConcurrency;
+  }
+
+  public long getMetadataCacheSize() {
+    return metadataCacheSize;
+  }
+
+  public void setMetadataCacheSize(final long metadataCacheSize) {
+    this.metadataCacheSize = metadataCacheSize;
+  }
+
+  public Duration getMetadataCacheTtl() {
+    return metadataCacheTtl;
+  }
+
+  public void setMetadataCacheTtl(final Duration metadataCacheTtl) {
+    this.metadataCacheTtl = metadataCacheTtl;
+  }
+
+  public Duration getSignatureDuration() {
+    return signatureDuration;
+  }
+
+  public void setSignatureDuration(final Duration signatureDuration) {
+    this.signatureDuration = signatureDuration;
+  }
+
+  public long getPresignedUrlCacheSize() {
+    return presignedUrlCacheSize;
+  }
+
+  public void setPresignedUrlCacheSize(final long presignedUrlCacheSize) {
+    this.presignedUrlCacheSize = presignedUrlCacheSize;
+  }
+
+  public CompressionProperties getCompression() {
+    return compression;
+  }
+
+  public Http getHttp() {
+    return http;
+  }
+
+  /**
+   * HTTP client implementation to use.
+   */
+  enum HttpClientType {
+    /**
+     * Apache HTTP client for the blocking client, Netty for the asynchronous client.
+     */
+    APACHE,
+    /**
+     * AWS Common Runtime HTTP client, for the asynchronous client the CRT based Amazon S3 client.
+     */
+    CRT;
+  }
+
+  /**
+   * Configuration of the HTTP client connection pool.
+   */
+  static class Http {
+
+    /**
+     * HTTP client implementation, APACHE or CRT.
+     */
+    private @NotNull HttpClientType client = HttpClientType.APACHE;
+
+    /**
+     * Maximum number of open connections to Amazon S3. Requests wait for a connection when all connections are in use.
+     */
+    private @Min(1) int maxConnections = 200;
+
+    /**
+     * Maximum time to wait for a connection from the pool. Not supported by the CRT client.
+     */
+    private @NotNull Duration connectionAcquisitionTimeout = Duration.ofSeconds(30);
+
+    /**
+     * Maximum time to wait while establishing a connection.
+     */
+    private @NotNull Duration connectionTimeout = Duration.ofSeconds(2);
+
+    /**
+     * Maximum time to wait for data on an established connection. Not supported by the CRT client.
+     */
+    private @NotNull Duration socketTimeout = Duration.ofSeconds(30);
+
+    /**
+     * Maximum time a connection is kept open, after which it is closed when returned to the pool. 0 means connections are kept open.
+     * Closing connections regularly spreads the load over the Amazon S3 endpoints. Not supported by the CRT client.
+     */
+    private @NotNull Duration connectionTimeToLive = Duration.ofMinutes(5);
+
+    /**
+     * Maximum time a connection may be idle in the pool before it's closed.
+     */
+    private @NotNull Duration connectionMaxIdleTime = Duration.ofSeconds(60);
+
+    /**
+     * Close idle connections in the background, instead of only when a connection is taken from the pool. Not supported by the CRT client.
+     */
+    private boolean useIdleConnectionReaper = true;
+
+    /**
+     * Send TCP keepalive packets on open connections, so broken connections are detected.
+     */
+    private boolean tcpKeepAlive = true;
+
+    public HttpClientType getClient() {
+      return client;
+    }
+
+    public void setClient(final HttpClientType client) {
+      this.client = client;
+    }
+
+    public int getMaxConnections() {
+      return maxConnections;
+    }
+
+    public void setMaxConnections(final int maxConnections) {
+      this.maxConnections = maxConnections;
+    }
+
+    public Duration getConnectionAcquisitionTimeout() {
+      return connectionAcquisitionTimeout;
+    }
+
+    public void setConnectionAcquisitionTimeout(final Duration connectionAcquisitionTimeout) {
+      this.connectionAcquisitionTimeout = connectionAcquisitionTimeout;
+    }
+
+    public Duration getConnectionTimeout() {
+      return connectionTimeout;
+    }
+
+    public void setConnectionTimeout(final Duration connectionTimeout) {
+      this.connectionTimeout = connectionTimeout;
+    }
+
+    public Duration getSocketTimeout() {
+      return socketTimeout;
+    }
+
+    public void setSocketTimeout(final Duration socketTimeout) {
+      this.socketTimeout = socketTimeout;
+    }
+
+    public Duration getConnectionTimeToLive() {
+      return connectionTimeToLive;
+    }
+
+    public void setConnectionTimeToLive(final Duration connectionTimeToLive) {
+      this.connectionTimeToLive = connectionTimeToLive;
+    }
+
+    public Duration getConnectionMaxIdleTime() {
+      return connectionMaxIdleTime;
+    }
+
+    public void setConnectionMaxIdleTime(final Duration connectionMaxIdleTime) {
+      this.connectionMaxIdleTime = connectionMaxIdleTime;
+    }
+
+    public boolean isUseIdleConnectionReaper() {
+      return useIdleConnectionReaper;
+    }
+
+    public void setUseIdleConnectionReaper(final boolean useIdleConnectionReaper) {
+      this.useIdleConnectionReaper = useIdleConnectionReaper;
+    }
+
+    public boolean isTcpKeepAlive() {
+      return tcpKeepAlive;
+    }
+
+    public void setTcpKeepAlive(final boolean tcpKeepAlive) {
+      this.tcpKeepAlive = tcpKeepAlive;
+    }
+  }
 }
@@ -19,31 +19,43 @@ package nl.aerius.fileserver.s3;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.time.Duration;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import jakarta.annotation.PreDestroy;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Profile;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.stereotype.Service;
 
+import nl.aerius.fileserver.s3.S3ObjectMetadataCache.S3ObjectMetadata;
+import nl.aerius.fileserver.storage.ChecksumInputStream;
+import nl.aerius.fileserver.storage.StorageCompression;
 import nl.aerius.fileserver.storage.StorageService;
 
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.ChecksumMode;
 import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
 import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
-import software.amazon.awssdk.services.s3.model.GetObjectAttributesRequest;
-import software.amazon.awssdk.services.s3.model.ListObjectsRequest;
-import software.amazon.awssdk.services.s3.model.ObjectAttributes;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
 import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 import software.amazon.awssdk.services.s3.model.S3Exception;
 import software.amazon.awssdk.services.s3.model.S3Object;
-import software.amazon.awssdk.services.s3.model.Tag;
-import software.amazon.awssdk.services.s3.model.Tagging;
 import software.amazon.awssdk.services.s3.presigner.S3Presigner;
-import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
 
 /**
  * Service that wraps around the Amazon S3 client api.
@@ -51,76 +63,181 @@ import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignReques
 @Service
 @EnableConfigurationProperties(AmazonS3StorageProperties.class)
 @Profile("s3")
+@ConditionalOnProperty(prefix = "aerius.file.storage.s3", name = "async", havingValue = "false", matchIfMissing = true)
 public class AmazonS3StorageService implements StorageService {
 
-  private static final String TAG_EXPIRES_KEY = "expires";
-  private static final String TAG_EXPIRES_NEVER = "never";
-  private static final Duration SIGNATURE_DURATION = Duration.ofHours(1);
-  private static final String OTHER_PREFIX = "z";
-
   private final S3Client s3Client;
   private final S3Presigner presigner;
   private final String bucketName;
+  private final long multipartThreshold;
+  private final long copyThreshold;
+  private final ExecutorService transferExecutor;
+  private final S3MultipartUploader multipartUploader;
+  private final S3MultipartCopier multipartCopier;
+  private final S3ObjectMetadataCache metadataCache;
+  private final S3PresignedUrlCache presignedUrlCache;
+  private final StorageCompression compression;
 
   @Autowired
-  public AmazonS3StorageService(final S3Client s3Client, final S3Presigner presigner, final AmazonS3StorageProperties properties) {
+  public AmazonS3StorageService(final S3Client s3Client, final S3Presigner presigner, final AmazonS3StorageProperties properties,
+      final S3ObjectMetadataCache metadataCache, final S3PresignedUrlCache presignedUrlCache) {
     bucketName = properties.getBucketName();
     this.s3Client = s3Client;
     this.presigner = presigner;
+    this.metadataCache = metadataCache;
+    this.presignedUrlCache = presignedUrlCache;
+    if (properties.getPartSize().compareTo(AmazonS3StorageProperties.MIN_PART_SIZE) < 0) {
+      throw new IllegalArgumentException("Part size must be at least " + AmazonS3StorageProperties.MIN_PART_SIZE);
+    }
+    if (properties.getCopyPartSize().compareTo(AmazonS3StorageProperties.MIN_PART_SIZE) < 0) {
+      throw new IllegalArgumentException("Copy part size must be at least " + AmazonS3StorageProperties.MIN_PART_SIZE);
+    }
+    if (properties.getCopyThreshold().compareTo(AmazonS3StorageProperties.MAX_COPY_SIZE) > 0) {
+      throw new IllegalArgumentException("Copy threshold must be at most " + AmazonS3StorageProperties.MAX_COPY_SIZE);
+    }
+    multipartThreshold = properties.getMultipartThreshold().toBytes();
+    copyThreshold = properties.getCopyThreshold().toBytes();
+    compression = new StorageCompression(properties.getCompression());
+    final CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("s3-transfer-");
+
+    threadFactory.setDaemon(true);
+    transferExecutor = Executors.newFixedThreadPool(properties.getTransferThreads(), threadFactory);
+    final PartBufferPool bufferPool = new PartBufferPool(Math.toIntExact(properties.getPartSize().toBytes()), properties.getPartBuffers(),
+        properties.getPartBufferTimeout());
+
+    multipartUploader = new S3MultipartUploader(s3Client, bucketName, bufferPool, transferExecutor, properties.getUploadConcurrency());
+    multipartCopier = new S3MultipartCopier(s3Client, bucketName, transferExecutor, properties.getCopyPartSize().toBytes(),
+        properties.getCopyConcurrency());
+  }
+
+  @PreDestroy
+  void shutdown() {
+    transferExecutor.shutdown();
   }
 
+  /**
+   * Stores the file. When the size is known and not larger than the multipart threshold the content is streamed directly to Amazon S3.
+   * Otherwise (size unknown or large) the content is uploaded as a multipart upload, uploading several parts in parallel.
+   * In both cases the content is never read into memory as a whole.
+   * Files stored compressed are stored with the gzip content encoding. The compressed size is not known up front, so they're uploaded
+   * as multipart upload, which uses a single put request when the compressed content fits in a single part.
+   * The checksum of the content is stored with the object: content streamed directly is checksummed by Amazon S3,
+   * which verifies it against the checksum sent by the client if any. The multipart uploader stores the checksum as user metadata,
+   * when it's known when the object is created (see {@link S3MultipartUploader#upload}).
+   */
   @Override
-  public void putFile(final String uuid, final String filename, final long size, final String expires, final InputStream in) throws IOException {
-    final String expiresValue = expires == null ? TAG_EXPIRES_NEVER : expires;
-    final PutObjectRequest.Builder builder = PutObjectRequest.builder()
-        .bucket(bucketName)
-        .key(key(uuid, filename))
-        .tagging(Tagging.builder().tagSet(Tag.builder().key(TAG_EXPIRES_KEY).value(expiresValue).build()).build());
-
-    s3Client.putObject(builder.build(), RequestBody.fromBytes(in.readAllBytes()));
+  public void putFile(final String uuid, final String filename, final long size, final String expires, final ChecksumInputStream in)
+      throws IOException {
+    final String key = S3Util.key(uuid, filename);
+    final String tagging = S3Util.expiresTagging(expires);
+    final S3ObjectMetadata stored;
+
+    if (compression.isCompressed(filename)) {
+      try (final InputStream compressed = compression.compress(in)) {
+        stored = multipartUploader.upload(key, tagging, StorageCompression.GZIP, compressed, () -> S3Util.knownChecksum(in));
+      }
+    } else if (size >= 0 && size <= multipartThreshold) {
+      final String expectedChecksum = in.getExpectedChecksum();
+      final PutObjectRequest.Builder builder = PutObjectRequest.builder()
+          .bucket(bucketName)
+          .key(key)
+          .tagging(tagging)
+          .checksumAlgorithm(ChecksumAlgorithm.SHA256)
+          .checksumSHA256(expectedChecksum == null ? null : S3Util.base64Checksum(expectedChecksum));
+      final String eTag = s3Client.putObject(builder.build(), RequestBody.fromInputStream(in, size)).eTag();
+
+      stored = new S3ObjectMetadata(eTag, in.getChecksum());
+    } else {
+      stored = multipartUploader.upload(key, tagging, null, in, () -> S3Util.knownChecksum(in));
+    }
+    metadataCache.put(key, stored);
   }
 
   @Override
   public String getFile(final String uuid, final String filename) throws FileNotFoundException {
     try {
-      final String key = key(uuid, filename);
-      checkFileExists(key);
-
-      final GetObjectPresignRequest objectPresignRequest = GetObjectPresignRequest.builder()
-          .signatureDuration(SIGNATURE_DURATION)
-          .getObjectRequest(d -> d
-              .bucket(bucketName)
-              .responseContentDisposition("attachment; filename=\"" + filename + "\"")
-              .key(key))
-          .build();
-      // Generate the presigned request
-      return presigner.presignGetObject(objectPresignRequest).url().toExternalForm();
+      final String key = S3Util.key(uuid, filename);
+      objectMetadata(key);
+
+      return presignedUrlCache.get(key, k -> presign(k, filename));
     } catch (final S3Exception e) {
       throw new FileNotFoundException(e.getMessage());
     }
   }
 
   /**
-   * Check if file exists by querying for attribute checksum. If not exists. It will throw a NoSuchKeyException if the key doesn't exist.
+   * Returns the checksum stored with the object, see {@link S3Util#checksum}. For a file just retrieved it's taken from the metadata cache.
+   */
+  @Override
+  public String getChecksum(final String uuid, final String filename) {
+    try {
+      return objectMetadata(S3Util.key(uuid, filename)).checksum();
+    } catch (final S3Exception e) {
+      return null;
+    }
+  }
+
+  private String presign(final String key, final String filename) {
+    return S3Util.presign(presigner, bucketName, presignedUrlCache.getSignatureDuration(), key, filename);
+  }
+
+  /**
+   * Returns the metadata of the object, which also checks if the file exists. Objects recently stored or checked are looked up in the
+   * metadata cache, otherwise Amazon S3 is queried with a head request. It will throw a NoSuchKeyException if the key doesn't exist.
+   * The metadata is loaded outside the cache, and only cached when no object was invalidated (deleted) while loading.
    * @param key key to check
    */
-  private void checkFileExists(final String key) {
-    s3Client.getObjectAttributes(
-        GetObjectAttributesRequest.builder().bucket(bucketName).key(key).objectAttributes(ObjectAttributes.CHECKSUM).build());
+  private S3ObjectMetadata objectMetadata(final String key) {
+    final S3ObjectMetadata cached = metadataCache.getIfPresent(key);
+
+    if (cached != null) {
+      return cached;
+    }
+    final long generation = metadataCache.generation();
+    final S3ObjectMetadata loaded = getObjectMetadata(key);
+
+    metadataCache.putLoaded(key, loaded, generation);
+    return loaded;
   }
 
+  private S3ObjectMetadata getObjectMetadata(final String key) {
+    final HeadObjectResponse response = s3Client.headObject(headObjectRequest(key));
+
+    return new S3ObjectMetadata(response.eTag(), S3Util.checksum(response));
+  }
+
+  private HeadObjectRequest headObjectRequest(final String key) {
+    return HeadObjectRequest.builder().bucket(bucketName).key(key).checksumMode(ChecksumMode.ENABLED).build();
+  }
+
+  /**
+   * Copies the file within the bucket. Objects up to the copy threshold are copied with a single copy request.
+   * Larger objects are copied as multipart copy, copying parts in parallel.
+   */
   @Override
   public void copyFile(final String sourceUuid, final String destinationUuid, final String filename, final String expires) throws IOException {
     try {
-      final String expiresValue = expires == null ? TAG_EXPIRES_NEVER : expires;
-      final CopyObjectRequest.Builder builder = CopyObjectRequest.builder()
-          .sourceBucket(bucketName)
-          .sourceKey(key(sourceUuid, filename))
-          .destinationBucket(bucketName)
-          .destinationKey(key(destinationUuid, filename))
-          .tagging(Tagging.builder().tagSet(Tag.builder().key(TAG_EXPIRES_KEY).value(expiresValue).build()).build());
-
-      s3Client.copyObject(builder.build());
+      final String sourceKey = S3Util.key(sourceUuid, filename);
+      final String destinationKey = S3Util.key(destinationUuid, filename);
+      final String tagging = S3Util.expiresTagging(expires);
+      final HeadObjectResponse source = s3Client.headObject(headObjectRequest(sourceKey));
+      final String eTag;
+
+      if (source.contentLength() > copyThreshold) {
+        eTag = multipartCopier.copy(sourceKey, source, destinationKey, tagging);
+      } else {
+        // The user metadata is copied, and Amazon S3 computes the checksum of the copy.
+        final CopyObjectRequest.Builder builder = CopyObjectRequest.builder()
+            .sourceBucket(bucketName)
+            .sourceKey(sourceKey)
+            .destinationBucket(bucketName)
+            .destinationKey(destinationKey)
+            .tagging(tagging)
+            .checksumAlgorithm(ChecksumAlgorithm.SHA256);
+
+        eTag = s3Client.copyObject(builder.build()).copyObjectResult().eTag();
+      }
+      metadataCache.put(destinationKey, new S3ObjectMetadata(eTag, S3Util.checksum(source)));
     } catch (final S3Exception e) {
       throw new IOException(e);
     }
@@ -128,46 +245,102 @@ public class AmazonS3StorageService implements StorageService {
 
   @Override
   public void deleteFile(final String uuid, final String filename) throws IOException {
-    deleteObjects(List.of(toDeleteObject(key(uuid, filename))));
+    final String key = S3Util.key(uuid, filename);
+
+    try {
+      deleteObjects(List.of(S3Util.toDeleteObject(key)));
+    } finally {
+      // Invalidate after the delete, so a concurrent get can't cache the object again while it's being deleted.
+      metadataCache.invalidate(key);
+    }
   }
 
+  /**
+   * Deletes all objects under the uuid. The objects are listed page by page, and the objects of each page are deleted
+   * in a single request on the transfer threads while the next page is listed.
+   * All delete requests are completed before returning, also when one of them or the listing fails.
+   * When the listing fails its exception is thrown, with the failures of the delete requests added as suppressed exceptions.
+   */
   @Override
   public void deleteFiles(final String uuid) throws IOException {
-    final ListObjectsRequest listObjects = ListObjectsRequest
-        .builder()
-        .bucket(bucketName)
-        .prefix(uuidWithPrefix(uuid))
-        .build();
-
-    deleteObjects(s3Client.listObjects(listObjects).contents().stream().map(S3Object::key).map(AmazonS3StorageService::toDeleteObject)
-        .toList());
-  }
+    final String prefix = S3Util.uuidWithPrefix(uuid);
+    final List<Future<Void>> deletes = new ArrayList<>();
 
-  private void deleteObjects(final List<ObjectIdentifier> toDelete) throws IOException {
     try {
-      final DeleteObjectsRequest dor = DeleteObjectsRequest.builder()
-          .bucket(bucketName)
-          .delete(d -> d.objects(toDelete))
-          .build();
+      String continuationToken = null;
+
+      do {
+        final ListObjectsV2Request listObjects = ListObjectsV2Request.builder()
+            .bucket(bucketName)
+            .prefix(prefix)
+            .maxKeys(S3Util.MAX_DELETE_KEYS)
+            .continuationToken(continuationToken)
+            .build();
+        final ListObjectsV2Response page = s3Client.listObjectsV2(listObjects);
+
+        if (!page.contents().isEmpty()) {
+          final List<ObjectIdentifier> toDelete = page.contents().stream().map(S3Object::key).map(S3Util::toDeleteObject).toList();
 
-      s3Client.deleteObjects(dor);
+          deletes.add(transferExecutor.submit(() -> {
+            deleteObjects(toDelete);
+            return null;
+          }));
+        }
+        continuationToken = Boolean.TRUE.equals(page.isTruncated()) ? page.nextContinuationToken() : null;
+      } while (continuationToken != null);
+      final List<IOException> failures = awaitDeletes(deletes);
+
+      if (!failures.isEmpty()) {
+        throw withSuppressed(failures.get(0), failures.subList(1, failures.size()));
+      }
     } catch (final S3Exception e) {
-      throw new IOException(e);
+      throw withSuppressed(new IOException(e), awaitDeletes(deletes));
+    } catch (final RuntimeException e) {
+      throw withSuppressed(e, awaitDeletes(deletes));
+    } finally {
+      metadataCache.invalidatePrefix(prefix);
     }
   }
 
-  private static String key(final String uuid, final String filename) {
-    return uuidWithPrefix(uuid) + filename;
-  }
+  /**
+   * Waits for all delete requests to complete.
+   *
+   * @return the failures of the delete requests, empty when all succeeded
+   */
+  private static List<IOException> awaitDeletes(final List<Future<Void>> deletes) {
+    final List<IOException> failures = new ArrayList<>();
 
-  private static String uuidWithPrefix(final String uuid) {
-    final String prefix = Character.digit(uuid.charAt(0), 16) == -1 ? String.valueOf(uuid.charAt(0)) : OTHER_PREFIX;
+    for (final Future<Void> delete : deletes) {
+      try {
+        delete.get();
+      } catch (final ExecutionException e) {
+        failures.add(e.getCause() instanceof final IOException ioe ? ioe : new IOException(e.getCause()));
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        failures.add(new InterruptedIOException("Interrupted while deleting files"));
+        break;
+      }
+    }
+    return failures;
+  }
 
-    return prefix + "/" + uuid + "/";
+  private static <E extends Exception> E withSuppressed(final E failure, final List<IOException> suppressed) {
+    suppressed.forEach(failure::addSuppressed);
+    return failure;
   }
 
-  private static ObjectIdentifier toDeleteObject(final String objectName) {
-    return ObjectIdentifier.builder().key(objectName).build();
+  private void deleteObjects(final List<ObjectIdentifier> toDelete) throws IOException {
+    try {
+      final DeleteObjectsRequest dor = DeleteObjectsRequest.builder()
+          .bucket(bucketName)
+          // Quiet mode, only report the objects that could not be deleted.
+          .delete(d -> d.objects(toDelete).quiet(true))
+          .build();
+
+      S3Util.checkDeleteErrors(s3Client.deleteObjects(dor));
+    } catch (final S3Exception e) {
+      throw new IOException(e);
+    }
   }
 
 }
@@ -0,0 +1,108 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.s3;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+
+/**
+ * Parts of a single multipart upload or copy, transferred in parallel on an executor.
+ * Keeps track of whether a part failed, so remaining parts can be skipped and the multipart upload aborted.
+ * Parts are added from a single thread, the failed state is shared with the threads transferring the parts.
+ */
+class MultipartParts {
+
+  private final List<Future<CompletedPart>> parts = new ArrayList<>();
+  private volatile boolean failed;
+
+  /**
+   * @return the part number of the next part to add
+   */
+  int nextPartNumber() {
+    return parts.size() + 1;
+  }
+
+  void add(final Future<CompletedPart> part) {
+    parts.add(part);
+  }
+
+  boolean isFailed() {
+    return failed;
+  }
+
+  void markFailed() {
+    failed = true;
+  }
+
+  /**
+   * Waits until all parts are transferred.
+   *
+   * @return the completed parts in order
+   * @throws InterruptedIOException when interrupted while waiting
+   * @throws RuntimeException the exception of the first part that failed
+   */
+  List<CompletedPart> await() throws InterruptedIOException {
+    final List<CompletedPart> completed = new ArrayList<>(parts.size());
+    RuntimeException failure = null;
+
+    for (final Future<CompletedPart> part : parts) {
+      try {
+        completed.add(part.get());
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for parts to transfer");
+      } catch (final ExecutionException e) {
+        if (failure == null) {
+          failure = e.getCause() instanceof final RuntimeException re ? re : new IllegalStateException(e.getCause());
+        }
+      }
+    }
+    if (failure != null) {
+      throw failure;
+    }
+    return completed;
+  }
+
+  /**
+   * Marks the transfer as failed and waits for parts already being transferred to finish, so the multipart upload can be aborted safely.
+   * Amazon S3 only guarantees an abort frees all storage when no part uploads are in progress.
+   */
+  void cancel() {
+    failed = true;
+    boolean interrupted = false;
+
+    for (final Future<CompletedPart> part : parts) {
+      while (!part.isDone()) {
+        try {
+          part.get();
+        } catch (final InterruptedException e) {
+          interrupted = true;
+        } catch (final ExecutionException e) {
+          // Already handled, only waiting here for the part to finish.
+        }
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
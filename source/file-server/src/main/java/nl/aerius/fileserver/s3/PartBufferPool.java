@@ -0,0 +1,85 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.s3;
+
+import java.io.InterruptedIOException;
+import java.time.Duration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded pool of reusable byte arrays used as part buffers for multipart uploads.
+ * Buffers are allocated lazily, and at most {@code maxBuffers} buffers are handed out at the same time.
+ * When all buffers are in use, {@link #acquire()} waits until one is released, but at most the given timeout.
+ * This bounds the heap used by concurrent uploads to {@code maxBuffers * bufferSize}, regardless of the size of the uploaded files.
+ * A buffer is held while it's filled from the client, so slow clients can hold all buffers. The timeout makes other uploads fail
+ * instead of waiting on them indefinitely.
+ */
+class PartBufferPool {
+
+  private final int bufferSize;
+  private final Duration timeout;
+  private final Semaphore available;
+  private final BlockingQueue<byte[]> idle = new LinkedBlockingQueue<>();
+
+  PartBufferPool(final int bufferSize, final int maxBuffers, final Duration timeout) {
+    this.bufferSize = bufferSize;
+    this.timeout = timeout;
+    this.available = new Semaphore(maxBuffers, true);
+  }
+
+  /**
+   * @return the size of the buffers in this pool
+   */
+  int getBufferSize() {
+    return bufferSize;
+  }
+
+  /**
+   * Returns a buffer from the pool, waiting until one is available.
+   *
+   * @return buffer of {@link #getBufferSize()} bytes
+   * @throws InterruptedIOException when interrupted while waiting for a buffer
+   * @throws RejectedExecutionException when no buffer became available within the timeout
+   */
+  byte[] acquire() throws InterruptedIOException {
+    try {
+      if (!available.tryAcquire(timeout.toNanos(), TimeUnit.NANOSECONDS)) {
+        throw new RejectedExecutionException("No upload buffer available within " + timeout);
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for an upload buffer");
+    }
+    final byte[] buffer = idle.poll();
+
+    return buffer == null ? new byte[bufferSize] : buffer;
+  }
+
+  /**
+   * Returns the buffer to the pool so it can be reused.
+   *
+   * @param buffer buffer previously obtained with {@link #acquire()}
+   */
+  void release(final byte[] buffer) {
+    idle.offer(buffer);
+    available.release();
+  }
+}
@@ -16,34 +16,136 @@
  */
 package nl.aerius.fileserver.s3;
 
+import java.time.Duration;
+
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Lazy;
 
+import nl.aerius.fileserver.s3.AmazonS3StorageProperties.Http;
+import nl.aerius.fileserver.s3.AmazonS3StorageProperties.HttpClientType;
+
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
 import software.amazon.awssdk.core.SdkSystemSetting;
+import software.amazon.awssdk.http.SdkHttpClient;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
+import software.amazon.awssdk.http.crt.AwsCrtHttpClient;
+import software.amazon.awssdk.http.crt.TcpKeepAliveConfiguration;
+import software.amazon.awssdk.http.nio.netty.NettyNioAsyncHttpClient;
 import software.amazon.awssdk.regions.Region;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 
 /**
  * Factory to create Amazon S3 api objects.
+ * The clients and presigner share the credentials provider and region, and the clients use the configured HTTP connection pool.
  */
 @Configuration
 class S3ClientFactory {
 
+  // Interval and timeout of TCP keepalive probes on CRT connections.
+  private static final Duration TCP_KEEP_ALIVE_INTERVAL = Duration.ofSeconds(30);
+  private static final Duration TCP_KEEP_ALIVE_TIMEOUT = Duration.ofSeconds(10);
+
+  @Bean
+  @Lazy
+  public AwsCredentialsProvider awsCredentialsProvider() {
+    return DefaultCredentialsProvider.builder().build();
+  }
+
   @Bean
   @Lazy
-  public S3Client s3Client() {
+  public S3Client s3Client(final AmazonS3StorageProperties properties, final AwsCredentialsProvider credentialsProvider,
+      final S3HttpMetricPublisher metricPublisher) {
     return S3Client.builder()
-        .region(Region.of(System.getenv(SdkSystemSetting.AWS_REGION.environmentVariable())))
-        .credentialsProvider(DefaultCredentialsProvider.builder().build())
+        .region(region())
+        .credentialsProvider(credentialsProvider)
+        .httpClient(httpClient(properties.getHttp()))
+        .overrideConfiguration(c -> c.addMetricPublisher(metricPublisher))
+        .build();
+  }
+
+  /**
+   * Creates the asynchronous client. With the CRT client the CRT based Amazon S3 client is used, which transfers large objects
+   * in parallel parts on native threads. Otherwise the Java based client with multipart support on Netty is used.
+   * Both split uploads and copies of large objects into parts by themselves.
+   */
+  @Bean
+  @Lazy
+  public S3AsyncClient s3AsyncClient(final AmazonS3StorageProperties properties, final AwsCredentialsProvider credentialsProvider,
+      final S3HttpMetricPublisher metricPublisher) {
+    final Http http = properties.getHttp();
+    final long partSize = properties.getPartSize().toBytes();
+    final long threshold = properties.getMultipartThreshold().toBytes();
+
+    if (http.getClient() == HttpClientType.CRT) {
+      return S3AsyncClient.crtBuilder()
+          .region(region())
+          .credentialsProvider(credentialsProvider)
+          .maxConcurrency(http.getMaxConnections())
+          .httpConfiguration(c -> c.connectionTimeout(http.getConnectionTimeout()))
+          .minimumPartSizeInBytes(partSize)
+          .thresholdInBytes(threshold)
+          .build();
+    }
+    return S3AsyncClient.builder()
+        .region(region())
+        .credentialsProvider(credentialsProvider)
+        .httpClientBuilder(NettyNioAsyncHttpClient.builder()
+            .maxConcurrency(http.getMaxConnections())
+            .connectionAcquisitionTimeout(http.getConnectionAcquisitionTimeout())
+            .connectionTimeout(http.getConnectionTimeout())
+            .readTimeout(http.getSocketTimeout())
+            .writeTimeout(http.getSocketTimeout())
+            .connectionTimeToLive(http.getConnectionTimeToLive())
+            .connectionMaxIdleTime(http.getConnectionMaxIdleTime())
+            .useIdleConnectionReaper(http.isUseIdleConnectionReaper())
+            .tcpKeepAlive(http.isTcpKeepAlive()))
+        .overrideConfiguration(c -> c.addMetricPublisher(metricPublisher))
+        .multipartEnabled(true)
+        .multipartConfiguration(c -> c.minimumPartSizeInBytes(partSize).thresholdInBytes(threshold))
         .build();
   }
 
   @Bean
   @Lazy
-  public S3Presigner presigner() {
-    return S3Presigner.create();
+  public S3Presigner presigner(final AwsCredentialsProvider credentialsProvider) {
+    return S3Presigner.builder()
+        .region(region())
+        .credentialsProvider(credentialsProvider)
+        .build();
+  }
+
+  private static SdkHttpClient httpClient(final Http http) {
+    if (http.getClient() == HttpClientType.CRT) {
+      final AwsCrtHttpClient.Builder builder = AwsCrtHttpClient.builder()
+          .maxConcurrency(http.getMaxConnections())
+          .connectionTimeout(http.getConnectionTimeout())
+          .connectionMaxIdleTime(http.getConnectionMaxIdleTime());
+
+      if (http.isTcpKeepAlive()) {
+        builder.tcpKeepAliveConfiguration(TcpKeepAliveConfiguration.builder()
+            .keepAliveInterval(TCP_KEEP_ALIVE_INTERVAL)
+            .keepAliveTimeout(TCP_KEEP_ALIVE_TIMEOUT)
+            .build());
+      }
+      return builder.build();
+    }
+    return ApacheHttpClient.builder()
+        .maxConnections(http.getMaxConnections())
+        .connectionAcquisitionTimeout(http.getConnectionAcquisitionTimeout())
+        .connectionTimeout(http.getConnectionTimeout())
+        .socketTimeout(http.getSocketTimeout())
+        .connectionTimeToLive(http.getConnectionTimeToLive())
+        .connectionMaxIdleTime(http.getConnectionMaxIdleTime())
+        .useIdleConnectionReaper(http.isUseIdleConnectionReaper())
+        .tcpKeepAlive(http.isTcpKeepAlive())
+        .build();
+  }
+
+  private static Region region() {
+    return Region.of(System.getenv(SdkSystemSetting.AWS_REGION.environmentVariable()));
   }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.s3;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+import software.amazon.awssdk.http.HttpMetric;
+import software.amazon.awssdk.metrics.MetricCollection;
+import software.amazon.awssdk.metrics.MetricPublisher;
+
+/**
+ * Publishes the connection pool metrics the Amazon S3 client collects per request as Micrometer metrics.
+ * The gauges show the state of the pool as reported by the most recent request.
+ * A growing number of pending acquires and a rising acquire time indicate the pool is too small for the load,
+ * as opposed to Amazon S3 throttling requests.
+ */
+@Component
+@Profile("s3")
+class S3HttpMetricPublisher implements MetricPublisher, MeterBinder {
+
+  private static final String METRIC_PREFIX = "s3.client.http.connections";
+
+  private final AtomicLong maxConcurrency = new AtomicLong();
+  private final AtomicLong leasedConcurrency = new AtomicLong();
+  private final AtomicLong availableConcurrency = new AtomicLong();
+  private final AtomicLong pendingAcquires = new AtomicLong();
+  private volatile Timer acquireTimer;
+
+  @Override
+  public void bindTo(final MeterRegistry registry) {
+    Gauge.builder(METRIC_PREFIX + ".max", maxConcurrency, AtomicLong::get)
+        .description("Maximum number of connections to Amazon S3")
+        .register(registry);
+    Gauge.builder(METRIC_PREFIX + ".leased", leasedConcurrency, AtomicLong::get)
+        .description("Number of connections to Amazon S3 in use")
+        .register(registry);
+    Gauge.builder(METRIC_PREFIX + ".available", availableConcurrency, AtomicLong::get)
+        .description("Number of idle connections to Amazon S3 in the pool")
+        .register(registry);
+    Gauge.builder(METRIC_PREFIX + ".pending", pendingAcquires, AtomicLong::get)
+        .description("Number of requests waiting for a connection to Amazon S3")
+        .register(registry);
+    acquireTimer = Timer.builder(METRIC_PREFIX + ".acquire")
+        .description("Time waiting for a connection to Amazon S3")
+        .register(registry);
+  }
+
+  @Override
+  public void publish(final MetricCollection metricCollection) {
+    // The pool metrics are collected in the http client collection nested in each attempt of an api call.
+    metricCollection.children().forEach(this::publish);
+    metricCollection.metricValues(HttpMetric.MAX_CONCURRENCY).forEach(maxConcurrency::set);
+    metricCollection.metricValues(HttpMetric.LEASED_CONCURRENCY).forEach(leasedConcurrency::set);
+    metricCollection.metricValues(HttpMetric.AVAILABLE_CONCURRENCY).forEach(availableConcurrency::set);
+    metricCollection.metricValues(HttpMetric.PENDING_CONCURRENCY_ACQUIRES).forEach(pendingAcquires::set);
+    final Timer timer = acquireTimer;
+
+    if (timer != null) {
+      metricCollection.metricValues(HttpMetric.CONCURRENCY_ACQUIRE_DURATION).forEach(timer::record);
+    }
+  }
+
+  @Override
+  public void close() {
+    // Nothing to close, meters are owned by the registry.
+  }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.s3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+
+/**
+ * Copies large objects within the bucket with the multipart upload api, copying ranges of the source object as parts with UploadPartCopy.
+ * The data is copied by Amazon S3 itself, the file server only sends the requests.
+ * Parts are copied in parallel on the given executor, per copy at most {@code concurrency} parts at the same time.
+ * Each part is only copied if the source object still has the entity tag it had when the copy started,
+ * so a copy never combines parts of different versions of the source when the source is replaced during the copy.
+ * If the copy fails the multipart upload is aborted, so no orphaned parts are left behind in the bucket.
+ */
+class S3MultipartCopier {
+
+  private static final Logger LOG = LoggerFactory.getLogger(S3MultipartCopier.class);
+
+  // Maximum number of parts of a multipart upload as allowed by Amazon S3.
+  private static final long MAX_PARTS = 10_000;
+
+  private final S3Client s3Client;
+  private final String bucketName;
+  private final ExecutorService executor;
+  private final long partSize;
+  private final int concurrency;
+
+  S3MultipartCopier(final S3Client s3Client, final String bucketName, final ExecutorService executor, final long partSize,
+      final int concurrency) {
+    this.s3Client = s3Client;
+    this.bucketName = bucketName;
+    this.executor = executor;
+    this.partSize = partSize;
+    this.concurrency = concurrency;
+  }
+
+  /**
+   * Copies the source object to the destination key. The content type and user metadata of the source object are kept,
+   * the tags are replaced by the given tagging. The checksum of the source is kept as user metadata,
+   * as Amazon S3 computes the checksum of a multipart copy from the checksums of the parts.
+   *
+   * @param sourceKey key of the object to copy
+   * @param source metadata of the object to copy
+   * @param destinationKey key to copy the object to
+   * @param tagging url encoded tags to set on the copy
+   * @return entity tag of the copy
+   * @throws IOException when interrupted while copying
+   * @throws SdkException when a part could not be copied,
+   *     for example with status 412 (precondition failed) when the source object was replaced during the copy
+   */
+  String copy(final String sourceKey, final HeadObjectResponse source, final String destinationKey, final String tagging) throws IOException {
+    final long size = source.contentLength();
+    // Use larger parts when the object doesn't fit in the maximum number of parts.
+    final long copyPartSize = Math.max(partSize, (size + MAX_PARTS - 1) / MAX_PARTS);
+    final String uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+        .bucket(bucketName)
+        .key(destinationKey)
+        .tagging(tagging)
+        .contentType(source.contentType())
+        .contentEncoding(source.contentEncoding())
+        .metadata(metadata(source))
+        .build()).uploadId();
+    final MultipartParts parts = new MultipartParts();
+    final Semaphore permits = new Semaphore(concurrency);
+
+    try {
+      for (long start = 0; start < size && !parts.isFailed(); start += copyPartSize) {
+        acquire(permits);
+        submit(parts, permits, sourceKey, source.eTag(), destinationKey, uploadId, start, Math.min(start + copyPartSize, size) - 1);
+      }
+      final List<CompletedPart> completed = parts.await();
+
+      return s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+          .bucket(bucketName)
+          .key(destinationKey)
+          .uploadId(uploadId)
+          .multipartUpload(CompletedMultipartUpload.builder().parts(completed).build())
+          .build()).eTag();
+    } catch (final IOException | RuntimeException e) {
+      parts.cancel();
+      abort(destinationKey, uploadId);
+      throw e;
+    }
+  }
+
+  private void submit(final MultipartParts parts, final Semaphore permits, final String sourceKey, final String sourceETag,
+      final String destinationKey, final String uploadId, final long firstByte, final long lastByte) {
+    final int partNumber = parts.nextPartNumber();
+    final UploadPartCopyRequest request = UploadPartCopyRequest.builder()
+        .sourceBucket(bucketName)
+        .sourceKey(sourceKey)
+        .copySourceIfMatch(sourceETag)
+        .destinationBucket(bucketName)
+        .destinationKey(destinationKey)
+        .uploadId(uploadId)
+        .partNumber(partNumber)
+        .copySourceRange("bytes=" + firstByte + "-" + lastByte)
+        .build();
+
+    try {
+      parts.add(executor.submit(() -> {
+        try {
+          // Don't copy any more parts when another part already failed, the upload will be aborted anyway.
+          return parts.isFailed() ? null
+              : CompletedPart.builder().partNumber(partNumber).eTag(s3Client.uploadPartCopy(request).copyPartResult().eTag()).build();
+        } catch (final RuntimeException e) {
+          parts.markFailed();
+          throw e;
+        } finally {
+          permits.release();
+        }
+      }));
+    } catch (final RejectedExecutionException e) {
+      permits.release();
+      throw e;
+    }
+  }
+
+  private static Map<String, String> metadata(final HeadObjectResponse source) {
+    final Map<String, String> metadata = new HashMap<>(source.metadata());
+
+    metadata.putAll(S3Util.checksumMetadata(S3Util.checksum(source)));
+    return metadata;
+  }
+
+  private static void acquire(final Semaphore permits) throws InterruptedIOException {
+    try {
+      permits.acquire();
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for parts to copy");
+    }
+  }
+
+  private void abort(final String key, final String uploadId) {
+    try {
+      s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder().bucket(bucketName).key(key).uploadId(uploadId).build());
+    } catch (final SdkException e) {
+      LOG.warn("Failed to abort multipart copy {} for {}, parts could be left behind until the bucket lifecycle removes them.", uploadId, key, e);
+    }
+  }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.s3;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.aerius.fileserver.s3.S3ObjectMetadataCache.S3ObjectMetadata;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.S3Client;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompletedMultipartUpload;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
+
+/**
+ * Uploads streams of unknown or large size to Amazon S3 with the multipart upload api.
+ * The stream is read part by part into buffers from a {@link PartBufferPool}, so the whole content is never held in memory.
+ * Parts are uploaded in parallel on the given executor. Per upload at most {@code concurrency} parts are in memory at the same time:
+ * when that limit is reached reading the input blocks until a part has been uploaded.
+ * If the upload fails the multipart upload is aborted, so no orphaned parts are left behind in the bucket.
+ */
+class S3MultipartUploader {
+
+  private static final Logger LOG = LoggerFactory.getLogger(S3MultipartUploader.class);
+
+  private static final String CONTENT_TYPE = "application/octet-stream";
+
+  private final S3Client s3Client;
+  private final String bucketName;
+  private final PartBufferPool bufferPool;
+  private final ExecutorService executor;
+  private final int concurrency;
+
+  S3MultipartUploader(final S3Client s3Client, final String bucketName, final PartBufferPool bufferPool, final ExecutorService executor,
+      final int concurrency) {
+    this.s3Client = s3Client;
+    this.bucketName = bucketName;
+    this.bufferPool = bufferPool;
+    this.executor = executor;
+    this.concurrency = concurrency;
+  }
+
+  /**
+   * Uploads the content of the input stream. If the content fits in a single part it's uploaded with a single put request.
+   * The checksum of the content is stored with the object as user metadata when it's known when the object is created:
+   * for content that fits in a single part it's known once the part is read, for a multipart upload only when sent by the client.
+   *
+   * @param key key to store the object under
+   * @param tagging url encoded tags to set on the object
+   * @param contentEncoding content encoding of the content, or null if not encoded
+   * @param in stream with the content to upload
+   * @param checksum supplies the checksum of the (unencoded) content known so far, or null if not known
+   * @return metadata of the stored object
+   * @throws IOException in case reading the input failed
+   */
+  S3ObjectMetadata upload(final String key, final String tagging, final String contentEncoding, final InputStream in,
+      final Supplier<String> checksum) throws IOException {
+    final byte[] buffer = bufferPool.acquire();
+    final int length;
+
+    try {
+      length = in.readNBytes(buffer, 0, buffer.length);
+    } catch (final IOException e) {
+      bufferPool.release(buffer);
+      throw e;
+    }
+    if (length < buffer.length) {
+      // Content fits in a single part, a multipart upload would only add overhead.
+      final String storedChecksum = checksum.get();
+      final PutObjectRequest request = PutObjectRequest.builder()
+          .bucket(bucketName)
+          .key(key)
+          .tagging(tagging)
+          .contentEncoding(contentEncoding)
+          .metadata(S3Util.checksumMetadata(storedChecksum))
+          .build();
+
+      try {
+        return new S3ObjectMetadata(s3Client.putObject(request, requestBody(buffer, length)).eTag(), storedChecksum);
+      } finally {
+        bufferPool.release(buffer);
+      }
+    } else {
+      return uploadParts(key, tagging, contentEncoding, in, checksum.get(), buffer, length);
+    }
+  }
+
+  /**
+   * Uploads the content as multipart upload. The given buffer contains the first part, and will be released by this method.
+   */
+  private S3ObjectMetadata uploadParts(final String key, final String tagging, final String contentEncoding, final InputStream in,
+      final String storedChecksum, final byte[] firstBuffer, final int firstLength) throws IOException {
+    final String uploadId;
+
+    try {
+      uploadId = s3Client.createMultipartUpload(CreateMultipartUploadRequest.builder()
+          .bucket(bucketName)
+          .key(key)
+          .tagging(tagging)
+          .contentEncoding(contentEncoding)
+          .metadata(S3Util.checksumMetadata(storedChecksum))
+          .build()).uploadId();
+    } catch (final RuntimeException e) {
+      bufferPool.release(firstBuffer);
+      throw e;
+    }
+    final Upload upload = new Upload(key, uploadId);
+
+    try {
+      byte[] buffer = firstBuffer;
+      int length = firstLength;
+
+      while (true) {
+        upload.submit(buffer, length);
+        if (length < buffer.length || upload.isFailed()) {
+          break;
+        }
+        buffer = upload.nextBuffer();
+        length = upload.read(in, buffer);
+        if (length == 0) {
+          upload.recycle(buffer);
+          break;
+        }
+      }
+      final List<CompletedPart> parts = upload.awaitParts();
+
+      final String eTag = s3Client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+          .bucket(bucketName)
+          .key(key)
+          .uploadId(uploadId)
+          .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+          .build()).eTag();
+
+      return new S3ObjectMetadata(eTag, storedChecksum);
+    } catch (final IOException | RuntimeException e) {
+      upload.cancel();
+      abort(key, uploadId);
+      throw e;
+    }
+  }
+
+  private void abort(final String key, final String uploadId) {
+    try {
+      s3Client.abortMultipartUpload(AbortMultipartUploadRequest.builder().bucket(bucketName).key(key).uploadId(uploadId).build());
+    } catch (final SdkException e) {
+      LOG.warn("Failed to abort multipart upload {} for {}, parts could be left behind until the bucket lifecycle removes them.", uploadId, key, e);
+    }
+  }
+
+  /**
+   * Creates a request body on the given part of the buffer without copying the buffer.
+   */
+  private static RequestBody requestBody(final byte[] buffer, final int length) {
+    return RequestBody.fromContentProvider(() -> new ByteArrayInputStream(buffer, 0, length), length, CONTENT_TYPE);
+  }
+
+  /**
+   * State of a single multipart upload in progress.
+   */
+  private final class Upload {
+    private final String key;
+    private final String uploadId;
+    private final MultipartParts parts = new MultipartParts();
+    // The first part is read before the upload is created and already counts as one of the parts in memory.
+    private final Semaphore permits = new Semaphore(concurrency - 1);
+
+    Upload(final String key, final String uploadId) {
+      this.key = key;
+      this.uploadId = uploadId;
+    }
+
+    boolean isFailed() {
+      return parts.isFailed();
+    }
+
+    /**
+     * Returns a buffer for the next part. Blocks while the maximum number of parts of this upload is in memory.
+     */
+    byte[] nextBuffer() throws IOException {
+      try {
+        permits.acquire();
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for parts to upload");
+      }
+      try {
+        return bufferPool.acquire();
+      } catch (final IOException e) {
+        permits.release();
+        throw e;
+      }
+    }
+
+    int read(final InputStream in, final byte[] buffer) throws IOException {
+      try {
+        return in.readNBytes(buffer, 0, buffer.length);
+      } catch (final IOException e) {
+        recycle(buffer);
+        throw e;
+      }
+    }
+
+    void recycle(final byte[] buffer) {
+      bufferPool.release(buffer);
+      permits.release();
+    }
+
+    void submit(final byte[] buffer, final int length) {
+      final int partNumber = parts.nextPartNumber();
+      final Future<CompletedPart> part;
+
+      try {
+        part = executor.submit(() -> {
+          try {
+            // Don't upload any more parts when another part already failed, the upload will be aborted anyway.
+            return parts.isFailed() ? null : uploadPart(partNumber, buffer, length);
+          } catch (final RuntimeException e) {
+            parts.markFailed();
+            throw e;
+          } finally {
+            recycle(buffer);
+          }
+        });
+      } catch (final RejectedExecutionException e) {
+        recycle(buffer);
+        throw e;
+      }
+      parts.add(part);
+    }
+
+    private CompletedPart uploadPart(final int partNumber, final byte[] buffer, final int length) {
+      final UploadPartRequest request = UploadPartRequest.builder()
+          .bucket(bucketName)
+          .key(key)
+          .uploadId(uploadId)
+          .partNumber(partNumber)
+          .contentLength((long) length)
+          .build();
+      final UploadPartResponse response = s3Client.uploadPart(request, requestBody(buffer, length));
+
+      return CompletedPart.builder().partNumber(partNumber).eTag(response.eTag()).build();
+    }
+
+    /**
+     * Waits until all parts are uploaded.
+     *
+     * @return the completed parts in order
+     * @throws IOException when interrupted while waiting
+     * @throws RuntimeException the exception of the first part that failed
+     */
+    List<CompletedPart> awaitParts() throws IOException {
+      return parts.await();
+    }
+
+    /**
+     * Waits for parts already being uploaded to finish, so the upload can be aborted safely.
+     */
+    void cancel() {
+      parts.cancel();
+    }
+  }
+}
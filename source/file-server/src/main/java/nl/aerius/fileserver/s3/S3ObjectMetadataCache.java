@@ -0,0 +1,135 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.s3;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * Bounded in-process cache of metadata of objects known to exist in Amazon S3, to avoid a round-trip to Amazon S3 to check if a file exists.
+ * Entries expire after the configured time to live, and the least used entries are evicted when the cache is full.
+ * Only existing objects are cached. Because other file server instances can delete objects, an entry can be stale until it expires.
+ * Hit and miss counts are published as cache metrics.
+ *
+ * Metadata loaded from Amazon S3 is not loaded within the cache, because that holds a monitor while waiting on Amazon S3,
+ * which would pin the carrier thread when running on a virtual thread. Instead the metadata is loaded outside the cache and then added,
+ * unless an object was invalidated while it was loaded: the object may have been deleted after its metadata was retrieved.
+ * Invalidations are counted with a single generation counter, so a load concurrent with the invalidation of any object is not cached.
+ * Invalidations are rare compared to loads, so this only occasionally skips caching an object.
+ */
+@Component
+@Profile("s3")
+class S3ObjectMetadataCache implements MeterBinder {
+
+  private static final String CACHE_NAME = "s3.object.metadata";
+
+  private final Cache<String, S3ObjectMetadata> cache;
+  private final AtomicLong generation = new AtomicLong();
+
+  S3ObjectMetadataCache(final AmazonS3StorageProperties properties) {
+    cache = Caffeine.newBuilder()
+        .maximumSize(properties.getMetadataCacheSize())
+        .expireAfterWrite(properties.getMetadataCacheTtl())
+        .recordStats()
+        .build();
+  }
+
+  @Override
+  public void bindTo(final MeterRegistry registry) {
+    CaffeineCacheMetrics.monitor(registry, cache, CACHE_NAME);
+  }
+
+  /**
+   * Returns the metadata of the object if in the cache.
+   *
+   * @param key key of the object
+   * @return metadata of the object or null if not in the cache
+   */
+  S3ObjectMetadata getIfPresent(final String key) {
+    return cache.getIfPresent(key);
+  }
+
+  /**
+   * Returns the current generation, to be read before loading metadata from Amazon S3 and passed to {@link #putLoaded}.
+   *
+   * @return current generation
+   */
+  long generation() {
+    return generation.get();
+  }
+
+  /**
+   * Adds the metadata of an object loaded from Amazon S3, unless any object was invalidated since the generation was read,
+   * or the metadata of the object was added in the meantime (which is then more recent).
+   *
+   * @param key key of the object
+   * @param metadata metadata of the object
+   * @param loadGeneration the generation read before the metadata was loaded
+   */
+  void putLoaded(final String key, final S3ObjectMetadata metadata, final long loadGeneration) {
+    // The check is done within compute, so it's atomic with respect to invalidating the key, which happens after increasing the generation.
+    cache.asMap().compute(key, (k, current) -> current == null && generation.get() == loadGeneration ? metadata : current);
+  }
+
+  /**
+   * Adds or replaces the metadata of an object that was just stored.
+   *
+   * @param key key of the object
+   * @param metadata metadata of the object
+   */
+  void put(final String key, final S3ObjectMetadata metadata) {
+    cache.put(key, metadata);
+  }
+
+  /**
+   * Removes the object from the cache.
+   *
+   * @param key key of the object
+   */
+  void invalidate(final String key) {
+    generation.incrementAndGet();
+    cache.invalidate(key);
+  }
+
+  /**
+   * Removes all objects with a key starting with the given prefix from the cache.
+   *
+   * @param prefix prefix of the keys to remove
+   */
+  void invalidatePrefix(final String prefix) {
+    generation.incrementAndGet();
+    cache.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+  }
+
+  /**
+   * Metadata of an object stored in Amazon S3.
+   *
+   * @param eTag entity tag of the object
+   * @param checksum SHA-256 checksum of the content stored with the object as hex string, or null if none or not known
+   */
+  record S3ObjectMetadata(String eTag, String checksum) {
+  }
+}
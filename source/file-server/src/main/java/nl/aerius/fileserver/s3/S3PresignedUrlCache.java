@@ -0,0 +1,147 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.s3;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.function.Function;
+
+import org.springframework.context.annotation.Profile;
+import org.springframework.stereotype.Component;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+
+/**
+ * Cache of presigned urls, so the same url is returned for a file until it's close to expiring.
+ * This avoids signing a new url on each request, and a stable url lets downstream proxies cache the redirect.
+ * An url is reused until 80% of its validity has passed, so a client always has at least 20% of the validity left to use the url.
+ * The validity is the signature duration, unless the url is signed with session credentials (STS/IRSA) expiring earlier.
+ * An url signed with such credentials is no longer valid once the credentials expire, so then the validity ends at their expiry.
+ * A presigned url for a key stays valid when the object is replaced, therefore the cache doesn't need to be invalidated when a file is stored.
+ */
+@Component
+@Profile("s3")
+class S3PresignedUrlCache implements MeterBinder {
+
+  private static final String CACHE_NAME = "s3.presigned.url";
+  private static final double REUSE_FRACTION = 0.8;
+
+  private final Duration signatureDuration;
+  private final AwsCredentialsProvider credentialsProvider;
+  private final Cache<String, PresignedUrl> cache;
+
+  S3PresignedUrlCache(final AmazonS3StorageProperties properties, final AwsCredentialsProvider credentialsProvider) {
+    signatureDuration = properties.getSignatureDuration();
+    this.credentialsProvider = credentialsProvider;
+    cache = Caffeine.newBuilder()
+        .maximumSize(properties.getPresignedUrlCacheSize())
+        .expireAfter(new PresignedUrlExpiry())
+        .recordStats()
+        .build();
+  }
+
+  @Override
+  public void bindTo(final MeterRegistry registry) {
+    CaffeineCacheMetrics.monitor(registry, cache, CACHE_NAME);
+  }
+
+  /**
+   * @return the duration presigned urls should be valid
+   */
+  Duration getSignatureDuration() {
+    return signatureDuration;
+  }
+
+  /**
+   * Returns the presigned url for the key, presigning a new url with the given function if not in the cache or close to expiring.
+   * The credentials are resolved and the url is presigned outside the cache, because resolving credentials can refresh them (STS),
+   * which would otherwise block other requests for the same key while holding the lock of the cache entry.
+   * Concurrent requests for a key not in the cache can therefore each presign an url, of which the last one is cached.
+   *
+   * @param key key of the object
+   * @param presign function to presign an url valid for {@link #getSignatureDuration()}
+   * @return presigned url
+   */
+  String get(final String key, final Function<String, String> presign) {
+    final PresignedUrl cached = cache.getIfPresent(key);
+
+    if (cached != null) {
+      return cached.url();
+    }
+    final PresignedUrl presigned = presign(key, presign);
+
+    cache.put(key, presigned);
+    return presigned.url();
+  }
+
+  private PresignedUrl presign(final String key, final Function<String, String> presign) {
+    // Resolved before signing, so a refresh of the credentials in between can only make the url valid longer than assumed.
+    final Duration validity = validity();
+
+    return new PresignedUrl(presign.apply(key), Duration.ofMillis((long) (validity.toMillis() * REUSE_FRACTION)));
+  }
+
+  /**
+   * @return time an url presigned now is valid, being the signature duration capped at the expiry of session credentials
+   */
+  private Duration validity() {
+    if (credentialsProvider.resolveCredentials() instanceof final AwsSessionCredentials sessionCredentials) {
+      return sessionCredentials.expirationTime()
+          .map(expirationTime -> Duration.between(Instant.now(), expirationTime))
+          .map(untilExpiry -> untilExpiry.isNegative() ? Duration.ZERO : untilExpiry)
+          .filter(untilExpiry -> untilExpiry.compareTo(signatureDuration) < 0)
+          .orElse(signatureDuration);
+    }
+    return signatureDuration;
+  }
+
+  /**
+   * Presigned url with the time it can be reused.
+   */
+  private record PresignedUrl(String url, Duration reuseDuration) {
+  }
+
+  /**
+   * Expires each url after its own reuse duration after it was presigned.
+   */
+  private static class PresignedUrlExpiry implements Expiry<String, PresignedUrl> {
+
+    @Override
+    public long expireAfterCreate(final String key, final PresignedUrl value, final long currentTime) {
+      return value.reuseDuration().toNanos();
+    }
+
+    @Override
+    public long expireAfterUpdate(final String key, final PresignedUrl value, final long currentTime, final long currentDuration) {
+      return value.reuseDuration().toNanos();
+    }
+
+    @Override
+    public long expireAfterRead(final String key, final PresignedUrl value, final long currentTime, final long currentDuration) {
+      return currentDuration;
+    }
+  }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.s3;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import nl.aerius.fileserver.storage.ChecksumInputStream;
+
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.S3Error;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+import software.amazon.awssdk.utils.http.SdkHttpUtils;
+
+/**
+ * Util with the object key layout, tagging, checksums and presigning shared by the blocking and asynchronous Amazon S3 storage services.
+ */
+final class S3Util {
+
+  private static final String TAG_EXPIRES_KEY = "expires";
+  private static final String TAG_EXPIRES_NEVER = "never";
+  private static final String OTHER_PREFIX = "z";
+  // Maximum number of errors listed in the exception message when objects could not be deleted.
+  private static final int MAX_REPORTED_DELETE_ERRORS = 10;
+
+  /**
+   * Maximum number of keys that can be deleted with a single delete objects request.
+   */
+  static final int MAX_DELETE_KEYS = 1000;
+
+  /**
+   * User metadata (x-amz-meta-checksum-sha256) with the SHA-256 checksum, as hex string, of the content of a file.
+   * For a compressed file it's the checksum of the uncompressed content.
+   */
+  static final String CHECKSUM_METADATA = "checksum-sha256";
+
+  private S3Util() {
+    // Util class
+  }
+
+  /**
+   * Returns the url encoded tagging to set the expires tag on an object.
+   *
+   * @param expires expires tag value, if null the value never is used
+   * @return tagging as expected by the Amazon S3 api
+   */
+  static String expiresTagging(final String expires) {
+    final String expiresValue = expires == null ? TAG_EXPIRES_NEVER : expires;
+
+    return TAG_EXPIRES_KEY + "=" + SdkHttpUtils.urlEncode(expiresValue);
+  }
+
+  static String key(final String uuid, final String filename) {
+    return uuidWithPrefix(uuid) + filename;
+  }
+
+  static String uuidWithPrefix(final String uuid) {
+    final String prefix = Character.digit(uuid.charAt(0), 16) == -1 ? String.valueOf(uuid.charAt(0)) : OTHER_PREFIX;
+
+    return prefix + "/" + uuid + "/";
+  }
+
+  static ObjectIdentifier toDeleteObject(final String objectName) {
+    return ObjectIdentifier.builder().key(objectName).build();
+  }
+
+  /**
+   * Checks the response of a delete objects request for objects that could not be deleted.
+   *
+   * @param response response of the delete objects request
+   * @throws IOException listing the objects that could not be deleted
+   */
+  static void checkDeleteErrors(final DeleteObjectsResponse response) throws IOException {
+    if (response.hasErrors() && !response.errors().isEmpty()) {
+      final List<S3Error> errors = response.errors();
+
+      throw new IOException("Failed to delete " + errors.size() + " objects: " + errors.stream()
+          .limit(MAX_REPORTED_DELETE_ERRORS)
+          .map(e -> e.key() + " (" + e.code() + ": " + e.message() + ")")
+          .collect(Collectors.joining(", ")));
+    }
+  }
+
+  /**
+   * Returns the checksum of the content known so far: the checksum computed when the content was read completely,
+   * otherwise the checksum sent by the client, which the content will be verified against when it's read.
+   *
+   * @param in stream with the content
+   * @return checksum as lower case hex string, or null if not known
+   */
+  static String knownChecksum(final ChecksumInputStream in) {
+    if (in.getChecksum() != null) {
+      return in.getChecksum();
+    }
+    return in.getExpectedChecksum() == null ? null : in.getExpectedChecksum().toLowerCase(Locale.ROOT);
+  }
+
+  /**
+   * @param checksum SHA-256 checksum of the content as lower case hex string, or null if not known
+   * @return user metadata with the checksum, empty if the checksum is not known
+   */
+  static Map<String, String> checksumMetadata(final String checksum) {
+    return checksum == null ? Map.of() : Map.of(CHECKSUM_METADATA, checksum);
+  }
+
+  /**
+   * @param checksum SHA-256 checksum as hex string
+   * @return the checksum base64 encoded as used by the Amazon S3 checksum api, or null if the checksum is not a valid hex string
+   */
+  static String base64Checksum(final String checksum) {
+    try {
+      return Base64.getEncoder().encodeToString(HexFormat.of().parseHex(checksum));
+    } catch (final IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns the SHA-256 checksum of the content of an object: the checksum in the user metadata, or else the checksum computed by Amazon S3.
+   * The checksum computed by Amazon S3 is only the checksum of the content for an object stored as is with a single request:
+   * a compressed object is stored encoded, and the checksum of a multipart upload is computed from the checksums of the parts,
+   * suffixed with the number of parts.
+   *
+   * @param object metadata of the object, retrieved with the checksum mode enabled
+   * @return checksum as hex string, or null if not known
+   */
+  static String checksum(final HeadObjectResponse object) {
+    final String metadataChecksum = object.metadata().get(CHECKSUM_METADATA);
+
+    if (metadataChecksum != null) {
+      return metadataChecksum;
+    }
+    final String computedChecksum = object.checksumSHA256();
+
+    if (computedChecksum == null || object.contentEncoding() != null || computedChecksum.contains("-")) {
+      return null;
+    }
+    try {
+      return HexFormat.of().formatHex(Base64.getDecoder().decode(computedChecksum));
+    } catch (final IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Presigns an url to retrieve the object, which lets the client download the object as attachment with the given filename.
+   *
+   * @param presigner presigner to sign the url with
+   * @param bucketName bucket the object is stored in
+   * @param signatureDuration time the url is valid
+   * @param key key of the object
+   * @param filename filename set in the content disposition
+   * @return presigned url
+   */
+  static String presign(final S3Presigner presigner, final String bucketName, final Duration signatureDuration, final String key,
+      final String filename) {
+    final GetObjectPresignRequest objectPresignRequest = GetObjectPresignRequest.builder()
+        .signatureDuration(signatureDuration)
+        .getObjectRequest(d -> d
+            .bucket(bucketName)
+            .responseContentDisposition("attachment; filename=\"" + filename + "\"")
+            .key(key))
+        .build();
+    // Generate the presigned request
+    return presigner.presignGetObject(objectPresignRequest).url().toExternalForm();
+  }
+}
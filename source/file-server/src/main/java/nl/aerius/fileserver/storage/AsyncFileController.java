@@ -0,0 +1,174 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.storage;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import nl.aerius.fileserver.util.FilenameUtil;
+
+/**
+ * Generic base Controller implementing all HTTP methods except for the GET request on top of an {@link AsyncStorageService}.
+ * Responses are returned as futures, so the servlet thread is released while the storage operation is in progress.
+ * It behaves the same as {@link FileController}.
+ */
+public class AsyncFileController {
+
+  private static final Logger LOG = LoggerFactory.getLogger(AsyncFileController.class);
+
+  protected static final String FILE_PATH = FileController.FILE_PATH;
+
+  protected final AsyncStorageService storageService;
+
+  protected AsyncFileController(final AsyncStorageService storageService) {
+    this.storageService = storageService;
+  }
+
+  /**
+   * Stores a file.
+   *
+   * @param uuid uuid of file to put
+   * @param filename filename of the file to put
+   * @param expires optional expires header value should conform to RFC 1123
+   * @param request HttpServletRequest to get the file from, which should be in the body, optionally gzip compressed (Content-Encoding gzip)
+   * @return ok with the checksum of the stored content, or bad request if the content could not be stored or doesn't match the checksum header,
+   *         or service unavailable when too many files are being stored
+   */
+  @PutMapping(value = FILE_PATH, consumes = {MediaType.APPLICATION_OCTET_STREAM_VALUE, MediaType.APPLICATION_JSON_VALUE})
+  public CompletableFuture<ResponseEntity<Void>> putFile(final @PathVariable String uuid, final @PathVariable String filename,
+      @RequestParam(name = "expires", required = false) final String expires, final HttpServletRequest request) {
+    if (!RequestContent.isSupportedEncoding(request)) {
+      return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.UNSUPPORTED_MEDIA_TYPE).build());
+    }
+    try {
+      FilenameUtil.validateParameters(uuid, filename);
+      LOG.debug("Put file {}/{}", uuid, filename);
+
+      final long size = RequestContent.contentLength(request);
+      final ChecksumInputStream in = new ChecksumInputStream(RequestContent.inputStream(request), size,
+          request.getHeader(FileController.CHECKSUM_HEADER));
+
+      return storageService.putFile(uuid, filename, size, expires, in)
+          .handle((v, e) -> e == null ? FileController.checksumResponse(in) : toResponse(e, HttpStatus.BAD_REQUEST, "store"));
+    } catch (final IOException | RuntimeException e) {
+      return CompletableFuture.completedFuture(toResponse(e, HttpStatus.BAD_REQUEST, "store"));
+    }
+  }
+
+  /**
+   * Copy a file.
+   *
+   * @param sourceUuid uuid of file to copy from
+   * @param destinationUuid uuid of file to copy to
+   * @param filename filename of the file to put
+   * @param expires optional expires header value should conform to RFC 1123
+   */
+  @PutMapping(value = FileController.COPY_PATH)
+  public CompletableFuture<ResponseEntity<Void>> copyFile(@PathVariable final String sourceUuid, final @PathVariable String destinationUuid,
+      final @PathVariable String filename, @RequestParam(name = "expires", required = false) final String expires) {
+    try {
+      FilenameUtil.validateParameters(sourceUuid, filename);
+      FilenameUtil.validateParameters(destinationUuid, filename);
+      LOG.debug("Copy file {}/{} to {}/{}", sourceUuid, filename, destinationUuid, filename);
+
+      return storageService.copyFile(sourceUuid, destinationUuid, filename, expires)
+          .handle((v, e) -> toResponse(e, HttpStatus.NOT_FOUND, "copy"));
+    } catch (final IOException | RuntimeException e) {
+      return CompletableFuture.completedFuture(toResponse(e, HttpStatus.NOT_FOUND, "copy"));
+    }
+  }
+
+  /**
+   * Deletes the file for the given uuid and filename. If the file could not be deleted the method still returns ok.
+   *
+   * @param uuid uuid of file to delete
+   * @param filename filename of the file
+   */
+  @DeleteMapping(FILE_PATH)
+  public CompletableFuture<ResponseEntity<Void>> deleteFile(final @PathVariable String uuid, final @PathVariable String filename) {
+    try {
+      FilenameUtil.validateParameters(uuid, filename);
+      LOG.debug("Delete file {}/{}", uuid, filename);
+
+      return storageService.deleteFile(uuid, filename)
+          .handle((v, e) -> toResponse(e, HttpStatus.OK, "delete"));
+    } catch (final IOException | RuntimeException e) {
+      return CompletableFuture.completedFuture(toResponse(e, HttpStatus.OK, "delete"));
+    }
+  }
+
+  /**
+   * Deletes the file for the given uuid. If the file could not be deleted the method still returns ok.
+   *
+   * @param uuid uuid of files to delete
+   */
+  @DeleteMapping(FileController.UUID)
+  public CompletableFuture<ResponseEntity<Void>> deleteFiles(final @PathVariable String uuid) {
+    try {
+      if (!FilenameUtil.validateUuid(uuid)) {
+        throw new IOException("Invalid parameters");
+      }
+      LOG.debug("Delete files {}", uuid);
+
+      return storageService.deleteFiles(uuid)
+          .handle((v, e) -> toResponse(e, HttpStatus.OK, "delete"));
+    } catch (final IOException | RuntimeException e) {
+      return CompletableFuture.completedFuture(toResponse(e, HttpStatus.OK, "delete"));
+    }
+  }
+
+  /**
+   * Returns ok if the operation succeeded, service unavailable if it was rejected because of too many operations in progress,
+   * otherwise logs the exception and returns the given error status.
+   *
+   * @param throwable exception the operation failed with, or null if it succeeded
+   * @param errorStatus status to return when the operation failed
+   * @param action description of the operation for logging
+   * @return response
+   */
+  private static ResponseEntity<Void> toResponse(final Throwable throwable, final HttpStatus errorStatus, final String action) {
+    if (throwable == null) {
+      return ResponseEntity.ok().build();
+    }
+    final Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ? throwable.getCause() : throwable;
+
+    if (cause instanceof RejectedExecutionException) {
+      LOG.debug("Rejected to {} a file: {}", action, cause.getMessage());
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
+    }
+    if (cause instanceof IOException) {
+      LOG.trace("IOException when trying to {} a file", action, cause);
+    } else {
+      LOG.warn("Exception when trying to {} a file", action, cause);
+    }
+    return ResponseEntity.status(errorStatus).build();
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.storage;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Service interface for managing storage of files without blocking the calling thread while waiting on the storage.
+ * Each method returns a future that completes when the operation is done. Failures complete the future exceptionally
+ * with the exception the {@link StorageService} counterpart would throw.
+ */
+public interface AsyncStorageService {
+
+  /**
+   * Stores the file.
+   *
+   * @param uuid unique identifier to store the file under
+   * @param filename original name of the file
+   * @param size size of the data, or -1 if the size is unknown
+   * @param expires tag to set expiration of the file
+   * @param in inputstream to the file data, computing its checksum while it's read.
+   *        It's read after this method returns, and should stay open until the future completes
+   * @return future completing when the file is stored, or exceptionally with an {@link IOException},
+   *         or with a {@link RejectedExecutionException} when too many files are being stored
+   */
+  CompletableFuture<Void> putFile(String uuid, String filename, long size, String expires, ChecksumInputStream in);
+
+  /**
+   * Returns the location of the file.
+   *
+   * @param uuid unique identifier the file is stored by
+   * @param filename original name of the file
+   * @return future with the location of the file, or completing exceptionally with a {@link FileNotFoundException} when the file is unknown
+   */
+  CompletableFuture<String> getFile(String uuid, String filename);
+
+  /**
+   * @param sourceUuid The unique identifier the file to copy is stored by
+   * @param destinationUuid The unique identifier to copy the file to
+   * @param filename The original name of the file
+   * @param expires The tag to set expiration of the file in the destination
+   * @return future completing when the file is copied, or exceptionally with an {@link IOException}
+   */
+  CompletableFuture<Void> copyFile(String sourceUuid, String destinationUuid, String filename, String expires);
+
+  /**
+   * Deletes the file.
+   *
+   * @param uuid unique identifier the file is stored by
+   * @param filename original name of the file
+   * @return future completing when the file is deleted, or exceptionally with an {@link IOException}. Not when the file is not found
+   */
+  CompletableFuture<Void> deleteFile(String uuid, String filename);
+
+  /**
+   * Deletes all files under uuid
+   *
+   * @param uuid unique identifier the files are stored by
+   * @return future completing when the files are deleted, or exceptionally with an {@link IOException}. Not when no files are found
+   */
+  CompletableFuture<Void> deleteFiles(String uuid);
+}
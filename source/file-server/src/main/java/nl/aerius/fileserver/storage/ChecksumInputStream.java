@@ -0,0 +1,126 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.storage;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/**
+ * Input stream computing the SHA-256 checksum of the content while it's read, and verifying it against the checksum sent by the client.
+ *
+ * The checksum is verified when the last byte is read: when the expected size is reached, or at the end of the stream if the size is not known.
+ * On a mismatch the read fails, so the storage aborts the store before the file becomes visible, instead of storing corrupt content.
+ * Storage services get the content through this stream, so they can use the checksum computed while storing, without hashing the content again.
+ */
+public class ChecksumInputStream extends FilterInputStream {
+
+  private static final String HASH_ALGORITHM = "SHA-256";
+
+  private final MessageDigest digest;
+  private final String expectedChecksum;
+  private final long size;
+  private long count;
+  private String checksum;
+
+  /**
+   * @param in content to compute the checksum of
+   * @param size size of the content, or -1 if not known
+   * @param expectedChecksum SHA-256 checksum of the content as hex string sent by the client, or null if not sent
+   */
+  public ChecksumInputStream(final InputStream in, final long size, final String expectedChecksum) {
+    super(in);
+    this.size = size;
+    this.expectedChecksum = expectedChecksum;
+    try {
+      digest = MessageDigest.getInstance(HASH_ALGORITHM);
+    } catch (final NoSuchAlgorithmException e) {
+      // Every Java platform is required to support SHA-256.
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * @return the SHA-256 checksum of the content as hex string, or null if the content has not been read completely
+   */
+  public String getChecksum() {
+    return checksum;
+  }
+
+  /**
+   * @return the SHA-256 checksum of the content as hex string sent by the client, or null if not sent
+   */
+  public String getExpectedChecksum() {
+    return expectedChecksum;
+  }
+
+  @Override
+  public int read() throws IOException {
+    final int b = super.read();
+
+    if (b == -1) {
+      complete();
+    } else {
+      digest.update((byte) b);
+      count(1);
+    }
+    return b;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    final int read = super.read(b, off, len);
+
+    if (read == -1) {
+      complete();
+    } else {
+      digest.update(b, off, read);
+      count(read);
+    }
+    return read;
+  }
+
+  @Override
+  public long skip(final long n) throws IOException {
+    // Skipped content would not be part of the checksum.
+    throw new IOException("Skip not supported");
+  }
+
+  @Override
+  public boolean markSupported() {
+    return false;
+  }
+
+  private void count(final int read) throws IOException {
+    count += read;
+    if (count == size) {
+      complete();
+    }
+  }
+
+  private void complete() throws IOException {
+    if (checksum == null) {
+      checksum = HexFormat.of().formatHex(digest.digest());
+    }
+    if (expectedChecksum != null && !expectedChecksum.equalsIgnoreCase(checksum)) {
+      throw new IOException("Checksum mismatch, expected " + expectedChecksum + " but was " + checksum);
+    }
+  }
+}
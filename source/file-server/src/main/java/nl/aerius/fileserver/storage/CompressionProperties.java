@@ -0,0 +1,84 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jakarta.validation.constraints.Max;
+import jakarta.validation.constraints.Min;
+import jakarta.validation.constraints.NotNull;
+
+/**
+ * Configuration of compressing files when stored.
+ */
+public class CompressionProperties {
+
+  /**
+   * Store files matching the patterns gzip compressed.
+   */
+  private boolean enabled;
+
+  /**
+   * Patterns of the names of files to compress, with * as wildcard. Matched case insensitive.
+   * Don't include files that are already compressed, like zip files, as compressing those again only costs time.
+   */
+  private @NotNull List<String> patterns = new ArrayList<>(List.of("*.gml", "*.json", "*.xml", "*.csv", "*.txt"));
+
+  /**
+   * Compression level, from 1 (fastest) to 9 (smallest).
+   */
+  private @Min(1) @Max(9) int level = 6;
+
+  /**
+   * Compress files matching the patterns that are not stored compressed when sent to clients accepting gzip.
+   * Only applies to local storage, files in Amazon S3 are retrieved directly from Amazon S3.
+   */
+  private boolean responses;
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public void setEnabled(final boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  public List<String> getPatterns() {
+    return patterns;
+  }
+
+  public void setPatterns(final List<String> patterns) {
+    this.patterns = patterns;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  public void setLevel(final int level) {
+    this.level = level;
+  }
+
+  public boolean isResponses() {
+    return responses;
+  }
+
+  public void setResponses(final boolean responses) {
+    this.responses = responses;
+  }
+}
@@ -17,11 +17,13 @@
 package nl.aerius.fileserver.storage;
 
 import java.io.IOException;
+import java.util.concurrent.RejectedExecutionException;
 
-import jakarta.servlet.ServletRequest;
+import jakarta.servlet.http.HttpServletRequest;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.DeleteMapping;
@@ -40,10 +42,16 @@ public class FileController {
 
   private static final String SLASH = "/";
 
-  private static final String UUID = "{uuid}";
+  static final String UUID = "{uuid}";
   private static final String FILENAME = "{filename}";
   protected static final String FILE_PATH = UUID + SLASH + FILENAME;
-  private static final String COPY_PATH = "copy/{sourceUuid}/{destinationUuid}" + SLASH + FILENAME;
+  static final String COPY_PATH = "copy/{sourceUuid}/{destinationUuid}" + SLASH + FILENAME;
+
+  /**
+   * Header with the SHA-256 checksum, as hex string, of the content of a file. The checksum is of the content, not of the encoded content.
+   * Sent by clients to verify an upload, and returned by the file server with the stored or retrieved content.
+   */
+  public static final String CHECKSUM_HEADER = "X-Checksum-SHA256";
 
   protected final StorageService storageService;
 
@@ -57,25 +65,51 @@ public class FileController {
    * @param uuid uuid of file to put
    * @param filename filename of the file to put
    * @param expires optional expires header value should conform to RFC 1123
-   * @param request HttpServletRequest to get the file from, which should be in the body
+   * @param request HttpServletRequest to get the file from, which should be in the body, optionally gzip compressed (Content-Encoding gzip)
+   * @return ok with the checksum of the stored content, or bad request if the content could not be stored or doesn't match the checksum header,
+   *         or service unavailable if the storage has no capacity to store it now
    */
   @PutMapping(value = FILE_PATH, consumes = {MediaType.APPLICATION_OCTET_STREAM_VALUE, MediaType.APPLICATION_JSON_VALUE})
   public ResponseEntity<Void> putFile(final @PathVariable String uuid, final @PathVariable String filename,
-      @RequestParam(name = "expires", required = false) final String expires, final ServletRequest request) {
+      @RequestParam(name = "expires", required = false) final String expires, final HttpServletRequest request) {
+    if (!RequestContent.isSupportedEncoding(request)) {
+      return ResponseEntity.status(HttpStatus.UNSUPPORTED_MEDIA_TYPE).build();
+    }
     try {
       FilenameUtil.validateParameters(uuid, filename);
       LOG.debug("Put file {}/{}", uuid, filename);
 
-      storageService.putFile(uuid, filename, request.getContentLength(), expires, request.getInputStream());
-      return ResponseEntity.ok().build();
+      final long size = RequestContent.contentLength(request);
+      final ChecksumInputStream in = new ChecksumInputStream(RequestContent.inputStream(request), size, request.getHeader(CHECKSUM_HEADER));
+
+      storageService.putFile(uuid, filename, size, expires, in);
+      return checksumResponse(in);
     } catch (final IOException e) {
       LOG.trace("IOException when trying to store a file", e);
+    } catch (final RejectedExecutionException e) {
+      LOG.debug("Rejected to store a file: {}", e.getMessage());
+      return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).build();
     } catch (final RuntimeException e) {
       LOG.warn("RuntimeException when trying to store a file", e);
     }
     return ResponseEntity.badRequest().build();
   }
 
+  /**
+   * Returns ok with the checksum header, if the checksum of the content was computed.
+   *
+   * @param in stream the stored content was read from
+   * @return ok response
+   */
+  static ResponseEntity<Void> checksumResponse(final ChecksumInputStream in) {
+    final ResponseEntity.BodyBuilder builder = ResponseEntity.ok();
+
+    if (in.getChecksum() != null) {
+      builder.header(CHECKSUM_HEADER, in.getChecksum());
+    }
+    return builder.build();
+  }
+
   /**
    * Copy a file.
    *
@@ -0,0 +1,131 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Input stream returning the content of another input stream compressed in the gzip format.
+ * Unlike {@link java.util.zip.GZIPOutputStream} the compressed content is pulled, so it can be passed to APIs that read an input stream.
+ */
+public class GzipCompressingInputStream extends InputStream {
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+  // Gzip header: magic number, deflate compression method, no flags, no modification time, no extra flags and unknown OS.
+  private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+  private static final int TRAILER_LENGTH = 8;
+
+  private final InputStream in;
+  private final Deflater deflater;
+  private final CRC32 crc = new CRC32();
+  private final byte[] inputBuffer = new byte[BUFFER_SIZE];
+  private byte[] pending = HEADER;
+  private int pendingOffset;
+  private boolean trailerWritten;
+
+  /**
+   * @param in content to compress
+   * @param level compression level, 1 (fastest) to 9 (best compression)
+   */
+  public GzipCompressingInputStream(final InputStream in, final int level) {
+    this.in = in;
+    // Raw deflate, the gzip header and trailer are added by this class.
+    deflater = new Deflater(level, true);
+  }
+
+  @Override
+  public int read() throws IOException {
+    final byte[] single = new byte[1];
+
+    return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+  }
+
+  @Override
+  public int read(final byte[] b, final int off, final int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (pending != null) {
+      return readPending(b, off, len);
+    }
+    while (!deflater.finished()) {
+      if (deflater.needsInput()) {
+        fillInput();
+      }
+      final int deflated = deflater.deflate(b, off, len);
+
+      if (deflated > 0) {
+        return deflated;
+      }
+    }
+    if (!trailerWritten) {
+      trailerWritten = true;
+      pending = trailer();
+      return readPending(b, off, len);
+    }
+    return -1;
+  }
+
+  private void fillInput() throws IOException {
+    final int read = in.read(inputBuffer);
+
+    if (read == -1) {
+      deflater.finish();
+    } else {
+      crc.update(inputBuffer, 0, read);
+      deflater.setInput(inputBuffer, 0, read);
+    }
+  }
+
+  private int readPending(final byte[] b, final int off, final int len) {
+    final int length = Math.min(len, pending.length - pendingOffset);
+
+    System.arraycopy(pending, pendingOffset, b, off, length);
+    pendingOffset += length;
+    if (pendingOffset == pending.length) {
+      pending = null;
+      pendingOffset = 0;
+    }
+    return length;
+  }
+
+  /**
+   * Gzip trailer: CRC-32 and size of the uncompressed content modulo 2^32, both little endian.
+   */
+  private byte[] trailer() {
+    final byte[] trailer = new byte[TRAILER_LENGTH];
+
+    writeIntLittleEndian(trailer, 0, (int) crc.getValue());
+    writeIntLittleEndian(trailer, 4, (int) deflater.getBytesRead());
+    return trailer;
+  }
+
+  private static void writeIntLittleEndian(final byte[] bytes, final int offset, final int value) {
+    for (int i = 0; i < Integer.BYTES; i++) {
+      bytes[offset + i] = (byte) (value >>> (i * Byte.SIZE));
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    deflater.end();
+    in.close();
+  }
+}
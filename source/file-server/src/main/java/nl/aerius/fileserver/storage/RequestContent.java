@@ -0,0 +1,72 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.storage;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+import jakarta.servlet.http.HttpServletRequest;
+
+import org.springframework.http.HttpHeaders;
+
+/**
+ * Util class to get the content of an upload, decoding it when it's sent with the gzip content encoding.
+ * Clients can compress the content they upload to reduce the network traffic. The content is decoded while it's read,
+ * so it's stored the same as when sent uncompressed, and compressed again if configured (see {@link StorageCompression}).
+ */
+final class RequestContent {
+
+  private static final String IDENTITY = "identity";
+
+  private RequestContent() {
+    // Util class
+  }
+
+  /**
+   * @param request HTTP request
+   * @return true if the content is not encoded or encoded with a supported content encoding
+   */
+  static boolean isSupportedEncoding(final HttpServletRequest request) {
+    final String contentEncoding = request.getHeader(HttpHeaders.CONTENT_ENCODING);
+
+    return contentEncoding == null || IDENTITY.equalsIgnoreCase(contentEncoding.trim()) || isGzip(contentEncoding);
+  }
+
+  /**
+   * @param request HTTP request
+   * @return size of the decoded content, or -1 if not known
+   */
+  static long contentLength(final HttpServletRequest request) {
+    return isGzip(request.getHeader(HttpHeaders.CONTENT_ENCODING)) ? -1 : request.getContentLengthLong();
+  }
+
+  /**
+   * @param request HTTP request
+   * @return stream with the decoded content
+   * @throws IOException in case the content could not be read, or is not valid gzip content
+   */
+  static InputStream inputStream(final HttpServletRequest request) throws IOException {
+    final InputStream in = request.getInputStream();
+
+    return isGzip(request.getHeader(HttpHeaders.CONTENT_ENCODING)) ? new GZIPInputStream(in) : in;
+  }
+
+  private static boolean isGzip(final String contentEncoding) {
+    return contentEncoding != null && StorageCompression.GZIP.equalsIgnoreCase(contentEncoding.trim());
+  }
+}
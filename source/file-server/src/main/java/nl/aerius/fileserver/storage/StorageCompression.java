@@ -0,0 +1,107 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.storage;
+
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.function.UnaryOperator;
+
+import org.springframework.util.PatternMatchUtils;
+
+/**
+ * Decides which files are stored compressed, and compresses their content.
+ * Files are compressed with gzip, so the stored content can be sent as is to clients accepting the gzip content encoding.
+ */
+public class StorageCompression {
+
+  /**
+   * Content encoding of compressed files.
+   */
+  public static final String GZIP = "gzip";
+
+  /**
+   * Content encoding of files stored as is.
+   */
+  public static final String IDENTITY = "identity";
+
+  private final boolean enabled;
+  private final String[] patterns;
+  private final int level;
+  private final boolean responses;
+
+  public StorageCompression(final CompressionProperties properties) {
+    enabled = properties.isEnabled();
+    patterns = properties.getPatterns().stream().map(p -> p.toLowerCase(Locale.ROOT)).toArray(String[]::new);
+    level = properties.getLevel();
+    responses = properties.isResponses();
+  }
+
+  /**
+   * @param filename name of the file
+   * @return true if the file is stored compressed
+   */
+  public boolean isCompressed(final String filename) {
+    return enabled && matches(filename);
+  }
+
+  /**
+   * @param filename name of the file
+   * @return content encoding the file is stored with
+   */
+  public String contentEncoding(final String filename) {
+    return isCompressed(filename) ? GZIP : IDENTITY;
+  }
+
+  /**
+   * Used for files of which it's not known how they are stored, for example files stored before the encoding was recorded.
+   * Compression may have been enabled when they were stored, therefore this doesn't depend on compression being enabled now.
+   *
+   * @param filename name of the file
+   * @return true if the file may have been stored compressed
+   */
+  public boolean mayBeCompressed(final String filename) {
+    return matches(filename);
+  }
+
+  /**
+   * @param filename name of the file
+   * @return true if the file, when not stored compressed, is compressed when sent to clients accepting gzip
+   */
+  public boolean isResponseCompressed(final String filename) {
+    return responses && matches(filename);
+  }
+
+  private boolean matches(final String filename) {
+    return PatternMatchUtils.simpleMatch(patterns, filename.toLowerCase(Locale.ROOT));
+  }
+
+  /**
+   * @param filename name of the file
+   * @return function returning a stream with the content to store of the file with the given name, compressed or as is
+   */
+  public UnaryOperator<InputStream> encoder(final String filename) {
+    return isCompressed(filename) ? this::compress : UnaryOperator.identity();
+  }
+
+  /**
+   * @param in content to compress
+   * @return stream returning the compressed content
+   */
+  public InputStream compress(final InputStream in) {
+    return new GzipCompressingInputStream(in, level);
+  }
+}
@@ -18,7 +18,7 @@ package nl.aerius.fileserver.storage;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * Service interface for managing storage of files.
@@ -30,12 +30,13 @@ public interface StorageService {
    *
    * @param uuid unique identifier to store the file under
    * @param filename original name of the file
-   * @param size size of the data
+   * @param size size of the data, or -1 if the size is unknown
    * @param expires tag to set expiration of the file
-   * @param in inputstream to the file data
+   * @param in inputstream to the file data, computing its checksum while it's read
    * @throws IOException
+   * @throws RejectedExecutionException when the storage has no capacity to store the file now
    */
-  void putFile(String uuid, String filename, long size, String expires, InputStream in) throws IOException;
+  void putFile(String uuid, String filename, long size, String expires, ChecksumInputStream in) throws IOException;
 
   /**
    * Returns the file path of the file with the given job.
@@ -47,6 +48,28 @@ public interface StorageService {
    */
   String getFile(String uuid, String filename) throws FileNotFoundException;
 
+  /**
+   * Returns the SHA-256 checksum of the content of the file, as computed when the file was stored.
+   *
+   * @param uuid unique identifier the file is stored by
+   * @param filename original name of the file
+   * @return checksum as hex string, or null if not known
+   */
+  default String getChecksum(final String uuid, final String filename) {
+    return null;
+  }
+
+  /**
+   * Returns the content encoding the file is stored with, as recorded when the file was stored.
+   *
+   * @param uuid unique identifier the file is stored by
+   * @param filename original name of the file
+   * @return content encoding, {@link StorageCompression#IDENTITY} when stored as is, or null if not known
+   */
+  default String getContentEncoding(final String uuid, final String filename) {
+    return null;
+  }
+
   /**
    * @param sourceUuid The unique identifier the file to copy is stored by
    * @param destinationUuid The unique identifier to copy the file to
@@ -0,0 +1,228 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.api.io.TempDir;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.http.MediaType;
+
+import nl.aerius.fileserver.storage.ChecksumInputStream;
+import nl.aerius.fileserver.storage.StorageService;
+
+/**
+ * Load test comparing handling requests on the Tomcat platform thread pool with handling requests on virtual threads.
+ * Sends concurrent uploads to a storage that simulates the latency of disk or Amazon S3 I/O, and logs for both modes
+ * the time taken, the peak number of platform threads (each reserving its own stack), and the peak heap and resident memory used.
+ * The numbers depend on the machine and on the run before it in the same JVM, so they are reported, not asserted.
+ * The file server runs with the local profile on a temporary directory, so no files are written to the working directory.
+ * Not run by default, enable with -Dloadtest=true.
+ */
+@EnabledIfSystemProperty(named = "loadtest", matches = "true")
+class VirtualThreadsLoadTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(VirtualThreadsLoadTest.class);
+
+  private static final int CONCURRENT_REQUESTS = 1_000;
+  private static final long STORAGE_LATENCY_MILLIS = 100;
+  private static final String CONTENT = "AERIUS";
+  private static final long SAMPLE_INTERVAL_MILLIS = 10;
+  private static final Path PROC_STATUS = Path.of("/proc/self/status");
+
+  @TempDir Path tempDir;
+
+  @Test
+  void testVirtualThreads() throws Exception {
+    final Result platformThreads = run(false);
+    final Result virtualThreads = run(true);
+
+    LOG.info("Platform threads: {}", platformThreads);
+    LOG.info("Virtual threads: {}", virtualThreads);
+  }
+
+  private Result run(final boolean virtual) throws Exception {
+    try (ConfigurableApplicationContext context = new SpringApplicationBuilder(Application.class)
+        .profiles("local")
+        .properties("server.port=0", "spring.threads.virtual.enabled=" + virtual, "aerius.file.storage.s3.bucketName=dev",
+            "aerius.file.storage.location=" + Files.createTempDirectory(tempDir, virtual ? "virtual" : "platform"))
+        .initializers(c -> ((GenericApplicationContext) c).registerBean(StorageService.class, SlowStorageService::new,
+            bd -> bd.setPrimary(true)))
+        .run()) {
+      final int port = ((WebServerApplicationContext) context).getWebServer().getPort();
+      final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+      final HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+
+      System.gc();
+      threadBean.resetPeakThreadCount();
+      final MemorySampler sampler = new MemorySampler();
+      final long start = System.nanoTime();
+      final List<CompletableFuture<HttpResponse<Void>>> responses = IntStream.range(0, CONCURRENT_REQUESTS)
+          .mapToObj(i -> client.sendAsync(putRequest(port), BodyHandlers.discarding()))
+          .toList();
+
+      CompletableFuture.allOf(responses.toArray(CompletableFuture[]::new)).join();
+      final long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+      sampler.stop();
+      responses.forEach(r -> assertEquals(200, r.join().statusCode(), "All uploads should succeed."));
+      return new Result(elapsedMillis, threadBean.getPeakThreadCount(), sampler.peakHeapMegabytes(), sampler.peakResidentMegabytes());
+    }
+  }
+
+  private static HttpRequest putRequest(final int port) {
+    return HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/" + UUID.randomUUID() + "/test.gml"))
+        .header("Content-Type", MediaType.APPLICATION_OCTET_STREAM_VALUE)
+        .PUT(BodyPublishers.ofString(CONTENT))
+        .build();
+  }
+
+  /**
+   * @param elapsedMillis time to handle all requests
+   * @param peakPlatformThreads peak number of platform threads, each reserving its own stack memory
+   * @param peakHeapMegabytes peak heap used while handling the requests, which includes the stacks of virtual threads
+   * @param peakResidentMegabytes peak resident set size of the process while handling the requests, or -1 if not available
+   */
+  private record Result(long elapsedMillis, int peakPlatformThreads, long peakHeapMegabytes, long peakResidentMegabytes) {
+  }
+
+  /**
+   * Samples the heap used and the resident set size of the process in the background, and keeps the peak values.
+   * The resident set size is read from /proc, so it's only available on Linux.
+   */
+  private static class MemorySampler {
+    private final MemoryMXBean memoryBean = ManagementFactory.getMemoryMXBean();
+    private final Thread thread;
+    private volatile boolean running = true;
+    private long peakHeapBytes;
+    private long peakResidentKilobytes = -1;
+
+    MemorySampler() {
+      sample();
+      thread = Thread.ofPlatform().daemon().name("memory-sampler").start(this::sampleUntilStopped);
+    }
+
+    private void sampleUntilStopped() {
+      while (running) {
+        sample();
+        try {
+          Thread.sleep(SAMPLE_INTERVAL_MILLIS);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+
+    private void sample() {
+      peakHeapBytes = Math.max(peakHeapBytes, memoryBean.getHeapMemoryUsage().getUsed());
+      peakResidentKilobytes = Math.max(peakResidentKilobytes, residentKilobytes());
+    }
+
+    void stop() throws InterruptedException {
+      running = false;
+      thread.join();
+      sample();
+    }
+
+    long peakHeapMegabytes() {
+      return peakHeapBytes / (1024 * 1024);
+    }
+
+    long peakResidentMegabytes() {
+      return peakResidentKilobytes < 0 ? -1 : peakResidentKilobytes / 1024;
+    }
+
+    private static long residentKilobytes() {
+      try {
+        return Files.readAllLines(PROC_STATUS).stream()
+            .filter(line -> line.startsWith("VmRSS:"))
+            .mapToLong(line -> Long.parseLong(line.replaceAll("\\D", "")))
+            .findFirst()
+            .orElse(-1);
+      } catch (final IOException e) {
+        return -1;
+      }
+    }
+  }
+
+  /**
+   * Storage that blocks for the latency of a storage call and stores nothing.
+   */
+  private static class SlowStorageService implements StorageService {
+
+    @Override
+    public void putFile(final String uuid, final String filename, final long size, final String expires, final ChecksumInputStream in)
+        throws IOException {
+      in.readAllBytes();
+      sleep();
+    }
+
+    @Override
+    public String getFile(final String uuid, final String filename) {
+      sleep();
+      return filename;
+    }
+
+    @Override
+    public void copyFile(final String sourceUuid, final String destinationUuid, final String filename, final String expires) {
+      sleep();
+    }
+
+    @Override
+    public void deleteFile(final String uuid, final String filename) {
+      sleep();
+    }
+
+    @Override
+    public void deleteFiles(final String uuid) {
+      sleep();
+    }
+
+    private static void sleep() {
+      try {
+        Thread.sleep(STORAGE_LATENCY_MILLIS);
+      } catch (final InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+}
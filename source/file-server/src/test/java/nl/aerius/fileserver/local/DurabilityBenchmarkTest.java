@@ -0,0 +1,100 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.local;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nl.aerius.fileserver.local.LocalStorageProperties.Durability;
+import nl.aerius.fileserver.storage.ChecksumInputStream;
+
+/**
+ * Benchmark of storing files with each durability level.
+ * Stores files with concurrent uploads, and logs the number of files stored per second for each level.
+ * Results depend on the disk and file system, so run it on the storage volume of the environment to choose a level for.
+ * The directory to store the files in is set with -Dbenchmark.location, by default a temporary directory.
+ * Not run by default, enable with -Dloadtest=true.
+ */
+@EnabledIfSystemProperty(named = "loadtest", matches = "true")
+class DurabilityBenchmarkTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(DurabilityBenchmarkTest.class);
+
+  private static final int CONCURRENT_UPLOADS = 64;
+  private static final int FILES_PER_UPLOAD = 50;
+  private static final int FILE_SIZE = 64 * 1024;
+
+  @ParameterizedTest
+  @EnumSource(Durability.class)
+  void testDurability(final Durability durability) throws Exception {
+    final Path location = Files.createTempDirectory(Path.of(System.getProperty("benchmark.location", System.getProperty("java.io.tmpdir"))),
+        "benchmark");
+    final LocalStorageProperties properties = new LocalStorageProperties();
+
+    properties.setLocation(location.toString());
+    properties.setDurability(durability);
+    final LocalFileStorageSevice service = new LocalFileStorageSevice(properties);
+    final byte[] content = new byte[FILE_SIZE];
+    final List<Future<Integer>> uploads = new ArrayList<>();
+    final long start = System.nanoTime();
+
+    try (final ExecutorService executor = Executors.newFixedThreadPool(CONCURRENT_UPLOADS)) {
+      for (int i = 0; i < CONCURRENT_UPLOADS; i++) {
+        uploads.add(executor.submit(() -> upload(service, content)));
+      }
+      for (final Future<Integer> upload : uploads) {
+        assertEquals(FILES_PER_UPLOAD, upload.get(), "All files should be stored.");
+      }
+    } finally {
+      service.shutdown();
+    }
+    final long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+    final int files = CONCURRENT_UPLOADS * FILES_PER_UPLOAD;
+
+    LOG.info("Durability {}: stored {} files of {} bytes with {} concurrent uploads in {} ms, {} files/s", durability, files, FILE_SIZE,
+        CONCURRENT_UPLOADS, elapsedMillis, files * 1000L / Math.max(1, elapsedMillis));
+  }
+
+  private static int upload(final LocalFileStorageSevice service, final byte[] content) throws IOException {
+    final String uuid = UUID.randomUUID().toString();
+
+    for (int i = 0; i < FILES_PER_UPLOAD; i++) {
+      service.putFile(uuid, "file" + i + ".gml", content.length, null, checksummed(content));
+    }
+    return FILES_PER_UPLOAD;
+  }
+
+  private static ChecksumInputStream checksummed(final byte[] content) {
+    return new ChecksumInputStream(new ByteArrayInputStream(content), -1, null);
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.local;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.function.UnaryOperator;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import nl.aerius.fileserver.local.LocalStorageProperties.Durability;
+import nl.aerius.fileserver.storage.ChecksumInputStream;
+
+/**
+ * Test class for {@link LocalBlobStore}.
+ */
+class LocalBlobStoreTest {
+
+  private static final String CONTENT = "AERIUS";
+
+  @TempDir Path tempDir;
+
+  private LocalBlobStore blobStore;
+
+  @BeforeEach
+  void beforeEach() throws IOException {
+    blobStore = new LocalBlobStore(tempDir, new LocalFileWriter(Durability.NONE, 1024, 1));
+  }
+
+  @AfterEach
+  void afterEach() {
+    blobStore.shutdown();
+  }
+
+  @Test
+  void testStore() throws IOException {
+    final Path file = tempDir.resolve("test.gml");
+
+    blobStore.store(checksummed(CONTENT.getBytes()), file, UnaryOperator.identity(), null);
+    assertEquals(CONTENT, Files.readString(file), "Content of file should be as expected.");
+    assertTrue(Files.isSameFile(file, blobStore.blobPath(sha256(CONTENT))), "File should be a link to the blob named after the content hash.");
+  }
+
+  @Test
+  void testStoreSameContentOnce() throws IOException {
+    final Path file1 = tempDir.resolve("test1.gml");
+    final Path file2 = tempDir.resolve("test2.gml");
+    final Path file3 = tempDir.resolve("test3.gml");
+
+    blobStore.store(checksummed(CONTENT.getBytes()), file1, UnaryOperator.identity(), null);
+    blobStore.store(checksummed(CONTENT.getBytes()), file2, UnaryOperator.identity(), null);
+    blobStore.store(checksummed("Other content".getBytes()), file3, UnaryOperator.identity(), null);
+    assertTrue(Files.isSameFile(file1, file2), "Files with the same content should be links to the same blob.");
+    assertFalse(Files.isSameFile(file1, file3), "Files with different content should not share a blob.");
+    assertEquals(2, countBlobs(), "Each distinct content should be stored once.");
+  }
+
+  @Test
+  void testCollect() throws IOException {
+    final Path file1 = tempDir.resolve("test1.gml");
+    final Path file2 = tempDir.resolve("test2.gml");
+
+    blobStore.store(checksummed(CONTENT.getBytes()), file1, UnaryOperator.identity(), null);
+    blobStore.store(checksummed(CONTENT.getBytes()), file2, UnaryOperator.identity(), null);
+    Files.delete(file1);
+    assertEquals(0, blobStore.collect(), "A blob still referenced should not be removed.");
+    Files.delete(file2);
+    assertEquals(1, blobStore.collect(), "A blob no longer referenced should be removed.");
+    assertEquals(0, countBlobs(), "No blobs should remain.");
+  }
+
+  @Test
+  void testCollectBlobNames() throws IOException {
+    final Path file = tempDir.resolve("test.gml");
+    final Path other = tempDir.resolve("other.gml");
+    final String blobName = LocalBlobStore.blobName(sha256(CONTENT), "gzip");
+
+    blobStore.store(checksummed(CONTENT.getBytes()), file, UnaryOperator.identity(), "gzip");
+    blobStore.store(checksummed("Other content".getBytes()), other, UnaryOperator.identity(), null);
+    Files.delete(file);
+    Files.delete(other);
+    assertEquals(1, blobStore.collect(List.of(blobName)), "Only the given unreferenced blob should be removed.");
+    assertFalse(Files.exists(blobStore.blobPath(blobName)), "Given blob should be removed.");
+    assertEquals(1, countBlobs(), "Blobs not given should not be checked.");
+  }
+
+  @Test
+  void testStoreAfterCollect() throws IOException {
+    final Path file = tempDir.resolve("test.gml");
+
+    blobStore.store(checksummed(CONTENT.getBytes()), file, UnaryOperator.identity(), null);
+    Files.delete(file);
+    blobStore.collect();
+    blobStore.store(checksummed(CONTENT.getBytes()), file, UnaryOperator.identity(), null);
+    assertEquals(CONTENT, Files.readString(file), "Content should be stored again after the blob was removed.");
+    assertNotEquals(0, countBlobs(), "Blob should be stored again.");
+  }
+
+  private long countBlobs() throws IOException {
+    try (final Stream<Path> blobs = Files.find(tempDir.resolve(LocalBlobStore.BLOBS_DIRECTORY), 2,
+        (path, attributes) -> attributes.isRegularFile())) {
+      return blobs.count();
+    }
+  }
+
+  private static String sha256(final String content) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content.getBytes()));
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static ChecksumInputStream checksummed(final byte[] content) {
+    return new ChecksumInputStream(new ByteArrayInputStream(content), -1, null);
+  }
+}
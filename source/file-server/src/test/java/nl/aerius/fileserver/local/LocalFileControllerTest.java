@@ -16,23 +16,37 @@
  */
 package nl.aerius.fileserver.local;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.isNotNull;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
@@ -45,7 +59,9 @@ import org.springframework.mock.web.MockMultipartFile;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
 
+import nl.aerius.fileserver.storage.FileController;
 import nl.aerius.fileserver.storage.StorageService;
 
 /**
@@ -56,7 +72,8 @@ import nl.aerius.fileserver.storage.StorageService;
 // Set s3 required property otherwise test will fail.
 // Using only LocalFileController.class as parameter here somehow fails in getFile.
 // Don't know why it fails. Therefore just setting required S3 property even if that property is not used in this test
-@SpringBootTest(properties = "aerius.file.storage.s3.bucketName=dev")
+@SpringBootTest(properties = {"aerius.file.storage.s3.bucketName=dev", "aerius.file.storage.compression.enabled=true",
+    "aerius.file.storage.compression.responses=true"})
 class LocalFileControllerTest {
 
   private static final String HTTP_LOCALHOST = "http://localhost/";
@@ -85,6 +102,43 @@ class LocalFileControllerTest {
     verify(storageService).putFile(eq(UUID_CODE), eq(FILENAME), eq(size), eq(EXPIRE_TAG_VALUE), any());
   }
 
+  @Test
+  void testPutFileGzipEncoded() throws Exception {
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+    try (final OutputStream out = new GZIPOutputStream(compressed)) {
+      out.write("AERIUS".getBytes());
+    }
+    doAnswer(a -> {
+      assertEquals("AERIUS", new String(a.getArgument(4, InputStream.class).readAllBytes()), "Content should be decoded when stored");
+      return null;
+    }).when(storageService).putFile(eq(UUID_CODE), eq(FILENAME), eq(-1L), any(), any());
+    mvc.perform(put(URL).header(HttpHeaders.CONTENT_ENCODING, "gzip").content(compressed.toByteArray())).andExpect(status().isOk());
+    verify(storageService).putFile(eq(UUID_CODE), eq(FILENAME), eq(-1L), any(), any());
+  }
+
+  @Test
+  void testPutFileChecksum() throws Exception {
+    // SHA-256 checksum of AERIUS.
+    final String checksum = "945bd9de5e7672b13a1fed83b8fea9c2c3947707798acec11fc8fdb52fa9a717";
+
+    doAnswer(a -> {
+      a.getArgument(4, InputStream.class).readAllBytes();
+      return null;
+    }).when(storageService).putFile(eq(UUID_CODE), eq(FILENAME), anyLong(), any(), any());
+    final MockHttpServletResponse response = mvc.perform(put(URL).header(FileController.CHECKSUM_HEADER, checksum).content("AERIUS".getBytes()))
+        .andExpect(status().isOk()).andReturn().getResponse();
+
+    assertEquals(checksum, response.getHeader(FileController.CHECKSUM_HEADER), "Response should contain the checksum of the stored content");
+    mvc.perform(put(URL).header(FileController.CHECKSUM_HEADER, "0".repeat(64)).content("AERIUS".getBytes())).andExpect(status().isBadRequest());
+  }
+
+  @Test
+  void testPutFileUnsupportedEncoding() throws Exception {
+    mvc.perform(put(URL).header(HttpHeaders.CONTENT_ENCODING, "zstd").content("AERIUS".getBytes())).andExpect(status().isUnsupportedMediaType());
+    verify(storageService, never()).putFile(any(), any(), anyLong(), any(), any());
+  }
+
   @Test
   void testPutFileInvalidParameter() throws Exception {
     mvc.perform(put(URL_BAD_FILENAME).content("AERIUS".getBytes())).andExpect(status().is4xxClientError());
@@ -120,6 +174,131 @@ class LocalFileControllerTest {
     assertEquals(content, response.getContentAsString(), "Expects file content to be in data");
   }
 
+  @Test
+  void testGetFileChecksum() throws Exception {
+    final String tempFilename = writeTempFile("test");
+    final String checksum = "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08";
+
+    doReturn(checksum).when(storageService).getChecksum(UUID_CODE, tempFilename);
+    final MockHttpServletResponse response = mvc.perform(get(HTTP_LOCALHOST + UUID_CODE + "/" + tempFilename)).andExpect(status().isOk()).andReturn()
+        .getResponse();
+
+    assertEquals("\"" + checksum + "\"", response.getHeader(HttpHeaders.ETAG), "ETag should be the checksum of the content");
+    assertEquals(checksum, response.getHeader(FileController.CHECKSUM_HEADER), "Response should contain the checksum of the content");
+  }
+
+  @Test
+  void testGetFileRange() throws Exception {
+    final String tempFilename = writeTempFile("test");
+    final MockHttpServletResponse response = mvc.perform(get(HTTP_LOCALHOST + UUID_CODE + "/" + tempFilename).header(HttpHeaders.RANGE, "bytes=1-2"))
+        .andExpect(status().isPartialContent()).andReturn().getResponse();
+
+    assertEquals("bytes 1-2/4", response.getHeader(HttpHeaders.CONTENT_RANGE), "Header should contain the range returned");
+    assertEquals("es", response.getContentAsString(), "Expects only the requested range of the file content to be in data");
+  }
+
+  @Test
+  void testGetFileSendfile() throws Exception {
+    final String tempFilename = writeTempFile("test");
+    final MvcResult result = mvc.perform(get(HTTP_LOCALHOST + UUID_CODE + "/" + tempFilename).header(HttpHeaders.RANGE, "bytes=1-2")
+        .requestAttr("org.apache.tomcat.sendfile.support", Boolean.TRUE)).andExpect(status().isPartialContent()).andReturn();
+
+    assertEquals(new File(tempDir, tempFilename).getAbsolutePath(), result.getRequest().getAttribute("org.apache.tomcat.sendfile.filename"),
+        "Unchanged file should be sent with sendfile");
+    assertEquals(1L, result.getRequest().getAttribute("org.apache.tomcat.sendfile.start"), "Sendfile should start at the range start");
+    assertEquals(3L, result.getRequest().getAttribute("org.apache.tomcat.sendfile.end"), "Sendfile should end after the range end");
+    assertEquals("", result.getResponse().getContentAsString(), "Content should be left to sendfile");
+  }
+
+  @Test
+  void testGetFileRangeNotSatisfiable() throws Exception {
+    final String tempFilename = writeTempFile("test");
+
+    mvc.perform(get(HTTP_LOCALHOST + UUID_CODE + "/" + tempFilename).header(HttpHeaders.RANGE, "bytes=10-"))
+        .andExpect(status().isRequestedRangeNotSatisfiable());
+  }
+
+  @Test
+  void testGetFileIfRangeChanged() throws Exception {
+    final String content = "test";
+    final String tempFilename = writeTempFile(content);
+    final MockHttpServletResponse response = mvc.perform(get(HTTP_LOCALHOST + UUID_CODE + "/" + tempFilename)
+        .header(HttpHeaders.RANGE, "bytes=1-2").header(HttpHeaders.IF_RANGE, "\"other\""))
+        .andExpect(status().isOk()).andReturn().getResponse();
+
+    assertEquals(content, response.getContentAsString(), "Expects the complete file when the file changed since the If-Range value");
+  }
+
+  @Test
+  void testGetFileNotModified() throws Exception {
+    final String tempFilename = writeTempFile("test");
+    final String url = HTTP_LOCALHOST + UUID_CODE + "/" + tempFilename;
+    final MockHttpServletResponse response = mvc.perform(get(url)).andExpect(status().isOk()).andReturn().getResponse();
+    final String eTag = response.getHeader(HttpHeaders.ETAG);
+
+    assertNotNull(eTag, "Response should contain an ETag");
+    assertNotNull(response.getHeader(HttpHeaders.LAST_MODIFIED), "Response should contain a Last-Modified");
+    final MockHttpServletResponse notModifiedResponse = mvc.perform(get(url).header(HttpHeaders.IF_NONE_MATCH, eTag))
+        .andExpect(status().isNotModified()).andReturn().getResponse();
+
+    assertEquals("", notModifiedResponse.getContentAsString(), "Not modified response should not contain data");
+  }
+
+  @Test
+  void testGetFileCompressed() throws Exception {
+    final String content = "test";
+    final String compressedFilename = writeCompressedTempFile(content);
+    final String url = HTTP_LOCALHOST + UUID_CODE + "/" + compressedFilename;
+    final MockHttpServletResponse encodedResponse = mvc.perform(get(url).header(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate"))
+        .andExpect(status().isOk()).andReturn().getResponse();
+
+    assertEquals("gzip", encodedResponse.getHeader(HttpHeaders.CONTENT_ENCODING), "Compressed file should be sent with gzip encoding");
+    assertEquals(HttpHeaders.ACCEPT_ENCODING, encodedResponse.getHeader(HttpHeaders.VARY), "Response should vary on Accept-Encoding");
+    try (final InputStream in = new GZIPInputStream(new ByteArrayInputStream(encodedResponse.getContentAsByteArray()))) {
+      assertEquals(content, new String(in.readAllBytes()), "Expects the compressed file content to be in data");
+    }
+    final MockHttpServletResponse decodedResponse = mvc.perform(get(url).header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0"))
+        .andExpect(status().isOk()).andReturn().getResponse();
+
+    assertNull(decodedResponse.getHeader(HttpHeaders.CONTENT_ENCODING), "File should be decompressed for clients not accepting gzip");
+    assertEquals(content, decodedResponse.getContentAsString(), "Expects the decompressed file content to be in data");
+    assertNotEquals(encodedResponse.getHeader(HttpHeaders.ETAG), decodedResponse.getHeader(HttpHeaders.ETAG),
+        "Compressed and decompressed content should have different ETags");
+  }
+
+  @Test
+  void testGetFileStoredAsIs() throws Exception {
+    final String content = "test";
+    // Content that looks compressed, but is recorded as stored as is, for example an uploaded gzip file.
+    final String filename = writeCompressedTempFile(content);
+    final byte[] stored = Files.readAllBytes(new File(tempDir, filename).toPath());
+
+    doReturn("identity").when(storageService).getContentEncoding(UUID_CODE, filename);
+    final MockHttpServletResponse response = mvc.perform(get(HTTP_LOCALHOST + UUID_CODE + "/" + filename)
+        .header(HttpHeaders.ACCEPT_ENCODING, "gzip;q=0")).andExpect(status().isOk()).andReturn().getResponse();
+
+    assertNull(response.getHeader(HttpHeaders.CONTENT_ENCODING), "File stored as is should be sent without content encoding");
+    assertArrayEquals(stored, response.getContentAsByteArray(), "File stored as is should be sent as stored");
+  }
+
+  @Test
+  void testGetFileCompressedResponse() throws Exception {
+    final String content = "test";
+    final String tempFilename = UUID.randomUUID() + ".txt";
+
+    Files.writeString(new File(tempDir, tempFilename).toPath(), content);
+    doReturn(new File(tempDir, tempFilename).getAbsolutePath()).when(storageService).getFile(UUID_CODE, tempFilename);
+    final MockHttpServletResponse response = mvc.perform(get(HTTP_LOCALHOST + UUID_CODE + "/" + tempFilename)
+        .header(HttpHeaders.ACCEPT_ENCODING, "gzip")).andExpect(status().isOk()).andReturn().getResponse();
+
+    assertEquals("gzip", response.getHeader(HttpHeaders.CONTENT_ENCODING), "File should be compressed for clients accepting gzip");
+    try (final InputStream in = new GZIPInputStream(new ByteArrayInputStream(response.getContentAsByteArray()))) {
+      assertEquals(content, new String(in.readAllBytes()), "Expects the compressed file content to be in data");
+    }
+    assertEquals(content, mvc.perform(get(HTTP_LOCALHOST + UUID_CODE + "/" + tempFilename)).andExpect(status().isOk()).andReturn().getResponse()
+        .getContentAsString(), "File should be sent as is to clients not accepting gzip");
+  }
+
   @Test
   void testGetFile404Missing() throws Exception {
     doThrow(new FileNotFoundException()).when(storageService).getFile(any(), any());
@@ -170,4 +349,24 @@ class LocalFileControllerTest {
     mvc.perform(delete(URL_BAD_FILENAME)).andExpect(status().isOk());
     mvc.perform(delete(URL_BAD_UUID)).andExpect(status().isOk());
   }
+
+  private String writeTempFile(final String content) throws IOException {
+    final String tempFilename = UUID.randomUUID().toString();
+    final File tmpFile = new File(tempDir, tempFilename);
+
+    Files.writeString(tmpFile.toPath(), content);
+    doReturn(tmpFile.getAbsolutePath()).when(storageService).getFile(UUID_CODE, tempFilename);
+    return tempFilename;
+  }
+
+  private String writeCompressedTempFile(final String content) throws IOException {
+    final String tempFilename = UUID.randomUUID() + ".json";
+    final File tmpFile = new File(tempDir, tempFilename);
+
+    try (final OutputStream out = new GZIPOutputStream(new FileOutputStream(tmpFile))) {
+      out.write(content.getBytes());
+    }
+    doReturn(tmpFile.getAbsolutePath()).when(storageService).getFile(UUID_CODE, tempFilename);
+    return tempFilename;
+  }
 }
@@ -24,16 +24,32 @@ import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
+import nl.aerius.fileserver.storage.ChecksumInputStream;
+
 /**
  * Test class for {@link LocalFileStorageSevice}.
  */
@@ -56,6 +72,11 @@ class LocalFileStorageSeviceTest {
     expectedFile = new File(new File(tempDir, UUID_CODE), FILENAME);
   }
 
+  @AfterEach
+  void afterEach() throws IOException {
+    service.shutdown();
+  }
+
   @Test
   void testLocalStorageDirectoryCreation() throws IOException {
     final LocalStorageProperties properties = new LocalStorageProperties();
@@ -63,13 +84,13 @@ class LocalFileStorageSeviceTest {
 
     properties.setLocation(newStorageDirectory.getAbsolutePath());
     // override service with new properties to check if it creates the new directory.
-    service = new LocalFileStorageSevice(properties);
+    replaceService(properties);
     assertTrue(Files.exists(newStorageDirectory.toPath()), "Createing a new service should create the storage directory if it doesn't exists");
   }
 
   @Test
   void testPutFile() throws IOException {
-    service.putFile(UUID_CODE, FILENAME, 10, null, new ByteArrayInputStream(CONTENT.getBytes()));
+    service.putFile(UUID_CODE, FILENAME, 10, null, checksummed(CONTENT.getBytes()));
     assertTrue(expectedFile.exists(), "File should exist when stored");
     assertEquals(CONTENT, Files.readString(expectedFile.toPath()), "Content of file should be as expected.");
   }
@@ -77,18 +98,41 @@ class LocalFileStorageSeviceTest {
   @Test
   void testPutFileOverwrite() throws IOException {
     final String overwriteContent = "Overwritten content";
-    service.putFile(UUID_CODE, FILENAME, 10, null, new ByteArrayInputStream(CONTENT.getBytes()));
-    service.putFile(UUID_CODE, FILENAME, 0, null, new ByteArrayInputStream(overwriteContent.getBytes()));
+    service.putFile(UUID_CODE, FILENAME, 10, null, checksummed(CONTENT.getBytes()));
+    service.putFile(UUID_CODE, FILENAME, 0, null, checksummed(overwriteContent.getBytes()));
     assertTrue(expectedFile.exists(), "File should exist when stored twice");
     assertEquals(overwriteContent, Files.readString(expectedFile.toPath()), "Content of file should be as expected.");
   }
 
+  @Test
+  void testPutFileConcurrently() throws Exception {
+    final List<Future<?>> puts = new ArrayList<>();
+
+    try (final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < 50; i++) {
+        final String content = CONTENT.repeat(i + 1);
+
+        puts.add(executor.submit(() -> {
+          service.putFile(UUID_CODE, FILENAME, content.length(), null, checksummed(content.getBytes()));
+          return null;
+        }));
+      }
+      for (final Future<?> put : puts) {
+        put.get();
+      }
+    }
+    final String checksum = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(Files.readAllBytes(expectedFile.toPath())));
+
+    assertEquals(checksum, service.getChecksum(UUID_CODE, FILENAME),
+        "Checksum in the index should be of the file stored last.");
+  }
+
   @Test
   void testPutFileLeavesNoTempFile() throws IOException {
     // The atomic-write path stages the content in a temp file before moving it into place; ensure that
     // temp file is always cleaned up so it can't leak into directory listings or repeated overwrites.
-    service.putFile(UUID_CODE, FILENAME, 10, null, new ByteArrayInputStream(CONTENT.getBytes()));
-    service.putFile(UUID_CODE, FILENAME, 0, null, new ByteArrayInputStream(CONTENT.getBytes()));
+    service.putFile(UUID_CODE, FILENAME, 10, null, checksummed(CONTENT.getBytes()));
+    service.putFile(UUID_CODE, FILENAME, 0, null, checksummed(CONTENT.getBytes()));
     final String[] storedFiles = expectedFile.getParentFile().list();
     assertArrayEquals(new String[] {FILENAME}, storedFiles, "Only the target file should remain, no temp residue.");
   }
@@ -114,6 +158,165 @@ class LocalFileStorageSeviceTest {
     assertEquals(CONTENT, Files.readString(expectedCopy.toPath()), "Content of file should be as expected.");
   }
 
+  @Test
+  void testCopyFileLinked() throws IOException {
+    final String destinationUuid = UUID.randomUUID().toString();
+    writeTempFile();
+    service.copyFile(UUID_CODE, destinationUuid, FILENAME, null);
+    final File expectedCopy = new File(new File(tempDir, destinationUuid), FILENAME);
+
+    assertTrue(Files.isSameFile(expectedFile.toPath(), expectedCopy.toPath()), "Copy should be a link to the source file.");
+    service.putFile(UUID_CODE, FILENAME, -1, null, checksummed("Overwritten content".getBytes()));
+    assertEquals(CONTENT, Files.readString(expectedCopy.toPath()), "Replacing the source file should not change the copy.");
+    assertArrayEquals(new String[] {FILENAME}, expectedCopy.getParentFile().list(), "No temporary files should be left behind.");
+  }
+
+  @Test
+  void testCopyFileWithoutLinks() throws IOException {
+    final LocalStorageProperties properties = new LocalStorageProperties();
+    final String destinationUuid = UUID.randomUUID().toString();
+
+    properties.setLocation(tempDir.getAbsolutePath());
+    properties.setLinkCopies(false);
+    replaceService(properties);
+    writeTempFile();
+    service.copyFile(UUID_CODE, destinationUuid, FILENAME, null);
+    final File expectedCopy = new File(new File(tempDir, destinationUuid), FILENAME);
+
+    assertFalse(Files.isSameFile(expectedFile.toPath(), expectedCopy.toPath()), "Copy should not be a link when links are disabled.");
+    assertEquals(CONTENT, Files.readString(expectedCopy.toPath()), "Content of file should be as expected.");
+  }
+
+  @Test
+  void testPutFileDeduplicated() throws IOException {
+    final LocalStorageProperties properties = new LocalStorageProperties();
+    final String otherUuid = UUID.randomUUID().toString();
+
+    properties.setLocation(tempDir.getAbsolutePath());
+    properties.setDeduplicate(true);
+    replaceService(properties);
+    service.putFile(UUID_CODE, FILENAME, -1, null, checksummed(CONTENT.getBytes()));
+    service.putFile(otherUuid, FILENAME, -1, null, checksummed(CONTENT.getBytes()));
+    final File otherFile = new File(new File(tempDir, otherUuid), FILENAME);
+
+    assertTrue(Files.isSameFile(expectedFile.toPath(), otherFile.toPath()), "Files with the same content should share the stored content.");
+    assertEquals(CONTENT, Files.readString(otherFile.toPath()), "Content of file should be as expected.");
+    assertArrayEquals(new String[] {FILENAME}, expectedFile.getParentFile().list(), "No temporary files should be left behind.");
+  }
+
+  @Test
+  void testPutFileCompressed() throws IOException {
+    final LocalStorageProperties properties = new LocalStorageProperties();
+    final String copyUuid = UUID.randomUUID().toString();
+
+    properties.setLocation(tempDir.getAbsolutePath());
+    properties.getCompression().setEnabled(true);
+    replaceService(properties);
+    service.putFile(UUID_CODE, FILENAME, -1, null, checksummed(CONTENT.getBytes()));
+    service.putFile(UUID_CODE, "test.zip", -1, null, checksummed(CONTENT.getBytes()));
+    service.copyFile(UUID_CODE, copyUuid, FILENAME, null);
+
+    try (final InputStream in = new GZIPInputStream(new FileInputStream(service.getFile(copyUuid, FILENAME)))) {
+      assertEquals(CONTENT, new String(in.readAllBytes()), "File matching a compression pattern should be stored compressed, also when copied.");
+    }
+    assertEquals(CONTENT, Files.readString(Path.of(service.getFile(UUID_CODE, "test.zip"))), "Other files should be stored as is.");
+  }
+
+  @Test
+  void testPutFileDeduplicatedCompressed() throws IOException {
+    final LocalStorageProperties properties = new LocalStorageProperties();
+    final String binFilename = "test.bin";
+
+    properties.setLocation(tempDir.getAbsolutePath());
+    properties.setDeduplicate(true);
+    properties.getCompression().setEnabled(true);
+    replaceService(properties);
+    service.putFile(UUID_CODE, FILENAME, -1, null, checksummed(CONTENT.getBytes()));
+    service.putFile(UUID_CODE, binFilename, -1, null, checksummed(CONTENT.getBytes()));
+    final Path binFile = Path.of(service.getFile(UUID_CODE, binFilename));
+
+    assertFalse(Files.isSameFile(expectedFile.toPath(), binFile), "Content stored compressed and as is should not share a blob.");
+    assertEquals(CONTENT, Files.readString(binFile), "File not matching a compression pattern should be stored as is.");
+    try (final InputStream in = new GZIPInputStream(new FileInputStream(expectedFile))) {
+      assertEquals(CONTENT, new String(in.readAllBytes()), "File matching a compression pattern should be stored compressed.");
+    }
+    assertEquals("gzip", service.getContentEncoding(UUID_CODE, FILENAME), "Compressed file should be recorded as stored compressed.");
+    assertEquals("identity", service.getContentEncoding(UUID_CODE, binFilename), "Other file should be recorded as stored as is.");
+    assertEquals(service.getChecksum(UUID_CODE, FILENAME), service.getChecksum(UUID_CODE, binFilename),
+        "Checksum should be of the content, regardless of how it's stored.");
+  }
+
+  @Test
+  void testShardedLayout() throws IOException {
+    final LocalStorageProperties properties = new LocalStorageProperties();
+    final String otherUuid = UUID.randomUUID().toString();
+
+    properties.setLocation(tempDir.getAbsolutePath());
+    properties.setShardLevels(2);
+    writeTempFile();
+    replaceService(properties);
+    assertEquals(expectedFile.getAbsolutePath(), service.getFile(UUID_CODE, FILENAME), "Files in the flat layout should still be found.");
+    service.putFile(UUID_CODE, "other.gml", -1, null, checksummed(CONTENT.getBytes()));
+    assertFalse(expectedFile.exists(), "Adding a file should migrate the uuid directory.");
+    assertEquals(CONTENT, Files.readString(Path.of(service.getFile(UUID_CODE, FILENAME))), "Migrated file should be found.");
+    service.putFile(otherUuid, FILENAME, -1, null, checksummed(CONTENT.getBytes()));
+    assertFalse(new File(tempDir, otherUuid).exists(), "New files should not be stored in the flat layout.");
+    service.deleteFiles(UUID_CODE);
+    assertThrows(FileNotFoundException.class, () -> service.getFile(UUID_CODE, FILENAME), "Deleted file should not be found.");
+  }
+
+  @Test
+  void testDeleteExpiredFiles() throws IOException {
+    final LocalStorageProperties properties = new LocalStorageProperties();
+    final String copyUuid = UUID.randomUUID().toString();
+
+    properties.setLocation(tempDir.getAbsolutePath());
+    properties.getExpiry().put("short", Duration.ofDays(1));
+    replaceService(properties);
+    service.putFile(UUID_CODE, FILENAME, -1, "short", checksummed(CONTENT.getBytes()));
+    service.putFile(UUID_CODE, "never.gml", -1, null, checksummed(CONTENT.getBytes()));
+    service.copyFile(UUID_CODE, copyUuid, FILENAME, "Wed, 1 Jan 2025 00:00:00 GMT");
+    final File expectedCopy = new File(new File(tempDir, copyUuid), FILENAME);
+
+    assertEquals(1, service.deleteExpiredFiles(Instant.now(), 10), "Only the copy with an expiry date in the past should be expired.");
+    assertFalse(expectedCopy.exists(), "Expired copy should be deleted.");
+    assertEquals(1, service.deleteExpiredFiles(Instant.now().plus(Duration.ofDays(2)), 10), "File with short expiry should be expired.");
+    assertFalse(expectedFile.exists(), "Expired file should be deleted.");
+    assertTrue(new File(expectedFile.getParentFile(), "never.gml").exists(), "File without expiry should not be deleted.");
+  }
+
+  @Test
+  void testDeleteIfExpiredStoredAgain() throws IOException {
+    final Instant expiresAt = Instant.parse("2025-01-01T00:00:00Z");
+
+    service.putFile(UUID_CODE, FILENAME, -1, "Wed, 1 Jan 2025 00:00:00 GMT", checksummed(CONTENT.getBytes()));
+    // Stored again, after the file was found expired but before it's deleted.
+    service.putFile(UUID_CODE, FILENAME, -1, "Thu, 1 Jan 2099 00:00:00 GMT", checksummed(CONTENT.getBytes()));
+    assertFalse(service.deleteIfExpired(UUID_CODE, FILENAME, expiresAt), "File stored again with a new expiry should not be deleted.");
+    assertTrue(expectedFile.exists(), "File stored again with a new expiry should be kept.");
+  }
+
+  @Test
+  void testDeleteIfExpired() throws IOException {
+    final Instant expiresAt = Instant.parse("2025-01-01T00:00:00Z");
+
+    service.putFile(UUID_CODE, FILENAME, -1, "Wed, 1 Jan 2025 00:00:00 GMT", checksummed(CONTENT.getBytes()));
+    assertTrue(service.deleteIfExpired(UUID_CODE, FILENAME, expiresAt), "File still expiring at the given time should be deleted.");
+    assertFalse(expectedFile.exists(), "Expired file should be deleted.");
+  }
+
+  @Test
+  void testDeleteExpiredFilesPreventCleanup() throws IOException {
+    final LocalStorageProperties properties = new LocalStorageProperties();
+
+    properties.setLocation(tempDir.getAbsolutePath());
+    properties.setPreventCleanup(true);
+    replaceService(properties);
+    service.putFile(UUID_CODE, FILENAME, -1, "Wed, 1 Jan 2025 00:00:00 GMT", checksummed(CONTENT.getBytes()));
+    assertEquals(0, service.deleteExpiredFiles(Instant.now(), 10), "No files should be deleted when cleanup is prevented.");
+    assertTrue(expectedFile.exists(), "Expired file should not be deleted when cleanup is prevented.");
+  }
+
   @Test
   void testCopyFileNotFound() {
     final String destinationUuid = UUID.randomUUID().toString();
@@ -146,4 +349,16 @@ class LocalFileStorageSeviceTest {
     Files.createDirectory(expectedFile.getParentFile().toPath());
     Files.writeString(expectedFile.toPath(), CONTENT);
   }
+
+  /**
+   * Replaces the service with a service with the given properties, shutting down the current service so it releases the metadata index.
+   */
+  private void replaceService(final LocalStorageProperties properties) throws IOException {
+    service.shutdown();
+    service = new LocalFileStorageSevice(properties);
+  }
+
+  private static ChecksumInputStream checksummed(final byte[] content) {
+    return new ChecksumInputStream(new ByteArrayInputStream(content), -1, null);
+  }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.local;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import nl.aerius.fileserver.local.LocalStorageProperties.Durability;
+import nl.aerius.fileserver.storage.ChecksumInputStream;
+import nl.aerius.fileserver.storage.GzipCompressingInputStream;
+
+/**
+ * Test class for {@link LocalFileWriter}.
+ */
+class LocalFileWriterTest {
+
+  private static final String CONTENT = "AERIUS";
+  // SHA-256 checksum of CONTENT.
+  private static final String CONTENT_CHECKSUM = "945bd9de5e7672b13a1fed83b8fea9c2c3947707798acec11fc8fdb52fa9a717";
+  // Smaller than the content, so the content is written in multiple parts.
+  private static final int BUFFER_SIZE = 4;
+
+  @TempDir Path tempDir;
+
+  @ParameterizedTest
+  @EnumSource(Durability.class)
+  void testWrite(final Durability durability) throws IOException {
+    final LocalFileWriter writer = new LocalFileWriter(durability, BUFFER_SIZE, 2);
+    final Path file = tempDir.resolve("test.gml");
+
+    Files.writeString(file, "Content to be replaced with a longer text");
+    assertEquals(CONTENT_CHECKSUM, writer.write(checksummed(CONTENT.getBytes()), file), "Should return the checksum of the content.");
+    writer.force(file);
+    writer.syncDirectory(tempDir);
+    assertEquals(CONTENT, Files.readString(file), "Content of file should be as expected.");
+  }
+
+  @Test
+  void testWriteLargeContent() throws IOException, NoSuchAlgorithmException {
+    final LocalFileWriter writer = new LocalFileWriter(Durability.NONE, 1000, 1);
+    final byte[] content = new byte[1_000_000];
+    final Path file = tempDir.resolve("test.gml");
+
+    new Random(1).nextBytes(content);
+    final String checksum = HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+
+    for (int i = 0; i < 2; i++) {
+      assertEquals(checksum, writer.write(checksummed(content), file),
+          "Should return the checksum of the content, also when reusing the buffer.");
+      assertArrayEquals(content, Files.readAllBytes(file), "Content of file should be as expected.");
+    }
+  }
+
+  @Test
+  void testWriteCompressed() throws IOException {
+    final LocalFileWriter writer = new LocalFileWriter(Durability.NONE, BUFFER_SIZE, 1);
+    final Path file = tempDir.resolve("test.gml");
+
+    assertEquals(CONTENT_CHECKSUM, writer.write(checksummed(CONTENT.getBytes()), file, in -> new GzipCompressingInputStream(in, 6)),
+        "Should return the checksum of the content before compression.");
+    try (final InputStream in = new GZIPInputStream(Files.newInputStream(file))) {
+      assertEquals(CONTENT, new String(in.readAllBytes()), "Content of file should be the compressed content.");
+    }
+  }
+
+  @Test
+  void testWritePoolExhausted() throws IOException {
+    final LocalFileWriter writer = new LocalFileWriter(Durability.NONE, BUFFER_SIZE, 1);
+    final Path file = tempDir.resolve("test.gml");
+    final Path otherFile = tempDir.resolve("other.gml");
+
+    // The other file is written while the only buffer is in use to write the file.
+    assertEquals(CONTENT_CHECKSUM, writer.write(checksummed(CONTENT.getBytes()), file, in -> {
+      try {
+        assertEquals(CONTENT_CHECKSUM, writer.write(checksummed(CONTENT.getBytes()), otherFile),
+            "Should return the checksum of the content written without a pooled buffer.");
+      } catch (final IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      return in;
+    }), "Should return the checksum of the content.");
+    assertEquals(CONTENT, Files.readString(file), "Content of file should be as expected.");
+    assertEquals(CONTENT, Files.readString(otherFile), "Content of file written without a pooled buffer should be as expected.");
+  }
+
+  @Test
+  void testWriteNotReadCompletely() {
+    final LocalFileWriter writer = new LocalFileWriter(Durability.NONE, BUFFER_SIZE, 1);
+    final Path file = tempDir.resolve("test.gml");
+
+    assertThrows(IOException.class, () -> writer.write(checksummed(CONTENT.getBytes()), file, in -> InputStream.nullInputStream()),
+        "Should fail when the checksum is not known because the content was not read completely.");
+  }
+
+  @ParameterizedTest
+  @EnumSource(Durability.class)
+  void testConcurrentSyncDirectory(final Durability durability) throws Exception {
+    final LocalFileWriter writer = new LocalFileWriter(durability, BUFFER_SIZE, 2);
+    final List<Future<String>> results = new ArrayList<>();
+
+    try (final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < 100; i++) {
+        final Path file = tempDir.resolve(i + ".gml");
+
+        results.add(executor.submit(() -> {
+          final String checksum = writer.write(checksummed(CONTENT.getBytes()), file);
+
+          writer.syncDirectory(tempDir);
+          return checksum;
+        }));
+      }
+      for (final Future<String> result : results) {
+        assertEquals(CONTENT_CHECKSUM, result.get(), "All concurrent writes should complete.");
+      }
+    }
+  }
+
+  private static ChecksumInputStream checksummed(final byte[] content) {
+    return new ChecksumInputStream(new ByteArrayInputStream(content), -1, null);
+  }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.local;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import nl.aerius.fileserver.local.LocalMetadataIndex.Expiry;
+import nl.aerius.fileserver.local.LocalMetadataIndex.FileMetadata;
+import nl.aerius.fileserver.local.LocalStorageProperties.Durability;
+
+/**
+ * Test class for {@link LocalMetadataIndex}.
+ */
+class LocalMetadataIndexTest {
+
+  private static final String UUID_CODE = "123";
+  private static final String FILENAME = "test.gml";
+  private static final Instant NOW = Instant.parse("2025-01-01T00:00:00Z");
+
+  @TempDir Path tempDir;
+
+  private LocalMetadataIndex index;
+
+  @BeforeEach
+  void beforeEach() throws IOException {
+    index = new LocalMetadataIndex(tempDir, Durability.FILE);
+  }
+
+  @AfterEach
+  void afterEach() throws IOException {
+    index.close();
+  }
+
+  @Test
+  void testGet() throws IOException {
+    final FileMetadata metadata = new FileMetadata(10, "abc", NOW, null, "gzip");
+
+    assertNull(index.get(UUID_CODE, FILENAME), "File not in the index should not be found.");
+    index.put(UUID_CODE, FILENAME, metadata);
+    assertEquals(metadata, index.get(UUID_CODE, FILENAME), "Should return the metadata of the file.");
+    assertTrue(index.hasFiles(UUID_CODE), "Uuid should have files.");
+    index.remove(UUID_CODE, FILENAME);
+    assertNull(index.get(UUID_CODE, FILENAME), "Removed file should not be found.");
+    assertFalse(index.hasFiles(UUID_CODE), "Uuid should not have files after its only file is removed.");
+  }
+
+  @Test
+  void testExpired() throws IOException {
+    index.put(UUID_CODE, "later.gml", metadata(NOW.minusSeconds(10)));
+    index.put(UUID_CODE, FILENAME, metadata(NOW.minusSeconds(20)));
+    index.put(UUID_CODE, "future.gml", metadata(NOW.plusSeconds(10)));
+    index.put(UUID_CODE, "never.gml", metadata(null));
+
+    assertEquals(List.of(new Expiry(NOW.minusSeconds(20), UUID_CODE, FILENAME), new Expiry(NOW.minusSeconds(10), UUID_CODE, "later.gml")),
+        index.expired(NOW, 10), "Should return the expired files, earliest first.");
+    assertEquals(1, index.expired(NOW, 1).size(), "Should return at most the maximum number of files.");
+  }
+
+  @Test
+  void testPutReplacesExpiry() throws IOException {
+    index.put(UUID_CODE, FILENAME, metadata(NOW.minusSeconds(10)));
+    index.put(UUID_CODE, FILENAME, metadata(NOW.plusSeconds(10)));
+    assertTrue(index.expired(NOW, 10).isEmpty(), "Storing a file again should replace the expiry.");
+    index.put(UUID_CODE, FILENAME, metadata(NOW.minusSeconds(10)));
+    index.put(UUID_CODE, FILENAME, metadata(null));
+    assertTrue(index.expired(NOW, 10).isEmpty(), "Storing a file again without expiry should remove the expiry.");
+  }
+
+  @Test
+  void testRemove() throws IOException {
+    index.put(UUID_CODE, FILENAME, metadata(NOW.minusSeconds(10)));
+    index.put(UUID_CODE, "other.gml", metadata(NOW.minusSeconds(10)));
+    index.remove(UUID_CODE, FILENAME);
+    assertEquals(1, index.expired(NOW, 10).size(), "Removed file should not be returned.");
+    index.removeAll(UUID_CODE);
+    assertTrue(index.expired(NOW, 10).isEmpty(), "Files of removed uuid should not be returned.");
+  }
+
+  @Test
+  void testReopen() throws IOException {
+    index.put(UUID_CODE, FILENAME, metadata(NOW.minusSeconds(10)));
+    index.put(UUID_CODE, "removed.gml", metadata(NOW.minusSeconds(10)));
+    index.put("456", FILENAME, metadata(NOW.minusSeconds(10)));
+    index.remove(UUID_CODE, "removed.gml");
+    index.removeAll("456");
+    index.close();
+    index = new LocalMetadataIndex(tempDir, Durability.FILE);
+
+    assertEquals(List.of(new Expiry(NOW.minusSeconds(10), UUID_CODE, FILENAME)), index.expired(NOW, 10),
+        "Index should be restored from the log.");
+    assertEquals(metadata(NOW.minusSeconds(10)), index.get(UUID_CODE, FILENAME), "Metadata should be restored from the log.");
+    assertNull(index.get("456", FILENAME), "Removed uuid should not be restored from the log.");
+  }
+
+  @Test
+  void testReopenWithPartialRecord() throws IOException {
+    index.put(UUID_CODE, FILENAME, metadata(NOW.minusSeconds(10)));
+    index.close();
+    Files.write(tempDir.resolve(LocalMetadataIndex.INDEX_DIRECTORY).resolve("metadata.log"), new byte[] {0, 0, 0, 20, 1, 2},
+        StandardOpenOption.APPEND);
+    index = new LocalMetadataIndex(tempDir, Durability.FILE);
+
+    assertEquals(1, index.expired(NOW, 10).size(), "Records before a partially written record should be restored.");
+    index.put(UUID_CODE, "other.gml", metadata(NOW.minusSeconds(10)));
+    index.close();
+    index = new LocalMetadataIndex(tempDir, Durability.FILE);
+    assertEquals(2, index.expired(NOW, 10).size(), "Records written after restoring should be restored.");
+  }
+
+  @Test
+  void testInUse() throws IOException {
+    assertThrows(IOException.class, () -> new LocalMetadataIndex(tempDir, Durability.FILE),
+        "Index in use by another file server should not be opened.");
+    index.put(UUID_CODE, FILENAME, metadata(NOW.minusSeconds(10)));
+    index.close();
+    index = new LocalMetadataIndex(tempDir, Durability.FILE);
+    assertNotNull(index.get(UUID_CODE, FILENAME), "Index should be opened again after it's closed.");
+  }
+
+  @Test
+  void testConcurrentChanges() throws Exception {
+    final int count = 100;
+    final List<Future<?>> puts = new ArrayList<>();
+
+    try (final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+      for (int i = 0; i < count; i++) {
+        final String filename = i + ".gml";
+
+        puts.add(executor.submit(() -> {
+          index.put(UUID_CODE, filename, metadata(NOW.minusSeconds(10)));
+          return null;
+        }));
+      }
+      for (final Future<?> put : puts) {
+        put.get();
+      }
+    }
+    index.close();
+    index = new LocalMetadataIndex(tempDir, Durability.FILE);
+    assertEquals(count, index.expired(NOW, count * 2).size(), "All concurrently stored files should be restored from the log.");
+  }
+
+  @Test
+  void testCompact() throws IOException {
+    final Path logFile = tempDir.resolve(LocalMetadataIndex.INDEX_DIRECTORY).resolve("metadata.log");
+
+    index.close();
+    index = new LocalMetadataIndex(tempDir, Durability.NONE);
+    index.put(UUID_CODE, "other.gml", metadata(null));
+    for (int i = 0; i < 100_001; i++) {
+      index.put(UUID_CODE, FILENAME, metadata(NOW.minusSeconds(i)));
+    }
+    assertTrue(Files.size(logFile) < 1_000, "Log should be rewritten with only the current entries.");
+    index.put(UUID_CODE, "after.gml", metadata(null));
+    index.close();
+    index = new LocalMetadataIndex(tempDir, Durability.NONE);
+    assertEquals(List.of(new Expiry(NOW.minusSeconds(100_000), UUID_CODE, FILENAME)), index.expired(NOW, 10),
+        "Latest entry should be restored from the rewritten log.");
+    assertNotNull(index.get(UUID_CODE, "other.gml"), "Entry stored before the rewrite should be restored.");
+    assertNotNull(index.get(UUID_CODE, "after.gml"), "Entry stored after the rewrite should be restored.");
+  }
+
+  private static FileMetadata metadata(final Instant expiresAt) {
+    return new FileMetadata(6, "checksum", NOW, expiresAt, "identity");
+  }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.local;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Test class for {@link LocalStorageLayout}.
+ */
+class LocalStorageLayoutTest {
+
+  private static final String UUID_CODE = "123";
+  private static final String FILENAME = "test.gml";
+
+  @TempDir Path tempDir;
+
+  @Test
+  void testFlatLayout() {
+    final LocalStorageLayout layout = new LocalStorageLayout(tempDir, 0);
+
+    assertEquals(tempDir.resolve(UUID_CODE), layout.uuidDirectory(UUID_CODE), "Flat layout should put the uuid directly in the root.");
+  }
+
+  @Test
+  void testShardedLayout() {
+    final LocalStorageLayout layout = new LocalStorageLayout(tempDir, 2);
+    final Path directory = layout.uuidDirectory(UUID_CODE);
+
+    assertEquals(UUID_CODE, directory.getFileName().toString(), "Directory should be named after the uuid.");
+    assertEquals(tempDir, directory.getParent().getParent().getParent(), "Sharded layout should have 2 levels of sub directories.");
+    assertTrue(directory.getParent().getFileName().toString().matches("[0-9a-f]{2}"), "Shard directories should be 2 hex characters.");
+    assertEquals(directory, layout.uuidDirectory(UUID_CODE), "Same uuid should always be in the same directory.");
+  }
+
+  @Test
+  void testInvalidShardLevels() {
+    assertThrows(IllegalArgumentException.class, () -> new LocalStorageLayout(tempDir, LocalStorageLayout.MAX_SHARD_LEVELS + 1),
+        "Should not accept more shard levels than supported.");
+  }
+
+  @Test
+  void testExistingUuidDirectory() throws IOException {
+    createFlatFile(UUID_CODE);
+    final LocalStorageLayout layout = new LocalStorageLayout(tempDir, 2);
+
+    assertEquals(layout.uuidDirectory("456"), layout.existingUuidDirectory("456"), "Not existing uuid should be in the configured layout.");
+    assertEquals(tempDir.resolve(UUID_CODE), layout.existingUuidDirectory(UUID_CODE), "Not migrated uuid should be read from the flat layout.");
+  }
+
+  @Test
+  void testExistingUuidDirectoryWithoutFlatDirectories() throws IOException {
+    final LocalStorageLayout layout = new LocalStorageLayout(tempDir, 2);
+
+    createFlatFile(UUID_CODE);
+    assertEquals(layout.uuidDirectory(UUID_CODE), layout.existingUuidDirectory(UUID_CODE),
+        "Flat layout should not be looked up when it had no directories at startup.");
+  }
+
+  @Test
+  void testExistingUuidDirectoryAfterMigrateAll() throws IOException {
+    createFlatFile(UUID_CODE);
+    final LocalStorageLayout layout = new LocalStorageLayout(tempDir, 2);
+
+    layout.migrateAll();
+    createFlatFile("456");
+    assertEquals(layout.uuidDirectory("456"), layout.existingUuidDirectory("456"),
+        "Flat layout should not be looked up after all directories are migrated.");
+  }
+
+  @Test
+  void testMigrate() throws IOException {
+    createFlatFile(UUID_CODE);
+    final LocalStorageLayout layout = new LocalStorageLayout(tempDir, 2);
+    final Path directory = layout.migrate(UUID_CODE);
+
+    assertTrue(Files.exists(directory.resolve(FILENAME)), "File should be moved to the configured layout.");
+    assertFalse(Files.exists(tempDir.resolve(UUID_CODE)), "Flat directory should be removed.");
+    assertEquals(directory, layout.existingUuidDirectory(UUID_CODE), "Migrated uuid should be read from the configured layout.");
+  }
+
+  @Test
+  void testMigrateAll() throws IOException {
+    createFlatFile(UUID_CODE);
+    createFlatFile("456");
+    Files.createDirectories(tempDir.resolve(LocalBlobStore.BLOBS_DIRECTORY));
+    final LocalStorageLayout layout = new LocalStorageLayout(tempDir, 2);
+
+    assertEquals(2, layout.migrateAll(), "Should migrate all uuid directories.");
+    assertTrue(Files.exists(layout.uuidDirectory("456").resolve(FILENAME)), "Files should be moved to the configured layout.");
+    assertTrue(Files.exists(tempDir.resolve(LocalBlobStore.BLOBS_DIRECTORY)), "Hidden directories should not be migrated.");
+    assertEquals(0, layout.migrateAll(), "Shard directories should not be migrated again.");
+  }
+
+  private void createFlatFile(final String uuid) throws IOException {
+    Files.createDirectories(tempDir.resolve(uuid));
+    Files.writeString(tempDir.resolve(uuid).resolve(FILENAME), "AERIUS");
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.s3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.doReturn;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.asyncDispatch;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.delete;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.request;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.context.ActiveProfiles;
+import org.springframework.test.context.bean.override.mockito.MockitoBean;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.MvcResult;
+import org.springframework.test.web.servlet.RequestBuilder;
+import org.springframework.test.web.servlet.ResultActions;
+
+import nl.aerius.fileserver.storage.AsyncStorageService;
+import nl.aerius.fileserver.storage.ChecksumInputStream;
+
+/**
+ * Test class for {@link AmazonS3AsyncController}.
+ */
+@AutoConfigureMockMvc
+@ActiveProfiles("s3")
+@SpringBootTest(properties = {"aerius.file.storage.s3.bucketName=dev", "aerius.file.storage.s3.async=true"})
+class AmazonS3AsyncControllerTest {
+
+  private static final String HTTP_LOCALHOST = "http://localhost/";
+  private static final String UUID_CODE = "00000000-0000-0000-0000-000000000001";
+  private static final String FILENAME = "filename";
+  private static final String URL = HTTP_LOCALHOST + UUID_CODE + "/" + FILENAME;
+  private static final String AMAZON_URL = "https://s3/uuid/filename";
+
+  @Autowired private MockMvc mvc;
+
+  @MockitoBean private AsyncStorageService storageService;
+
+  @Test
+  void testGetFile() throws Exception {
+    doReturn(CompletableFuture.completedFuture(AMAZON_URL)).when(storageService).getFile(UUID_CODE, FILENAME);
+    final MockHttpServletResponse response = performAsync(get(URL)).andExpect(status().isFound()).andReturn().getResponse();
+
+    assertEquals(AMAZON_URL, response.getRedirectedUrl(), "Expects url as redirect url");
+  }
+
+  @Test
+  void testGetFileNotFound() throws Exception {
+    doReturn(CompletableFuture.failedFuture(new FileNotFoundException())).when(storageService).getFile(UUID_CODE, FILENAME);
+    performAsync(get(URL)).andExpect(status().isNotFound());
+  }
+
+  @Test
+  void testPutFile() throws Exception {
+    doReturn(CompletableFuture.completedFuture(null)).when(storageService)
+        .putFile(eq(UUID_CODE), eq(FILENAME), anyLong(), isNull(), any(ChecksumInputStream.class));
+    performAsync(put(URL).contentType(MediaType.APPLICATION_OCTET_STREAM).content("test")).andExpect(status().isOk());
+  }
+
+  @Test
+  void testPutFileFailed() throws Exception {
+    doReturn(CompletableFuture.failedFuture(new IOException())).when(storageService)
+        .putFile(eq(UUID_CODE), eq(FILENAME), anyLong(), isNull(), any(ChecksumInputStream.class));
+    performAsync(put(URL).contentType(MediaType.APPLICATION_OCTET_STREAM).content("test")).andExpect(status().isBadRequest());
+  }
+
+  @Test
+  void testPutFileRejected() throws Exception {
+    doReturn(CompletableFuture.failedFuture(new RejectedExecutionException())).when(storageService)
+        .putFile(eq(UUID_CODE), eq(FILENAME), anyLong(), isNull(), any(ChecksumInputStream.class));
+    performAsync(put(URL).contentType(MediaType.APPLICATION_OCTET_STREAM).content("test")).andExpect(status().isServiceUnavailable());
+  }
+
+  @Test
+  void testCopyFileFailed() throws Exception {
+    final String destinationUuid = "00000000-0000-0000-0000-000000000002";
+
+    doReturn(CompletableFuture.failedFuture(new IOException())).when(storageService).copyFile(UUID_CODE, destinationUuid, FILENAME, null);
+    performAsync(put(HTTP_LOCALHOST + "copy/" + UUID_CODE + "/" + destinationUuid + "/" + FILENAME)).andExpect(status().isNotFound());
+  }
+
+  @Test
+  void testDeleteFilesFailed() throws Exception {
+    doReturn(CompletableFuture.failedFuture(new IOException())).when(storageService).deleteFiles(UUID_CODE);
+    performAsync(delete(HTTP_LOCALHOST + UUID_CODE)).andExpect(status().isOk());
+  }
+
+  private ResultActions performAsync(final RequestBuilder requestBuilder) throws Exception {
+    final MvcResult result = mvc.perform(requestBuilder).andExpect(request().asyncStarted()).andReturn();
+
+    return mvc.perform(asyncDispatch(result));
+  }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.s3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import nl.aerius.fileserver.storage.ChecksumInputStream;
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.async.AsyncRequestBody;
+import software.amazon.awssdk.services.s3.S3AsyncClient;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.CopyObjectResult;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.GetObjectAttributesRequest;
+import software.amazon.awssdk.services.s3.model.GetObjectAttributesResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Exception;
+import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.presigner.S3Presigner;
+import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
+import software.amazon.awssdk.services.s3.presigner.model.PresignedGetObjectRequest;
+
+/**
+ * Test class for {@link AmazonS3AsyncStorageService}.
+ */
+@ExtendWith(MockitoExtension.class)
+class AmazonS3AsyncStorageServiceTest {
+
+  private static final String BUCKET_NAME = "AERIUS_UNIT_TEST";
+  private static final String AMAZON_URL = "https://s3.eu-west-1.amazonaws.com/" + BUCKET_NAME;
+
+  private static final String CONTENT = "AERIUS";
+  private static final String UUID_CODE = "123";
+  private static final String FILENAME = "test.gml";
+  private static final String EXPECTED_KEY_PREFIX = "z/" + UUID_CODE + "/";
+  private static final String EXPECTED_KEY = EXPECTED_KEY_PREFIX + FILENAME;
+  private static final String EXPECTED_FULLPATH = AMAZON_URL + "/" + EXPECTED_KEY;
+  private static final String ETAG = "\"etag\"";
+
+  private @Mock S3AsyncClient s3AsyncClient;
+  private @Mock S3Presigner presigner;
+  private @Mock PresignedGetObjectRequest presignedGetObjectRequest;
+
+  private @Captor ArgumentCaptor<PutObjectRequest> putObjectRequestCaptor;
+  private @Captor ArgumentCaptor<CopyObjectRequest> copyObjectRequestCaptor;
+  private @Captor ArgumentCaptor<DeleteObjectsRequest> deleteObjectsRequestCaptor;
+  private @Captor ArgumentCaptor<ListObjectsV2Request> listObjectsRequestCaptor;
+
+  private AmazonS3AsyncStorageService service;
+
+  @BeforeEach
+  void beforeEach() {
+    final AmazonS3StorageProperties properties = new AmazonS3StorageProperties();
+
+    properties.setBucketName(BUCKET_NAME);
+    service = createService(properties);
+  }
+
+  @AfterEach
+  void afterEach() {
+    service.shutdown();
+  }
+
+  @Test
+  void testPutFile() throws Exception {
+    doReturn(CompletableFuture.completedFuture(PutObjectResponse.builder().eTag(ETAG).build())).when(s3AsyncClient)
+        .putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class));
+
+    service.putFile(UUID_CODE, FILENAME, CONTENT.length(), "someTag", checksummed(CONTENT.getBytes())).get();
+    verify(s3AsyncClient).putObject(putObjectRequestCaptor.capture(), any(AsyncRequestBody.class));
+    assertEquals(BUCKET_NAME, putObjectRequestCaptor.getValue().bucket(), "Bucket name should be the same");
+    assertEquals(EXPECTED_KEY, putObjectRequestCaptor.getValue().key(), "Key should be correct");
+    assertEquals("expires=someTag", putObjectRequestCaptor.getValue().tagging(), "Tag used");
+  }
+
+  @Test
+  void testPutFileStoresClientChecksum() throws Exception {
+    final String checksum = "0123456789abcdef";
+    doReturn(CompletableFuture.completedFuture(PutObjectResponse.builder().eTag(ETAG).build())).when(s3AsyncClient)
+        .putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class));
+
+    service.putFile(UUID_CODE, FILENAME, CONTENT.length(), null, new ChecksumInputStream(new ByteArrayInputStream(CONTENT.getBytes()), -1,
+        checksum.toUpperCase())).get();
+    verify(s3AsyncClient).putObject(putObjectRequestCaptor.capture(), any(AsyncRequestBody.class));
+    assertEquals(Map.of("checksum-sha256", checksum), putObjectRequestCaptor.getValue().metadata(),
+        "Checksum of the client should be stored as metadata");
+    assertEquals(ChecksumAlgorithm.SHA256, putObjectRequestCaptor.getValue().checksumAlgorithm(), "Amazon S3 should checksum the content");
+  }
+
+  @Test
+  void testPutFileFailed() {
+    doReturn(CompletableFuture.failedFuture(S3Exception.builder().build())).when(s3AsyncClient)
+        .putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class));
+
+    final CompletableFuture<Void> future = service.putFile(UUID_CODE, FILENAME, -1, null, checksummed(CONTENT.getBytes()));
+
+    assertCause(IOException.class, future, "Expect S3 exceptions to be mapped as IOException.");
+  }
+
+  @Test
+  void testPutFileRejectedWhenTooManyUploads() throws Exception {
+    final AmazonS3StorageProperties properties = new AmazonS3StorageProperties();
+
+    properties.setBucketName(BUCKET_NAME);
+    properties.setTransferThreads(1);
+    properties.setTransferQueueSize(1);
+    service.shutdown();
+    service = createService(properties);
+    final CompletableFuture<PutObjectResponse> upload = new CompletableFuture<>();
+    doReturn(upload).when(s3AsyncClient).putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class));
+
+    final CompletableFuture<Void> first = service.putFile(UUID_CODE, FILENAME, CONTENT.length(), null, checksummed(CONTENT.getBytes()));
+    final CompletableFuture<Void> second = service.putFile(UUID_CODE, FILENAME, CONTENT.length(), null, checksummed(CONTENT.getBytes()));
+
+    assertCause(RejectedExecutionException.class, service.putFile(UUID_CODE, FILENAME, CONTENT.length(), null,
+        checksummed(CONTENT.getBytes())), "Expects an upload beyond the transfer threads and queue to be rejected.");
+    upload.complete(PutObjectResponse.builder().eTag(ETAG).build());
+    first.get();
+    second.get();
+    service.putFile(UUID_CODE, FILENAME, CONTENT.length(), null, checksummed(CONTENT.getBytes())).get();
+    verify(s3AsyncClient, times(3)).putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class));
+  }
+
+  @Test
+  void testGetFile() throws Exception {
+    doReturn(CompletableFuture.completedFuture(GetObjectAttributesResponse.builder().eTag(ETAG).build())).when(s3AsyncClient)
+        .getObjectAttributes(any(GetObjectAttributesRequest.class));
+    doReturn(presignedGetObjectRequest).when(presigner).presignGetObject(any(GetObjectPresignRequest.class));
+    doAnswer(a -> new URI(EXPECTED_FULLPATH).toURL()).when(presignedGetObjectRequest).url();
+
+    assertEquals(EXPECTED_FULLPATH, service.getFile(UUID_CODE, FILENAME).get(), "Expects the complete path to file.");
+    assertEquals(EXPECTED_FULLPATH, service.getFile(UUID_CODE, FILENAME).get(), "Expects the same path to file.");
+    verify(s3AsyncClient).getObjectAttributes(any(GetObjectAttributesRequest.class));
+  }
+
+  @Test
+  void testGetFileNotFound() {
+    doReturn(CompletableFuture.failedFuture(NoSuchKeyException.builder().build())).when(s3AsyncClient)
+        .getObjectAttributes(any(GetObjectAttributesRequest.class));
+
+    assertCause(FileNotFoundException.class, service.getFile(UUID_CODE, FILENAME), "Expects the file to not be found.");
+  }
+
+  @Test
+  void testGetFileCachedAfterPut() throws Exception {
+    doReturn(CompletableFuture.completedFuture(PutObjectResponse.builder().eTag(ETAG).build())).when(s3AsyncClient)
+        .putObject(any(PutObjectRequest.class), any(AsyncRequestBody.class));
+    doReturn(presignedGetObjectRequest).when(presigner).presignGetObject(any(GetObjectPresignRequest.class));
+    doAnswer(a -> new URI(EXPECTED_FULLPATH).toURL()).when(presignedGetObjectRequest).url();
+
+    service.putFile(UUID_CODE, FILENAME, CONTENT.length(), null, checksummed(CONTENT.getBytes())).get();
+    service.getFile(UUID_CODE, FILENAME).get();
+    verify(s3AsyncClient, never()).getObjectAttributes(any(GetObjectAttributesRequest.class));
+  }
+
+  @Test
+  void testCopyFile() throws Exception {
+    final String destinationUuid = UUID.randomUUID().toString();
+    doReturn(CompletableFuture.completedFuture(CopyObjectResponse.builder().copyObjectResult(CopyObjectResult.builder().eTag(ETAG).build()).build()))
+        .when(s3AsyncClient).copyObject(any(CopyObjectRequest.class));
+
+    service.copyFile(UUID_CODE, destinationUuid, FILENAME, "copiedTag").get();
+    verify(s3AsyncClient).copyObject(copyObjectRequestCaptor.capture());
+    final CopyObjectRequest copyObjectRequest = copyObjectRequestCaptor.getValue();
+
+    assertEquals(EXPECTED_KEY, copyObjectRequest.sourceKey(), "Source key should be correct");
+    assertEquals("z/" + destinationUuid + "/" + FILENAME, copyObjectRequest.destinationKey(), "Destination key should be correct");
+    assertEquals("expires=copiedTag", copyObjectRequest.tagging(), "Tag used");
+  }
+
+  @Test
+  void testDeleteFile() throws Exception {
+    doReturn(CompletableFuture.completedFuture(DeleteObjectsResponse.builder().build())).when(s3AsyncClient)
+        .deleteObjects(any(DeleteObjectsRequest.class));
+
+    service.deleteFile(UUID_CODE, FILENAME).get();
+    verify(s3AsyncClient).deleteObjects(deleteObjectsRequestCaptor.capture());
+    assertEquals(List.of(EXPECTED_KEY), deletedKeys(deleteObjectsRequestCaptor.getValue()), "Should have got the expected key to delete.");
+  }
+
+  @Test
+  void testDeleteFilesMultiplePages() throws Exception {
+    final String otherKey = EXPECTED_KEY_PREFIX + "other.gml";
+    final ListObjectsV2Response firstPage = ListObjectsV2Response.builder()
+        .contents(S3Object.builder().key(EXPECTED_KEY).build())
+        .isTruncated(true)
+        .nextContinuationToken("next")
+        .build();
+    final ListObjectsV2Response lastPage = ListObjectsV2Response.builder()
+        .contents(S3Object.builder().key(otherKey).build())
+        .isTruncated(false)
+        .build();
+    doReturn(CompletableFuture.completedFuture(firstPage), CompletableFuture.completedFuture(lastPage)).when(s3AsyncClient)
+        .listObjectsV2(any(ListObjectsV2Request.class));
+    doReturn(CompletableFuture.completedFuture(DeleteObjectsResponse.builder().build())).when(s3AsyncClient)
+        .deleteObjects(any(DeleteObjectsRequest.class));
+
+    service.deleteFiles(UUID_CODE).get();
+    verify(s3AsyncClient, times(2)).listObjectsV2(listObjectsRequestCaptor.capture());
+    assertEquals(EXPECTED_KEY_PREFIX, listObjectsRequestCaptor.getAllValues().get(0).prefix(), "Should list objects with the uuid as prefix");
+    assertEquals("next", listObjectsRequestCaptor.getAllValues().get(1).continuationToken(), "Should list the next page with the token");
+    verify(s3AsyncClient, times(2)).deleteObjects(deleteObjectsRequestCaptor.capture());
+    assertEquals(List.of(EXPECTED_KEY, otherKey),
+        deleteObjectsRequestCaptor.getAllValues().stream().flatMap(r -> deletedKeys(r).stream()).toList(), "Should delete the objects of all pages.");
+  }
+
+  private static List<String> deletedKeys(final DeleteObjectsRequest request) {
+    return request.delete().objects().stream().map(ObjectIdentifier::key).toList();
+  }
+
+  private AmazonS3AsyncStorageService createService(final AmazonS3StorageProperties properties) {
+    return new AmazonS3AsyncStorageService(s3AsyncClient, presigner, properties, new S3ObjectMetadataCache(properties),
+        new S3PresignedUrlCache(properties, StaticCredentialsProvider.create(AwsBasicCredentials.create("access-key", "secret-key"))));
+  }
+
+  private static void assertCause(final Class<? extends Throwable> expected, final CompletableFuture<?> future, final String message) {
+    final ExecutionException exception = assertThrows(ExecutionException.class, future::get, message);
+
+    assertInstanceOf(expected, exception.getCause(), message);
+  }
+
+  private static ChecksumInputStream checksummed(final byte[] content) {
+    return new ChecksumInputStream(new ByteArrayInputStream(content), -1, null);
+  }
+}
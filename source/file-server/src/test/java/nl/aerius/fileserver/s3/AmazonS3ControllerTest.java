@@ -17,19 +17,29 @@
 package nl.aerius.fileserver.s3;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
 import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
 import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
+import java.util.concurrent.RejectedExecutionException;
+
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
 import org.springframework.mock.web.MockHttpServletResponse;
 import org.springframework.test.context.ActiveProfiles;
 import org.springframework.test.context.bean.override.mockito.MockitoBean;
 import org.springframework.test.web.servlet.MockMvc;
 
+import nl.aerius.fileserver.storage.ChecksumInputStream;
+import nl.aerius.fileserver.storage.FileController;
 import nl.aerius.fileserver.storage.StorageService;
 
 /**
@@ -57,4 +67,25 @@ class AmazonS3ControllerTest {
 
     assertEquals(AMAZON_URL, response.getRedirectedUrl(), "Expects url as redirect url");
   }
+
+  @Test
+  void testGetFileChecksum() throws Exception {
+    final String tempFilename = "filename";
+    final String checksum = "0123456789abcdef";
+    doReturn(AMAZON_URL).when(storageService).getFile(UUID_CODE, tempFilename);
+    doReturn(checksum).when(storageService).getChecksum(UUID_CODE, tempFilename);
+    final MockHttpServletResponse response = mvc.perform(get(HTTP_LOCALHOST + UUID_CODE + "/" + tempFilename)).andExpect(status().is3xxRedirection())
+        .andReturn().getResponse();
+
+    assertEquals(checksum, response.getHeader(FileController.CHECKSUM_HEADER), "Expects the stored checksum in the checksum header");
+  }
+
+  @Test
+  void testPutFileRejected() throws Exception {
+    doThrow(new RejectedExecutionException("No upload buffer available")).when(storageService)
+        .putFile(eq(UUID_CODE), eq("filename"), anyLong(), any(), any(ChecksumInputStream.class));
+
+    mvc.perform(put(HTTP_LOCALHOST + UUID_CODE + "/filename").contentType(MediaType.APPLICATION_OCTET_STREAM).content("content"))
+        .andExpect(status().isServiceUnavailable());
+  }
 }
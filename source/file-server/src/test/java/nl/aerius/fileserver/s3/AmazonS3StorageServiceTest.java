@@ -17,22 +17,36 @@
 package nl.aerius.fileserver.s3;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 
 import java.io.ByteArrayInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
 import java.util.Collection;
+import java.util.Comparator;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.zip.GZIPInputStream;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
@@ -42,21 +56,47 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Captor;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.util.unit.DataSize;
 
+import nl.aerius.fileserver.storage.ChecksumInputStream;
+
+import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
+import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
+import software.amazon.awssdk.auth.credentials.AwsSessionCredentials;
+import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.S3Utilities;
 import software.amazon.awssdk.services.s3.S3Utilities.Builder;
+import software.amazon.awssdk.services.s3.model.AbortMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.ChecksumAlgorithm;
+import software.amazon.awssdk.services.s3.model.ChecksumMode;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CompleteMultipartUploadResponse;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
 import software.amazon.awssdk.services.s3.model.CopyObjectRequest;
+import software.amazon.awssdk.services.s3.model.CopyObjectResponse;
+import software.amazon.awssdk.services.s3.model.CopyObjectResult;
+import software.amazon.awssdk.services.s3.model.CopyPartResult;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadRequest;
+import software.amazon.awssdk.services.s3.model.CreateMultipartUploadResponse;
 import software.amazon.awssdk.services.s3.model.DeleteObjectsRequest;
-import software.amazon.awssdk.services.s3.model.GetObjectAttributesRequest;
-import software.amazon.awssdk.services.s3.model.ListObjectsRequest;
-import software.amazon.awssdk.services.s3.model.ListObjectsResponse;
+import software.amazon.awssdk.services.s3.model.DeleteObjectsResponse;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Response;
 import software.amazon.awssdk.services.s3.model.ObjectIdentifier;
 import software.amazon.awssdk.services.s3.model.PutObjectRequest;
+import software.amazon.awssdk.services.s3.model.PutObjectResponse;
+import software.amazon.awssdk.services.s3.model.S3Error;
 import software.amazon.awssdk.services.s3.model.S3Exception;
 import software.amazon.awssdk.services.s3.model.S3Object;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartCopyResponse;
+import software.amazon.awssdk.services.s3.model.UploadPartRequest;
+import software.amazon.awssdk.services.s3.model.UploadPartResponse;
 import software.amazon.awssdk.services.s3.presigner.S3Presigner;
 import software.amazon.awssdk.services.s3.presigner.model.GetObjectPresignRequest;
 import software.amazon.awssdk.services.s3.presigner.model.PresignedGetObjectRequest;
@@ -80,6 +120,10 @@ class AmazonS3StorageServiceTest {
   private static final String UUID_CODE_PREFIXED = "t123";
   private static final String EXPECTED_KEY_PEFIXED = "t/" + UUID_CODE_PREFIXED + "/" + FILENAME;
   private static final String EXPECTED_FULLPATH_PREFIXED = AMAZON_URL + "/" + EXPECTED_KEY_PEFIXED;
+  private static final String UPLOAD_ID = "upload-id";
+  private static final String ETAG = "\"etag\"";
+  // Content just over one part, resulting in a multipart upload of 2 parts.
+  private static final int MULTIPART_CONTENT_SIZE = 8 * 1024 * 1024 + 1;
 
   private @Mock S3Client s3Client;
   private @Mock S3Presigner presigner;
@@ -89,21 +133,30 @@ class AmazonS3StorageServiceTest {
   private @Captor ArgumentCaptor<RequestBody> requestBodyCaptor;
   private @Captor ArgumentCaptor<CopyObjectRequest> copyObjectRequestCaptor;
   private @Captor ArgumentCaptor<DeleteObjectsRequest> deleteObjectsRequestCaptor;
-  private @Captor ArgumentCaptor<ListObjectsRequest> listObjectsRequestCaptor;
+  private @Captor ArgumentCaptor<ListObjectsV2Request> listObjectsRequestCaptor;
+  private @Captor ArgumentCaptor<CreateMultipartUploadRequest> createMultipartUploadRequestCaptor;
+  private @Captor ArgumentCaptor<UploadPartRequest> uploadPartRequestCaptor;
+  private @Captor ArgumentCaptor<CompleteMultipartUploadRequest> completeMultipartUploadRequestCaptor;
+  private @Captor ArgumentCaptor<UploadPartCopyRequest> uploadPartCopyRequestCaptor;
+  private @Captor ArgumentCaptor<GetObjectPresignRequest> presignRequestCaptor;
+  private @Captor ArgumentCaptor<HeadObjectRequest> headObjectRequestCaptor;
 
   private AmazonS3StorageService service;
 
   @BeforeEach
   void beforeEach() {
-    final AmazonS3StorageProperties properties = new AmazonS3StorageProperties();
+    service = createService(properties());
+  }
 
-    properties.setBucketName(BUCKET_NAME);
-    service = new AmazonS3StorageService(s3Client, presigner, properties);
+  @AfterEach
+  void afterEach() {
+    service.shutdown();
   }
 
   @Test
   void testPutFile() throws IOException {
-    service.putFile(UUID_CODE, FILENAME, 10, null, new ByteArrayInputStream(CONTENT.getBytes()));
+    doReturn(PutObjectResponse.builder().eTag(ETAG).build()).when(s3Client).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    service.putFile(UUID_CODE, FILENAME, CONTENT.length(), null, checksummed(CONTENT.getBytes()));
     verify(s3Client).putObject(putObjectRequestCaptor.capture(), requestBodyCaptor.capture());
 
     assertEquals(EXPECTED_KEY, putObjectRequestCaptor.getValue().key(), "File should exist when stored");
@@ -112,9 +165,10 @@ class AmazonS3StorageServiceTest {
 
   @Test
   void testPutFileOverwrite() throws IOException {
+    doReturn(PutObjectResponse.builder().eTag(ETAG).build()).when(s3Client).putObject(any(PutObjectRequest.class), any(RequestBody.class));
     final String overwriteContent = "Overwritten content";
-    service.putFile(UUID_CODE, FILENAME, 10, null, new ByteArrayInputStream(CONTENT.getBytes()));
-    service.putFile(UUID_CODE, FILENAME, 0, null, new ByteArrayInputStream(overwriteContent.getBytes()));
+    service.putFile(UUID_CODE, FILENAME, CONTENT.length(), null, checksummed(CONTENT.getBytes()));
+    service.putFile(UUID_CODE, FILENAME, overwriteContent.length(), null, checksummed(overwriteContent.getBytes()));
     verify(s3Client, times(2)).putObject(putObjectRequestCaptor.capture(), requestBodyCaptor.capture());
 
     assertEquals(2, putObjectRequestCaptor.getAllValues().size());
@@ -128,11 +182,219 @@ class AmazonS3StorageServiceTest {
         "Content of second file upload should be as expected.");
   }
 
+  @Test
+  void testPutFileCompressed() throws IOException {
+    final AmazonS3StorageProperties properties = new AmazonS3StorageProperties();
+
+    properties.setBucketName(BUCKET_NAME);
+    properties.getCompression().setEnabled(true);
+    service.shutdown();
+    service = createService(properties);
+    doReturn(PutObjectResponse.builder().eTag(ETAG).build()).when(s3Client).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    service.putFile(UUID_CODE, FILENAME, CONTENT.length(), null, checksummed(CONTENT.getBytes()));
+    verify(s3Client).putObject(putObjectRequestCaptor.capture(), requestBodyCaptor.capture());
+
+    assertEquals("gzip", putObjectRequestCaptor.getValue().contentEncoding(), "Compressed file should be stored with gzip encoding");
+    try (final InputStream in = new GZIPInputStream(requestBodyCaptor.getValue().contentStreamProvider().newStream())) {
+      assertEquals(CONTENT, new String(in.readAllBytes()), "Compressed content should be uploaded.");
+    }
+  }
+
+  @Test
+  void testPutFileUnknownSize() throws IOException {
+    doReturn(PutObjectResponse.builder().eTag(ETAG).build()).when(s3Client).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    service.putFile(UUID_CODE, FILENAME, -1, null, checksummed(CONTENT.getBytes()));
+    verify(s3Client).putObject(putObjectRequestCaptor.capture(), requestBodyCaptor.capture());
+
+    assertEquals(EXPECTED_KEY, putObjectRequestCaptor.getValue().key(), "File should exist when stored");
+    assertEquals("expires=never", putObjectRequestCaptor.getValue().tagging(), "Default expires tag should be set");
+    assertEquals(CONTENT.length(), requestBodyCaptor.getValue().optionalContentLength().get(),
+        "Small content of unknown size should be uploaded with a single put.");
+    verify(s3Client, never()).createMultipartUpload(any(CreateMultipartUploadRequest.class));
+  }
+
+  @Test
+  void testPutFileMultipart() throws IOException {
+    final byte[] content = new byte[MULTIPART_CONTENT_SIZE];
+
+    doReturn(CreateMultipartUploadResponse.builder().uploadId(UPLOAD_ID).build()).when(s3Client)
+        .createMultipartUpload(any(CreateMultipartUploadRequest.class));
+    doReturn(UploadPartResponse.builder().eTag("etag").build()).when(s3Client).uploadPart(any(UploadPartRequest.class), any(RequestBody.class));
+    doReturn(CompleteMultipartUploadResponse.builder().eTag(ETAG).build()).when(s3Client)
+        .completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+
+    service.putFile(UUID_CODE, FILENAME, -1, "short", checksummed(content));
+
+    verify(s3Client).createMultipartUpload(createMultipartUploadRequestCaptor.capture());
+    assertEquals(EXPECTED_KEY, createMultipartUploadRequestCaptor.getValue().key(), "Multipart upload should be created for the key");
+    assertEquals("expires=short", createMultipartUploadRequestCaptor.getValue().tagging(), "Multipart upload should set the expires tag");
+    verify(s3Client, times(2)).uploadPart(uploadPartRequestCaptor.capture(), requestBodyCaptor.capture());
+    assertEquals(content.length, requestBodyCaptor.getAllValues().stream().mapToLong(b -> b.optionalContentLength().get()).sum(),
+        "All content should be uploaded in parts.");
+    assertEquals(List.of(1, 2), uploadPartRequestCaptor.getAllValues().stream().map(UploadPartRequest::partNumber).sorted().toList(),
+        "Parts should be numbered consecutively.");
+    verify(s3Client).completeMultipartUpload(completeMultipartUploadRequestCaptor.capture());
+    assertEquals(2, completeMultipartUploadRequestCaptor.getValue().multipartUpload().parts().size(), "Upload should be completed with all parts.");
+  }
+
+  @Test
+  void testPutFileMultipartAbortOnFailure() {
+    final byte[] content = new byte[MULTIPART_CONTENT_SIZE];
+
+    doReturn(CreateMultipartUploadResponse.builder().uploadId(UPLOAD_ID).build()).when(s3Client)
+        .createMultipartUpload(any(CreateMultipartUploadRequest.class));
+    doThrow(S3Exception.builder().build()).when(s3Client).uploadPart(any(UploadPartRequest.class), any(RequestBody.class));
+
+    assertThrows(S3Exception.class, () -> service.putFile(UUID_CODE, FILENAME, -1, null, checksummed(content)),
+        "Failure of a part upload should be thrown.");
+    verify(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    verify(s3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+  }
+
+  @Test
+  void testPutFileMultipartParallel() throws IOException {
+    final AmazonS3StorageProperties properties = new AmazonS3StorageProperties();
+
+    properties.setBucketName(BUCKET_NAME);
+    properties.setPartSize(DataSize.ofMegabytes(5));
+    properties.setMultipartThreshold(DataSize.ofMegabytes(5));
+    properties.setUploadConcurrency(2);
+    service.shutdown();
+    service = createService(properties);
+    final byte[] content = new byte[(int) DataSize.ofMegabytes(11).toBytes()];
+
+    doReturn(CreateMultipartUploadResponse.builder().uploadId(UPLOAD_ID).build()).when(s3Client)
+        .createMultipartUpload(any(CreateMultipartUploadRequest.class));
+    doAnswer(a -> UploadPartResponse.builder().eTag("etag" + a.getArgument(0, UploadPartRequest.class).partNumber()).build()).when(s3Client)
+        .uploadPart(any(UploadPartRequest.class), any(RequestBody.class));
+    doReturn(CompleteMultipartUploadResponse.builder().eTag(ETAG).build()).when(s3Client)
+        .completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+
+    service.putFile(UUID_CODE, FILENAME, content.length, null, checksummed(content));
+
+    verify(s3Client, times(3)).uploadPart(any(UploadPartRequest.class), any(RequestBody.class));
+    verify(s3Client).completeMultipartUpload(completeMultipartUploadRequestCaptor.capture());
+    assertEquals(List.of("etag1", "etag2", "etag3"),
+        completeMultipartUploadRequestCaptor.getValue().multipartUpload().parts().stream().map(CompletedPart::eTag).toList(),
+        "Parts uploaded in parallel should be completed in part number order.");
+  }
+
+  @Test
+  void testPutFileChecksum() throws IOException {
+    final String checksum = sha256(CONTENT.getBytes());
+    final ChecksumInputStream in = new ChecksumInputStream(new ByteArrayInputStream(CONTENT.getBytes()), CONTENT.length(), checksum);
+
+    doReturn(PutObjectResponse.builder().eTag(ETAG).build()).when(s3Client).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    service.putFile(UUID_CODE, FILENAME, CONTENT.length(), null, in);
+    verify(s3Client).putObject(putObjectRequestCaptor.capture(), any(RequestBody.class));
+
+    assertEquals(ChecksumAlgorithm.SHA256, putObjectRequestCaptor.getValue().checksumAlgorithm(), "Amazon S3 should checksum the content");
+    assertEquals(Base64.getEncoder().encodeToString(HexFormat.of().parseHex(checksum)), putObjectRequestCaptor.getValue().checksumSHA256(),
+        "Checksum of the client should be sent to Amazon S3");
+  }
+
+  @Test
+  void testPutFileSinglePartStoresChecksum() throws IOException {
+    doReturn(PutObjectResponse.builder().eTag(ETAG).build()).when(s3Client).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    service.putFile(UUID_CODE, FILENAME, -1, null, checksummed(CONTENT.getBytes()));
+    verify(s3Client).putObject(putObjectRequestCaptor.capture(), any(RequestBody.class));
+
+    assertEquals(Map.of("checksum-sha256", sha256(CONTENT.getBytes())), putObjectRequestCaptor.getValue().metadata(),
+        "Checksum computed while reading the part should be stored as metadata");
+    assertEquals(sha256(CONTENT.getBytes()), service.getChecksum(UUID_CODE, FILENAME), "Checksum should be known after put");
+    verify(s3Client, never()).headObject(any(HeadObjectRequest.class));
+  }
+
+  @Test
+  void testPutFileMultipartStoresClientChecksum() throws IOException {
+    final byte[] content = new byte[MULTIPART_CONTENT_SIZE];
+    final String checksum = sha256(content);
+
+    doReturn(CreateMultipartUploadResponse.builder().uploadId(UPLOAD_ID).build()).when(s3Client)
+        .createMultipartUpload(any(CreateMultipartUploadRequest.class));
+    doReturn(UploadPartResponse.builder().eTag("etag").build()).when(s3Client).uploadPart(any(UploadPartRequest.class), any(RequestBody.class));
+    doReturn(CompleteMultipartUploadResponse.builder().eTag(ETAG).build()).when(s3Client)
+        .completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+
+    service.putFile(UUID_CODE, FILENAME, -1, null, new ChecksumInputStream(new ByteArrayInputStream(content), -1, checksum.toUpperCase()));
+
+    verify(s3Client).createMultipartUpload(createMultipartUploadRequestCaptor.capture());
+    assertEquals(Map.of("checksum-sha256", checksum), createMultipartUploadRequestCaptor.getValue().metadata(),
+        "Checksum of the client should be stored as metadata");
+    assertEquals(checksum, service.getChecksum(UUID_CODE, FILENAME), "Checksum should be known after put");
+  }
+
+  @Test
+  void testPutFileMultipartWithoutChecksum() throws IOException {
+    doReturn(CreateMultipartUploadResponse.builder().uploadId(UPLOAD_ID).build()).when(s3Client)
+        .createMultipartUpload(any(CreateMultipartUploadRequest.class));
+    doReturn(UploadPartResponse.builder().eTag("etag").build()).when(s3Client).uploadPart(any(UploadPartRequest.class), any(RequestBody.class));
+    doReturn(CompleteMultipartUploadResponse.builder().eTag(ETAG).build()).when(s3Client)
+        .completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+
+    service.putFile(UUID_CODE, FILENAME, -1, null, checksummed(new byte[MULTIPART_CONTENT_SIZE]));
+
+    verify(s3Client).createMultipartUpload(createMultipartUploadRequestCaptor.capture());
+    assertTrue(createMultipartUploadRequestCaptor.getValue().metadata().isEmpty(), "Checksum is not known when the upload is created");
+    assertNull(service.getChecksum(UUID_CODE, FILENAME), "Checksum should not be known");
+  }
+
+  @Test
+  void testGetChecksumFromMetadata() {
+    final String checksum = sha256(CONTENT.getBytes());
+
+    doReturn(HeadObjectResponse.builder().eTag(ETAG).metadata(Map.of("checksum-sha256", checksum)).checksumSHA256("other").build())
+        .when(s3Client).headObject(headObjectRequestCaptor.capture());
+    assertEquals(checksum, service.getChecksum(UUID_CODE, FILENAME), "Checksum stored as metadata should be returned");
+    assertEquals(ChecksumMode.ENABLED, headObjectRequestCaptor.getValue().checksumMode(), "Checksum should be requested");
+  }
+
+  @Test
+  void testGetChecksumFromAmazonS3() {
+    final String checksum = sha256(CONTENT.getBytes());
+    final String base64Checksum = Base64.getEncoder().encodeToString(HexFormat.of().parseHex(checksum));
+
+    doReturn(HeadObjectResponse.builder().eTag(ETAG).checksumSHA256(base64Checksum).build()).when(s3Client).headObject(any(HeadObjectRequest.class));
+    assertEquals(checksum, service.getChecksum(UUID_CODE, FILENAME), "Checksum computed by Amazon S3 should be returned");
+  }
+
+  @Test
+  void testGetChecksumComposite() {
+    doReturn(HeadObjectResponse.builder().eTag(ETAG).checksumSHA256("c2hhMjU2-2").build()).when(s3Client).headObject(any(HeadObjectRequest.class));
+    assertNull(service.getChecksum(UUID_CODE, FILENAME), "Checksum of parts is not the checksum of the content");
+  }
+
+  @Test
+  void testGetChecksumCompressed() {
+    final String base64Checksum = Base64.getEncoder().encodeToString(HexFormat.of().parseHex(sha256(CONTENT.getBytes())));
+
+    doReturn(HeadObjectResponse.builder().eTag(ETAG).contentEncoding("gzip").checksumSHA256(base64Checksum).build()).when(s3Client)
+        .headObject(any(HeadObjectRequest.class));
+    assertNull(service.getChecksum(UUID_CODE, FILENAME), "Checksum of compressed content is not the checksum of the content");
+  }
+
+  @Test
+  void testGetChecksumNotFound() {
+    doThrow(S3Exception.builder().build()).when(s3Client).headObject(any(HeadObjectRequest.class));
+    assertNull(service.getChecksum(UUID_CODE, FILENAME), "No checksum for a file that doesn't exist");
+  }
+
+  @Test
+  void testPartSizeTooSmall() {
+    final AmazonS3StorageProperties properties = new AmazonS3StorageProperties();
+
+    properties.setBucketName(BUCKET_NAME);
+    properties.setPartSize(DataSize.ofMegabytes(1));
+    assertThrows(IllegalArgumentException.class, () -> createService(properties),
+        "Part size below the Amazon S3 minimum should not be accepted.");
+  }
+
   @ParameterizedTest
   @CsvSource({UUID_CODE + "," + EXPECTED_FULLPATH, UUID_CODE_PREFIXED + "," + EXPECTED_FULLPATH_PREFIXED})
   void testGetFile(final String uuid, final String expectedFullPath) throws IOException {
     final Builder builder = S3Utilities.builder();
     builder.region(REGION);
+    doReturn(HeadObjectResponse.builder().eTag(ETAG).build()).when(s3Client).headObject(any(HeadObjectRequest.class));
     doReturn(presignedGetObjectRequest).when(presigner).presignGetObject(any(GetObjectPresignRequest.class));
     doAnswer(a -> new URI(expectedFullPath).toURL()).when(presignedGetObjectRequest).url();
     assertEquals(expectedFullPath, service.getFile(uuid, FILENAME), "Expects the complete path to file.");
@@ -140,13 +402,106 @@ class AmazonS3StorageServiceTest {
 
   @Test
   void testGetFileNotFound() {
-    doThrow(S3Exception.builder().build()).when(s3Client).getObjectAttributes(any(GetObjectAttributesRequest.class));
+    doThrow(S3Exception.builder().build()).when(s3Client).headObject(any(HeadObjectRequest.class));
     assertThrows(FileNotFoundException.class, () -> service.getFile(UUID_CODE, FILENAME), "Expects the file to not be found.");
   }
 
+  @Test
+  void testGetFileCachedAfterPut() throws IOException {
+    doReturn(PutObjectResponse.builder().eTag(ETAG).build()).when(s3Client).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    doReturn(presignedGetObjectRequest).when(presigner).presignGetObject(any(GetObjectPresignRequest.class));
+    doAnswer(a -> new URI(EXPECTED_FULLPATH).toURL()).when(presignedGetObjectRequest).url();
+
+    service.putFile(UUID_CODE, FILENAME, CONTENT.length(), null, checksummed(CONTENT.getBytes()));
+    service.getFile(UUID_CODE, FILENAME);
+    service.getFile(UUID_CODE, FILENAME);
+    verify(s3Client, never()).headObject(any(HeadObjectRequest.class));
+  }
+
+  @Test
+  void testGetFileCachedOnlyOnce() throws IOException {
+    doReturn(HeadObjectResponse.builder().eTag(ETAG).build()).when(s3Client).headObject(any(HeadObjectRequest.class));
+    doReturn(presignedGetObjectRequest).when(presigner).presignGetObject(any(GetObjectPresignRequest.class));
+    doAnswer(a -> new URI(EXPECTED_FULLPATH).toURL()).when(presignedGetObjectRequest).url();
+
+    service.getFile(UUID_CODE, FILENAME);
+    service.getFile(UUID_CODE, FILENAME);
+    verify(s3Client).headObject(any(HeadObjectRequest.class));
+  }
+
+  @Test
+  void testGetFilePresignedUrlReused() throws IOException {
+    doReturn(HeadObjectResponse.builder().eTag(ETAG).build()).when(s3Client).headObject(any(HeadObjectRequest.class));
+    doReturn(presignedGetObjectRequest).when(presigner).presignGetObject(any(GetObjectPresignRequest.class));
+    doAnswer(a -> new URI(EXPECTED_FULLPATH).toURL()).when(presignedGetObjectRequest).url();
+
+    assertEquals(EXPECTED_FULLPATH, service.getFile(UUID_CODE, FILENAME), "Expects the presigned url.");
+    assertEquals(EXPECTED_FULLPATH, service.getFile(UUID_CODE, FILENAME), "Expects the same presigned url.");
+    verify(presigner).presignGetObject(presignRequestCaptor.capture());
+    assertEquals(Duration.ofHours(1), presignRequestCaptor.getValue().signatureDuration(), "Expects the default signature duration.");
+  }
+
+  @Test
+  void testGetFilePresignedUrlReusedWithinSessionCredentials() throws IOException {
+    service.shutdown();
+    service = createService(properties(), sessionCredentials(Instant.now().plus(Duration.ofHours(2))));
+    doReturn(HeadObjectResponse.builder().eTag(ETAG).build()).when(s3Client).headObject(any(HeadObjectRequest.class));
+    doReturn(presignedGetObjectRequest).when(presigner).presignGetObject(any(GetObjectPresignRequest.class));
+    doAnswer(a -> new URI(EXPECTED_FULLPATH).toURL()).when(presignedGetObjectRequest).url();
+
+    service.getFile(UUID_CODE, FILENAME);
+    service.getFile(UUID_CODE, FILENAME);
+    verify(presigner).presignGetObject(any(GetObjectPresignRequest.class));
+  }
+
+  @Test
+  void testGetFilePresignedUrlNotReusedBeyondSessionCredentials() throws IOException {
+    service.shutdown();
+    // Credentials expiring now, so an url signed with them can't be reused.
+    service = createService(properties(), sessionCredentials(Instant.now()));
+    doReturn(HeadObjectResponse.builder().eTag(ETAG).build()).when(s3Client).headObject(any(HeadObjectRequest.class));
+    doReturn(presignedGetObjectRequest).when(presigner).presignGetObject(any(GetObjectPresignRequest.class));
+    doAnswer(a -> new URI(EXPECTED_FULLPATH).toURL()).when(presignedGetObjectRequest).url();
+
+    assertEquals(EXPECTED_FULLPATH, service.getFile(UUID_CODE, FILENAME), "Expects the presigned url.");
+    assertEquals(EXPECTED_FULLPATH, service.getFile(UUID_CODE, FILENAME), "Expects a newly presigned url.");
+    verify(presigner, times(2)).presignGetObject(any(GetObjectPresignRequest.class));
+  }
+
+  @Test
+  void testGetFileNotFoundAfterDelete() throws IOException {
+    doReturn(PutObjectResponse.builder().eTag(ETAG).build()).when(s3Client).putObject(any(PutObjectRequest.class), any(RequestBody.class));
+    doThrow(S3Exception.builder().build()).when(s3Client).headObject(any(HeadObjectRequest.class));
+    doReturn(DeleteObjectsResponse.builder().build()).when(s3Client).deleteObjects(any(DeleteObjectsRequest.class));
+
+    service.putFile(UUID_CODE, FILENAME, CONTENT.length(), null, checksummed(CONTENT.getBytes()));
+    service.deleteFile(UUID_CODE, FILENAME);
+    assertThrows(FileNotFoundException.class, () -> service.getFile(UUID_CODE, FILENAME), "Deleted file should not be found in the cache.");
+  }
+
+  @Test
+  void testGetFileNotCachedWhenDeletedWhileLoading() throws IOException {
+    doReturn(DeleteObjectsResponse.builder().build()).when(s3Client).deleteObjects(any(DeleteObjectsRequest.class));
+    // The file is deleted after its attributes were retrieved, but before the get adds them to the cache.
+    doAnswer(a -> {
+      service.deleteFile(UUID_CODE, FILENAME);
+      return HeadObjectResponse.builder().eTag(ETAG).build();
+    }).when(s3Client).headObject(any(HeadObjectRequest.class));
+    doReturn(presignedGetObjectRequest).when(presigner).presignGetObject(any(GetObjectPresignRequest.class));
+    doAnswer(a -> new URI(EXPECTED_FULLPATH).toURL()).when(presignedGetObjectRequest).url();
+
+    service.getFile(UUID_CODE, FILENAME);
+    doThrow(S3Exception.builder().build()).when(s3Client).headObject(any(HeadObjectRequest.class));
+    assertThrows(FileNotFoundException.class, () -> service.getFile(UUID_CODE, FILENAME),
+        "File deleted while its metadata was loaded should not be found in the cache.");
+  }
+
   @Test
   void testCopyFile() throws IOException {
     final String destinationUuid = UUID.randomUUID().toString();
+    doReturn(HeadObjectResponse.builder().contentLength((long) CONTENT.length()).build()).when(s3Client).headObject(any(HeadObjectRequest.class));
+    doReturn(CopyObjectResponse.builder().copyObjectResult(CopyObjectResult.builder().eTag(ETAG).build()).build()).when(s3Client)
+        .copyObject(any(CopyObjectRequest.class));
     service.copyFile(UUID_CODE, destinationUuid, FILENAME, "copiedTag");
     verify(s3Client).copyObject(copyObjectRequestCaptor.capture());
 
@@ -161,13 +516,92 @@ class AmazonS3StorageServiceTest {
   @Test
   void testCopyFileNotFound() {
     final String destinationUuid = UUID.randomUUID().toString();
-    doThrow(S3Exception.builder().build()).when(s3Client).copyObject(any(CopyObjectRequest.class));
+    doThrow(S3Exception.builder().build()).when(s3Client).headObject(any(HeadObjectRequest.class));
     assertThrows(IOException.class, () -> service.copyFile(UUID_CODE, destinationUuid, FILENAME, null),
         "Expect any exception to be mapped as IOException.");
   }
 
+  @Test
+  void testCopyFileMultipart() throws IOException {
+    final String destinationUuid = UUID.randomUUID().toString();
+    final String destinationKey = "z/" + destinationUuid + "/" + FILENAME;
+    final long size = DataSize.ofMegabytes(12).toBytes();
+    final long partSize = DataSize.ofMegabytes(5).toBytes();
+
+    service.shutdown();
+    service = createService(copyProperties());
+    doReturn(HeadObjectResponse.builder().contentLength(size).contentType("application/zip").eTag(ETAG).build()).when(s3Client)
+        .headObject(any(HeadObjectRequest.class));
+    doReturn(CreateMultipartUploadResponse.builder().uploadId(UPLOAD_ID).build()).when(s3Client)
+        .createMultipartUpload(any(CreateMultipartUploadRequest.class));
+    doAnswer(a -> UploadPartCopyResponse.builder()
+        .copyPartResult(CopyPartResult.builder().eTag("etag" + a.getArgument(0, UploadPartCopyRequest.class).partNumber()).build()).build())
+        .when(s3Client).uploadPartCopy(any(UploadPartCopyRequest.class));
+    doReturn(CompleteMultipartUploadResponse.builder().eTag(ETAG).build()).when(s3Client)
+        .completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+
+    service.copyFile(UUID_CODE, destinationUuid, FILENAME, "copiedTag");
+
+    verify(s3Client, never()).copyObject(any(CopyObjectRequest.class));
+    verify(s3Client).createMultipartUpload(createMultipartUploadRequestCaptor.capture());
+    assertEquals(destinationKey, createMultipartUploadRequestCaptor.getValue().key(), "Destination key should be correct");
+    assertEquals("expires=copiedTag", createMultipartUploadRequestCaptor.getValue().tagging(), "Tag used");
+    assertEquals("application/zip", createMultipartUploadRequestCaptor.getValue().contentType(), "Content type should be kept");
+    verify(s3Client, times(3)).uploadPartCopy(uploadPartCopyRequestCaptor.capture());
+    final List<String> ranges = uploadPartCopyRequestCaptor.getAllValues().stream()
+        .sorted(Comparator.comparing(UploadPartCopyRequest::partNumber))
+        .map(UploadPartCopyRequest::copySourceRange)
+        .toList();
+    assertEquals(List.of("bytes=0-" + (partSize - 1), "bytes=" + partSize + "-" + (2 * partSize - 1), "bytes=" + 2 * partSize + "-" + (size - 1)),
+        ranges, "Parts should copy consecutive ranges of the source object");
+    assertEquals(EXPECTED_KEY, uploadPartCopyRequestCaptor.getValue().sourceKey(), "Source key should be correct");
+    assertTrue(uploadPartCopyRequestCaptor.getAllValues().stream().allMatch(r -> ETAG.equals(r.copySourceIfMatch())),
+        "Parts should only be copied when the source object is unchanged");
+    verify(s3Client).completeMultipartUpload(completeMultipartUploadRequestCaptor.capture());
+    assertEquals(List.of(1, 2, 3), completeMultipartUploadRequestCaptor.getValue().multipartUpload().parts().stream().map(CompletedPart::partNumber)
+        .toList(), "All parts should be completed in order");
+  }
+
+  @Test
+  void testCopyFileMultipartAbortOnFailure() {
+    final String destinationUuid = UUID.randomUUID().toString();
+
+    service.shutdown();
+    service = createService(copyProperties());
+    doReturn(HeadObjectResponse.builder().contentLength(DataSize.ofMegabytes(12).toBytes()).build()).when(s3Client)
+        .headObject(any(HeadObjectRequest.class));
+    doReturn(CreateMultipartUploadResponse.builder().uploadId(UPLOAD_ID).build()).when(s3Client)
+        .createMultipartUpload(any(CreateMultipartUploadRequest.class));
+    doThrow(S3Exception.builder().build()).when(s3Client).uploadPartCopy(any(UploadPartCopyRequest.class));
+
+    assertThrows(IOException.class, () -> service.copyFile(UUID_CODE, destinationUuid, FILENAME, null),
+        "Failure of a part copy should be thrown as IOException.");
+    verify(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    verify(s3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+  }
+
+  @Test
+  void testCopyFileMultipartSourceChanged() {
+    final String destinationUuid = UUID.randomUUID().toString();
+
+    service.shutdown();
+    service = createService(copyProperties());
+    doReturn(HeadObjectResponse.builder().contentLength(DataSize.ofMegabytes(12).toBytes()).eTag(ETAG).build()).when(s3Client)
+        .headObject(any(HeadObjectRequest.class));
+    doReturn(CreateMultipartUploadResponse.builder().uploadId(UPLOAD_ID).build()).when(s3Client)
+        .createMultipartUpload(any(CreateMultipartUploadRequest.class));
+    // The source object is replaced during the copy, so its entity tag no longer matches.
+    doThrow(S3Exception.builder().statusCode(412).build()).when(s3Client).uploadPartCopy(any(UploadPartCopyRequest.class));
+
+    assertThrows(IOException.class, () -> service.copyFile(UUID_CODE, destinationUuid, FILENAME, null),
+        "Copy of a source object replaced during the copy should fail.");
+    verify(s3Client).abortMultipartUpload(any(AbortMultipartUploadRequest.class));
+    verify(s3Client, never()).completeMultipartUpload(any(CompleteMultipartUploadRequest.class));
+  }
+
   @Test
   void testDeleteFile() throws IOException {
+    doReturn(DeleteObjectsResponse.builder().build()).when(s3Client).deleteObjects(any(DeleteObjectsRequest.class));
     service.deleteFile(UUID_CODE, FILENAME);
     verify(s3Client).deleteObjects(deleteObjectsRequestCaptor.capture());
     final Object[] deletedValues = deleteObjectsRequestCaptor.getValue().delete().getValueForField("Objects", Collection.class).get().toArray();
@@ -183,19 +617,114 @@ class AmazonS3StorageServiceTest {
 
   @Test
   void testDeleteFiles() throws IOException {
-    final ListObjectsResponse.Builder builder = ListObjectsResponse.builder();
-    final S3Object.Builder objectBuilder = S3Object.builder();
-    objectBuilder.key(EXPECTED_KEY);
-    builder.contents(List.of(objectBuilder.build()));
-    doReturn(builder.build()).when(s3Client).listObjects(any(ListObjectsRequest.class));
+    final String otherKey = EXPECTED_KEY_PREFIX + "other.gml";
+    final ListObjectsV2Response firstPage = ListObjectsV2Response.builder()
+        .contents(S3Object.builder().key(EXPECTED_KEY).build())
+        .isTruncated(true)
+        .nextContinuationToken("next")
+        .build();
+    final ListObjectsV2Response lastPage = ListObjectsV2Response.builder()
+        .contents(S3Object.builder().key(otherKey).build())
+        .isTruncated(false)
+        .build();
+    doReturn(firstPage, lastPage).when(s3Client).listObjectsV2(any(ListObjectsV2Request.class));
+    doReturn(DeleteObjectsResponse.builder().build()).when(s3Client).deleteObjects(any(DeleteObjectsRequest.class));
 
     service.deleteFiles(UUID_CODE);
 
-    verify(s3Client).listObjects(listObjectsRequestCaptor.capture());
-    assertEquals(EXPECTED_KEY_PREFIX, listObjectsRequestCaptor.getValue().prefix(), "When listing objects it should contain the uuid as prefix");
+    verify(s3Client, times(2)).listObjectsV2(listObjectsRequestCaptor.capture());
+    final List<ListObjectsV2Request> listRequests = listObjectsRequestCaptor.getAllValues();
+    assertEquals(EXPECTED_KEY_PREFIX, listRequests.get(0).prefix(), "When listing objects it should contain the uuid as prefix");
+    assertEquals(1000, listRequests.get(0).maxKeys(), "Should list at most the number of keys that can be deleted in one request");
+    assertEquals("next", listRequests.get(1).continuationToken(), "Should list the next page with the continuation token");
 
-    verify(s3Client).deleteObjects(deleteObjectsRequestCaptor.capture());
-    final Object[] deletedValues = deleteObjectsRequestCaptor.getValue().delete().getValueForField("Objects", Collection.class).get().toArray();
-    assertEquals(EXPECTED_KEY, ((ObjectIdentifier) deletedValues[0]).key(), "Should have got the expected key to delete.");
+    verify(s3Client, times(2)).deleteObjects(deleteObjectsRequestCaptor.capture());
+    final List<String> deletedKeys = deleteObjectsRequestCaptor.getAllValues().stream()
+        .flatMap(r -> r.delete().objects().stream())
+        .map(ObjectIdentifier::key)
+        .sorted()
+        .toList();
+    assertEquals(List.of(otherKey, EXPECTED_KEY), deletedKeys, "Should delete the objects of all pages.");
+  }
+
+  @Test
+  void testDeleteFilesErrors() {
+    final ListObjectsV2Response page = ListObjectsV2Response.builder()
+        .contents(S3Object.builder().key(EXPECTED_KEY).build())
+        .isTruncated(false)
+        .build();
+    doReturn(page).when(s3Client).listObjectsV2(any(ListObjectsV2Request.class));
+    doReturn(DeleteObjectsResponse.builder().errors(S3Error.builder().key(EXPECTED_KEY).code("AccessDenied").build()).build()).when(s3Client)
+        .deleteObjects(any(DeleteObjectsRequest.class));
+
+    final IOException exception = assertThrows(IOException.class, () -> service.deleteFiles(UUID_CODE),
+        "Should throw exception when objects could not be deleted.");
+    assertTrue(exception.getMessage().contains(EXPECTED_KEY), "Exception should report the key that could not be deleted.");
+  }
+
+  @Test
+  void testDeleteFilesListingAndDeleteErrors() {
+    final ListObjectsV2Response firstPage = ListObjectsV2Response.builder()
+        .contents(S3Object.builder().key(EXPECTED_KEY).build())
+        .isTruncated(true)
+        .nextContinuationToken("next")
+        .build();
+    doReturn(firstPage).doThrow(S3Exception.builder().message("Listing failed").build()).when(s3Client)
+        .listObjectsV2(any(ListObjectsV2Request.class));
+    doReturn(DeleteObjectsResponse.builder().errors(S3Error.builder().key(EXPECTED_KEY).code("AccessDenied").build()).build()).when(s3Client)
+        .deleteObjects(any(DeleteObjectsRequest.class));
+
+    final IOException exception = assertThrows(IOException.class, () -> service.deleteFiles(UUID_CODE),
+        "Should throw exception when listing the objects failed.");
+    assertTrue(exception.getCause() instanceof S3Exception, "Exception of the listing should be thrown.");
+    assertEquals(1, exception.getSuppressed().length, "Failure of the delete should be added as suppressed exception.");
+    assertTrue(exception.getSuppressed()[0].getMessage().contains(EXPECTED_KEY), "Suppressed exception should report the key not deleted.");
+  }
+
+  private static AmazonS3StorageProperties properties() {
+    final AmazonS3StorageProperties properties = new AmazonS3StorageProperties();
+
+    properties.setBucketName(BUCKET_NAME);
+    return properties;
+  }
+
+  private static AwsCredentialsProvider sessionCredentials(final Instant expirationTime) {
+    return StaticCredentialsProvider.create(AwsSessionCredentials.builder()
+        .accessKeyId("access-key")
+        .secretAccessKey("secret-key")
+        .sessionToken("session-token")
+        .expirationTime(expirationTime)
+        .build());
+  }
+
+  private static AmazonS3StorageProperties copyProperties() {
+    final AmazonS3StorageProperties properties = new AmazonS3StorageProperties();
+
+    properties.setBucketName(BUCKET_NAME);
+    properties.setCopyThreshold(DataSize.ofMegabytes(5));
+    properties.setCopyPartSize(DataSize.ofMegabytes(5));
+    properties.setCopyConcurrency(2);
+    return properties;
+  }
+
+  private AmazonS3StorageService createService(final AmazonS3StorageProperties properties) {
+    return createService(properties, StaticCredentialsProvider.create(AwsBasicCredentials.create("access-key", "secret-key")));
+  }
+
+  private AmazonS3StorageService createService(final AmazonS3StorageProperties properties, final AwsCredentialsProvider credentialsProvider) {
+    return new AmazonS3StorageService(s3Client, presigner, properties, new S3ObjectMetadataCache(properties),
+        new S3PresignedUrlCache(properties, credentialsProvider));
+  }
+
+  private static ChecksumInputStream checksummed(final byte[] content) {
+    return new ChecksumInputStream(new ByteArrayInputStream(content), -1, null);
+  }
+
+  private static String sha256(final byte[] content) {
+    try {
+      return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(content));
+    } catch (final NoSuchAlgorithmException e) {
+      throw new IllegalStateException(e);
+    }
   }
 }
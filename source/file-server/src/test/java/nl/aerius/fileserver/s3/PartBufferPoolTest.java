@@ -0,0 +1,59 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.s3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for {@link PartBufferPool}.
+ */
+class PartBufferPoolTest {
+
+  private static final int BUFFER_SIZE = 16;
+
+  @Test
+  void testAcquire() throws IOException {
+    final PartBufferPool pool = new PartBufferPool(BUFFER_SIZE, 1, Duration.ofSeconds(1));
+
+    assertEquals(BUFFER_SIZE, pool.acquire().length, "Buffer should have the size of the pool");
+  }
+
+  @Test
+  void testReleasedBufferReused() throws IOException {
+    final PartBufferPool pool = new PartBufferPool(BUFFER_SIZE, 1, Duration.ofSeconds(1));
+    final byte[] buffer = pool.acquire();
+
+    pool.release(buffer);
+    assertSame(buffer, pool.acquire(), "Released buffer should be reused");
+  }
+
+  @Test
+  void testAcquireTimeout() throws IOException {
+    final PartBufferPool pool = new PartBufferPool(BUFFER_SIZE, 1, Duration.ofMillis(10));
+
+    pool.acquire();
+    assertThrows(RejectedExecutionException.class, pool::acquire, "Acquire should be rejected when no buffer is released within the timeout");
+  }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.s3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import software.amazon.awssdk.http.HttpMetric;
+import software.amazon.awssdk.metrics.MetricCollector;
+
+/**
+ * Test class for {@link S3HttpMetricPublisher}.
+ */
+class S3HttpMetricPublisherTest {
+
+  @Test
+  void testPublish() {
+    final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    final S3HttpMetricPublisher publisher = new S3HttpMetricPublisher();
+    final MetricCollector apiCall = MetricCollector.create("ApiCall");
+    final MetricCollector httpClient = apiCall.createChild("ApiCallAttempt").createChild("HttpClient");
+
+    publisher.bindTo(registry);
+    httpClient.reportMetric(HttpMetric.MAX_CONCURRENCY, 200);
+    httpClient.reportMetric(HttpMetric.LEASED_CONCURRENCY, 150);
+    httpClient.reportMetric(HttpMetric.AVAILABLE_CONCURRENCY, 50);
+    httpClient.reportMetric(HttpMetric.PENDING_CONCURRENCY_ACQUIRES, 3);
+    httpClient.reportMetric(HttpMetric.CONCURRENCY_ACQUIRE_DURATION, Duration.ofMillis(20));
+    publisher.publish(apiCall.collect());
+
+    assertEquals(200.0, registry.get("s3.client.http.connections.max").gauge().value(), "Should publish the maximum number of connections.");
+    assertEquals(150.0, registry.get("s3.client.http.connections.leased").gauge().value(), "Should publish the number of leased connections.");
+    assertEquals(50.0, registry.get("s3.client.http.connections.available").gauge().value(), "Should publish the number of available connections.");
+    assertEquals(3.0, registry.get("s3.client.http.connections.pending").gauge().value(), "Should publish the number of pending acquires.");
+    assertEquals(1, registry.get("s3.client.http.connections.acquire").timer().count(), "Should record the acquire duration.");
+  }
+}
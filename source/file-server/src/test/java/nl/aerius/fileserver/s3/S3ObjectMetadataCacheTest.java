@@ -0,0 +1,108 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.s3;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+import nl.aerius.fileserver.s3.S3ObjectMetadataCache.S3ObjectMetadata;
+
+/**
+ * Test class for {@link S3ObjectMetadataCache}.
+ */
+class S3ObjectMetadataCacheTest {
+
+  private static final String KEY = "z/123/test.gml";
+  private static final S3ObjectMetadata METADATA = new S3ObjectMetadata("etag", null);
+
+  private S3ObjectMetadataCache cache;
+
+  @BeforeEach
+  void beforeEach() {
+    final AmazonS3StorageProperties properties = new AmazonS3StorageProperties();
+
+    cache = new S3ObjectMetadataCache(properties);
+  }
+
+  @Test
+  void testGetIfPresent() {
+    assertNull(cache.getIfPresent(KEY), "Should not return metadata not in the cache.");
+    cache.put(KEY, METADATA);
+    assertEquals(METADATA, cache.getIfPresent(KEY), "Should return the cached metadata.");
+  }
+
+  @Test
+  void testInvalidate() {
+    cache.put(KEY, METADATA);
+    cache.invalidate(KEY);
+    assertNull(cache.getIfPresent(KEY), "Invalidated metadata should not be in the cache.");
+  }
+
+  @Test
+  void testInvalidatePrefix() {
+    final String otherKey = "z/456/test.gml";
+
+    cache.put(KEY, METADATA);
+    cache.put(otherKey, METADATA);
+    cache.invalidatePrefix("z/123/");
+    assertNull(cache.getIfPresent(KEY), "Metadata with the prefix should be invalidated.");
+    assertEquals(METADATA, cache.getIfPresent(otherKey), "Metadata without the prefix should not be invalidated.");
+  }
+
+  @Test
+  void testPutLoaded() {
+    cache.putLoaded(KEY, METADATA, cache.generation());
+    assertEquals(METADATA, cache.getIfPresent(KEY), "Loaded metadata should be cached.");
+  }
+
+  @Test
+  void testPutLoadedAfterInvalidate() {
+    final long generation = cache.generation();
+
+    // The object is deleted while its metadata is loaded.
+    cache.invalidate(KEY);
+    cache.putLoaded(KEY, METADATA, generation);
+    assertNull(cache.getIfPresent(KEY), "Metadata loaded while an object was invalidated should not be cached.");
+  }
+
+  @Test
+  void testPutLoadedDoesNotReplace() {
+    final S3ObjectMetadata stored = new S3ObjectMetadata("stored", null);
+    final long generation = cache.generation();
+
+    cache.put(KEY, stored);
+    cache.putLoaded(KEY, METADATA, generation);
+    assertEquals(stored, cache.getIfPresent(KEY), "Metadata of an object stored while loading should not be replaced.");
+  }
+
+  @Test
+  void testMetrics() {
+    final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+
+    cache.bindTo(registry);
+    cache.getIfPresent(KEY);
+    cache.put(KEY, METADATA);
+    cache.getIfPresent(KEY);
+    assertEquals(1.0, registry.get("cache.gets").tag("result", "hit").functionCounter().count(), "Should count the cache hit.");
+    assertEquals(1.0, registry.get("cache.gets").tag("result", "miss").functionCounter().count(), "Should count the cache miss.");
+  }
+}
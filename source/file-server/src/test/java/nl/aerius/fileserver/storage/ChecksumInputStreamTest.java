@@ -0,0 +1,71 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for {@link ChecksumInputStream}.
+ */
+class ChecksumInputStreamTest {
+
+  private static final byte[] CONTENT = "AERIUS".getBytes();
+  // SHA-256 checksum of CONTENT.
+  private static final String CONTENT_CHECKSUM = "945bd9de5e7672b13a1fed83b8fea9c2c3947707798acec11fc8fdb52fa9a717";
+
+  @Test
+  void testChecksum() throws IOException {
+    try (final ChecksumInputStream in = new ChecksumInputStream(new ByteArrayInputStream(CONTENT), -1, null)) {
+      assertNull(in.getChecksum(), "Checksum should not be known before the content is read.");
+      assertArrayEquals(CONTENT, in.readAllBytes(), "Content should be read as is.");
+      assertEquals(CONTENT_CHECKSUM, in.getChecksum(), "Checksum should be computed when the content is read.");
+    }
+  }
+
+  @Test
+  void testChecksumKnownSize() throws IOException {
+    try (final ChecksumInputStream in = new ChecksumInputStream(new ByteArrayInputStream(CONTENT), CONTENT.length, CONTENT_CHECKSUM)) {
+      in.readNBytes(CONTENT.length);
+      assertEquals(CONTENT_CHECKSUM, in.getChecksum(), "Checksum should be computed when the expected size is read, before the end of the stream.");
+    }
+  }
+
+  @Test
+  void testChecksumMatches() throws IOException {
+    try (final ChecksumInputStream in = new ChecksumInputStream(new ByteArrayInputStream(CONTENT), -1, CONTENT_CHECKSUM.toUpperCase())) {
+      for (int b = in.read(); b != -1; b = in.read()) {
+        // Read byte by byte.
+      }
+      assertEquals(CONTENT_CHECKSUM, in.getChecksum(), "Checksum should match, case insensitive.");
+    }
+  }
+
+  @Test
+  void testChecksumMismatch() throws IOException {
+    try (final ChecksumInputStream in = new ChecksumInputStream(new ByteArrayInputStream(CONTENT), -1, "0".repeat(64))) {
+      assertThrows(IOException.class, in::readAllBytes, "Reading the content should fail when the checksum doesn't match.");
+    }
+  }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+/**
+ * Test class for {@link GzipCompressingInputStream}.
+ */
+class GzipCompressingInputStreamTest {
+
+  @ParameterizedTest
+  @ValueSource(ints = {0, 1, 100, 1_000_000})
+  void testCompress(final int size) throws IOException {
+    final byte[] content = content(size);
+    final byte[] compressed;
+
+    try (final InputStream in = new GzipCompressingInputStream(new ByteArrayInputStream(content), 6)) {
+      compressed = in.readAllBytes();
+    }
+    try (final InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+      assertArrayEquals(content, in.readAllBytes(), "Decompressed content should be the original content.");
+    }
+    if (size >= 100) {
+      assertTrue(compressed.length < content.length, "Compressed content should be smaller than the original content.");
+    }
+  }
+
+  @ParameterizedTest
+  @ValueSource(ints = {0, 100})
+  void testCompressReadSingleBytes(final int size) throws IOException {
+    final byte[] content = content(size);
+    final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+
+    try (final InputStream in = new GzipCompressingInputStream(new ByteArrayInputStream(content), 1)) {
+      for (int b = in.read(); b != -1; b = in.read()) {
+        compressed.write(b);
+      }
+    }
+    try (final InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+      assertArrayEquals(content, in.readAllBytes(), "Decompressed content should be the original content when read byte by byte.");
+    }
+  }
+
+  /**
+   * Returns text like content, which compresses well.
+   */
+  private static byte[] content(final int size) {
+    final Random random = new Random(size);
+    final byte[] content = new byte[size];
+
+    for (int i = 0; i < size; i++) {
+      content[i] = (byte) ('a' + random.nextInt(4));
+    }
+    return content;
+  }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright the State of the Netherlands
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/.
+ */
+package nl.aerius.fileserver.storage;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Test class for {@link StorageCompression}.
+ */
+class StorageCompressionTest {
+
+  @Test
+  void testIsCompressed() {
+    final CompressionProperties properties = new CompressionProperties();
+
+    properties.setEnabled(true);
+    final StorageCompression compression = new StorageCompression(properties);
+
+    assertTrue(compression.isCompressed("test.gml"), "GML files should be compressed.");
+    assertTrue(compression.isCompressed("TEST.GML"), "Matching of patterns should be case insensitive.");
+    assertFalse(compression.isCompressed("test.zip"), "Already compressed files should not be compressed.");
+  }
+
+  @Test
+  void testIsCompressedPatterns() {
+    final CompressionProperties properties = new CompressionProperties();
+
+    properties.setEnabled(true);
+    properties.setPatterns(List.of("*.pdf"));
+    final StorageCompression compression = new StorageCompression(properties);
+
+    assertTrue(compression.isCompressed("test.pdf"), "Files matching the configured pattern should be compressed.");
+    assertFalse(compression.isCompressed("test.gml"), "Files not matching the configured pattern should not be compressed.");
+  }
+
+  @Test
+  void testDisabled() {
+    final StorageCompression compression = new StorageCompression(new CompressionProperties());
+    final InputStream in = new ByteArrayInputStream(new byte[0]);
+
+    assertFalse(compression.isCompressed("test.gml"), "Files should not be compressed when compression is disabled.");
+    assertSame(in, compression.encoder("test.gml").apply(in), "Content should be stored as is when compression is disabled.");
+  }
+}